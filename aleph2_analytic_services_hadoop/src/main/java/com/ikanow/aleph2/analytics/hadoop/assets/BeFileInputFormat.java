@@ -20,6 +20,7 @@ import java.util.List;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
@@ -31,6 +32,7 @@ import org.apache.logging.log4j.Logger;
 import scala.Tuple2;
 
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 
 import java.util.Arrays;
@@ -48,13 +50,15 @@ public class BeFileInputFormat extends UpdatedCombineFileInputFormat<String, Tup
 		logger.debug("BeFileInputFormat.constructor");
 	}
 	
-	/* (non-Javadoc)
+	/** Only block compressed (eg bzip2) JSON segments are split between mappers - the parsers read other files whole, and files being
+	 *  imported are deleted/archived by the mapper that finishes them, so can't be shared
 	 * @see org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat#isSplitable(org.apache.hadoop.mapreduce.JobContext, org.apache.hadoop.fs.Path)
 	 */
 	@Override
 	protected boolean isSplitable(JobContext context, Path file) {
 		logger.debug("BeFileInputFormat.isSplitable");
-		return false;
+		return !file.toString().contains(IStorageService.TO_IMPORT_DATA_SUFFIX)
+				&& BeFileInputReader.isSplittableJson(file, new CompressionCodecFactory(context.getConfiguration()));
 	}
 
 	/* (non-Javadoc)
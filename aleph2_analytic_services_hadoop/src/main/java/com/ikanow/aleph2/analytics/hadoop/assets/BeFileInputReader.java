@@ -30,16 +30,22 @@ import java.util.Optional;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import scala.Tuple2;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ikanow.aleph2.analytics.hadoop.data_model.IBeJobConfigurable;
 import com.ikanow.aleph2.analytics.hadoop.data_model.IParser;
 import com.ikanow.aleph2.analytics.hadoop.services.BatchEnrichmentContext;
@@ -52,6 +58,7 @@ import com.ikanow.aleph2.data_model.interfaces.data_import.IEnrichmentModuleCont
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.EnrichmentControlMetadataBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.ContextUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
@@ -79,6 +86,9 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 
 	protected CombineFileSplit _fileSplit;
 	protected InputStream _inStream = null;
+	protected LineRecordReader _lineReader = null; // (instead of _inStream, for block compressed JSON segments - see isSplittableJson)
+	protected CompressionCodecFactory _codecs;
+	protected TaskAttemptContext _context;
 	protected FileSystem _fs;
 	protected Configuration _config;
 	protected int _currFile = 0;
@@ -94,6 +104,8 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 
 	protected DataBucketBean _dataBucket;
 
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	
 	protected static Map<String, IParser> _parsers = new HashMap<String, IParser>();
 	static{
 		_parsers.put("JSON", new BeJsonParser());
@@ -115,6 +127,8 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 	@Override
 	public void initialize(InputSplit inputSplit, TaskAttemptContext context) throws IOException, InterruptedException{				
 		_config = context.getConfiguration();
+		_context = context;
+		_codecs = new CompressionCodecFactory(_config);
 		_fileSplit = (CombineFileSplit) inputSplit;
 		_numFiles = _fileSplit.getNumPaths();
 		
@@ -144,12 +158,31 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 			if (null != _inStream) {
 				_inStream.close();
 			}
+			if (null != _lineReader) {
+				_lineReader.close();
+			}
 			return false;
 		}
 		if (_currFile >= _numFiles) {
 			return false;
 		}
 		
+		if ((null == _inStream) && (null == _lineReader) && isSplittableJson(_fileSplit.getPath(_currFile), _codecs)) {
+			// Block compressed JSON, so this split might only be part of the file - read the lines from the blocks in the split
+			final LineRecordReader lineReader = new LineRecordReader();
+			try {
+				lineReader.initialize(new FileSplit(_fileSplit.getPath(_currFile), _fileSplit.getOffset(_currFile), _fileSplit.getLength(_currFile), null), _context);
+				_lineReader = lineReader;
+			}
+			catch (FileNotFoundException e) { // (see below)
+				_currFile++;
+				return nextKeyValue();
+			}
+		}
+		if (null != _lineReader) {
+			return nextJsonLine();
+		}
+		
 		if (null == _inStream){
 			
 			// Step 1: get input stream
@@ -194,6 +227,44 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 		return true;
 	}
 
+	/** Reads the next record from a block compressed JSON segment (one JSON object per line)
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected boolean nextJsonLine() throws IOException, InterruptedException {
+		this._currentFileName = _fileSplit.getPath(_currFile).toString();
+		while (_lineReader.nextKeyValue()) {
+			final String line = _lineReader.getCurrentValue().toString().trim();
+			if (!line.isEmpty()) {
+				try {
+					_record = new Tuple2<Long, IBatchRecord>((long) _currFile, new BatchRecord(_mapper.readTree(line), null));
+					return true;
+				}
+				catch (Exception e) { // (skip malformed lines)
+					logger.error(ErrorUtils.getLongForm(HadoopErrorUtils.EXCEPTION_CAUGHT, e));
+				}
+			}
+		}
+		// Finished this file (or the part of it in this split) - are there any others?
+		_lineReader.close();
+		_lineReader = null;
+		archiveOrDeleteFile(); // (files being imported are never split, see BeFileInputFormat.isSplitable)
+		_currFile++;
+		return nextKeyValue();
+	}
+	
+	/** Whether a file is newline-delimited JSON compressed with a block codec (eg bzip2), ie can be read starting from any block
+	 * @param file - the file path
+	 * @param codecs - the codecs configured for the job
+	 * @return
+	 */
+	public static boolean isSplittableJson(final Path file, final CompressionCodecFactory codecs) {
+		final CompressionCodec codec = codecs.getCodec(file);
+		return (codec instanceof SplittableCompressionCodec)
+				&& CompressionCodecFactory.removeSuffix(file.getName(), codec.getDefaultExtension()).toUpperCase().endsWith(".JSON");
+	}
+	
 	/** For input files (pure enrichment, not when used for analytics), deletes or archives the files following completion
 	 */
 	private void archiveOrDeleteFile() {
@@ -306,6 +377,9 @@ public class BeFileInputReader extends  RecordReader<String, Tuple2<Long, IBatch
 		if (null != _inStream) {
 			_inStream.close();
 		}
+		if (null != _lineReader) {
+			_lineReader.close();
+		}
 		if (null != _fs) {
 			_fs.close();
 		}		
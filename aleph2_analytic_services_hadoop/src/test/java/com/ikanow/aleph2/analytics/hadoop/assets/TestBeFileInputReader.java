@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.analytics.hadoop.assets;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+
+public class TestBeFileInputReader {
+
+	public static final int NUM_LINES = 100000; // (~4MB uncompressed, bzip2 blocks are <=900KB uncompressed so this spans several blocks)
+	public static final int MALFORMED_EVERY = 997;
+
+	@Test
+	public void test_isSplitable() {
+		final Configuration config = new Configuration();
+		final BeFileInputFormat format = new BeFileInputFormat();
+		final JobContextImpl context = new JobContextImpl(config, new JobID());
+
+		// Block compressed JSON segments can be split
+		assertTrue(format.isSplitable(context, new Path("file:///test/managed_bucket/processed/current/all_time/data.json.bz2")));
+		assertTrue(format.isSplitable(context, new Path("file:///test/managed_bucket/processed/current/all_time/data.JSON.bz2")));
+
+		// Other codecs can't be split
+		assertFalse(format.isSplitable(context, new Path("file:///test/managed_bucket/processed/current/all_time/data.json.gz")));
+
+		// Uncompressed files are read whole by the parsers
+		assertFalse(format.isSplitable(context, new Path("file:///test/managed_bucket/processed/current/all_time/data.json")));
+
+		// Other file types are read whole by the parsers, even if block compressed
+		assertFalse(format.isSplitable(context, new Path("file:///test/managed_bucket/processed/current/all_time/data.bin.bz2")));
+
+		// Files being imported are never split, since they're deleted/archived by the mapper that finishes them
+		assertFalse(format.isSplitable(context, new Path("file:///test" + IStorageService.TO_IMPORT_DATA_SUFFIX + "data.json.bz2")));
+	}
+
+	@Test
+	public void test_readSplitBzip2() throws Exception {
+		final Configuration config = new Configuration();
+
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator + "test_readSplitBzip2";
+		FileUtils.deleteQuietly(new File(temp_dir));
+		new File(temp_dir).mkdirs();
+		final File file = new File(temp_dir + File.separator + "data.json.bz2");
+
+		// Write a multi-block segment, with some malformed and empty lines
+
+		final BZip2Codec codec = new BZip2Codec();
+		codec.setConf(config);
+		try (final OutputStream out = codec.createOutputStream(new FileOutputStream(file));
+				final Writer writer = new OutputStreamWriter(out, "UTF-8"))
+		{
+			for (int i = 0; i < NUM_LINES; ++i) {
+				if (0 == (i % MALFORMED_EVERY)) {
+					writer.write("{\"_id\":\"id" + i + "\", \"malformed\n");
+				}
+				else if (0 == (i % (MALFORMED_EVERY + 2))) {
+					writer.write("\n");
+				}
+				else {
+					writer.write("{\"_id\":\"id" + i + "\",\"test\":\"some text to pad out the line " + i + "\"}\n");
+				}
+			}
+		}
+		final List<String> expected = IntStream.range(0, NUM_LINES)
+				.filter(i -> (0 != (i % MALFORMED_EVERY)) && (0 != (i % (MALFORMED_EVERY + 2))))
+				.mapToObj(i -> "id" + i)
+				.collect(Collectors.toList());
+
+		final Path path = new Path("file://" + file.getAbsolutePath());
+		final long length = file.length();
+
+		// Check the whole file is read
+		{
+			final List<String> ids = readSplit(config, path, 0L, length);
+			assertEquals(expected, ids);
+		}
+
+		// Check each record is read exactly once across 2 splits, including the one spanning the boundary
+		{
+			final long split_point = length/2;
+			final List<String> ids1 = readSplit(config, path, 0L, split_point);
+			final List<String> ids2 = readSplit(config, path, split_point, length - split_point);
+
+			assertFalse("First split should contain records", ids1.isEmpty());
+			assertFalse("Second split should contain records", ids2.isEmpty());
+
+			final List<String> ids = new ArrayList<String>(ids1);
+			ids.addAll(ids2);
+			assertEquals(expected, ids);
+		}
+
+		FileUtils.deleteQuietly(new File(temp_dir));
+	}
+
+	/** Reads the ids of the records in part of a file, bypassing initialize (which needs an enrichment context)
+	 * @param config
+	 * @param path
+	 * @param start
+	 * @param length
+	 * @return
+	 * @throws Exception
+	 */
+	protected static List<String> readSplit(final Configuration config, final Path path, final long start, final long length) throws Exception {
+		final BeFileInputReader reader = new BeFileInputReader();
+		reader._config = config;
+		reader._context = new TaskAttemptContextImpl(config, new TaskAttemptID());
+		reader._codecs = new CompressionCodecFactory(config);
+		reader._fileSplit = new CombineFileSplit(new Path[] { path }, new long[] { start }, new long[] { length }, new String[0]);
+		reader._numFiles = 1;
+
+		final List<String> ids = new ArrayList<String>();
+		try {
+			while (reader.nextKeyValue()) {
+				assertEquals(path.toString(), reader.getCurrentKey());
+				final JsonNode json = reader.getCurrentValue()._2().getJson();
+				assertFalse("Malformed lines should be skipped: " + json, json.has("malformed"));
+				ids.add(json.get("_id").asText());
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return ids;
+	}
+}
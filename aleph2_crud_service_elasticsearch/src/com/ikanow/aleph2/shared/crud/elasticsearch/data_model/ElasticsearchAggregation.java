@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.ikanow.aleph2.shared.crud.elasticsearch.data_model;
+
+import java.util.LinkedHashMap;
+import java.util.Optional;
+
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+
+/** ADT encapsulating the aggregations that can be pushed down into elasticsearch (see ElasticsearchCrudService.aggregateBySpec)
+ *  Each aggregation converts the elasticsearch result directly into a simple typed result, with no intermediate JSON
+ * @author Alex
+ *
+ * @param <R> - the type of the aggregation result
+ */
+public abstract class ElasticsearchAggregation<R> {
+	private ElasticsearchAggregation(final String name, final String field) {
+		_name = name;
+		_field = field;
+	}
+	protected final String _name;
+	protected final String _field;
+
+	/** The name of the aggregation (must be unique within a request)
+	 * @return
+	 */
+	public String name() { return _name; }
+
+	/** The field being aggregated over
+	 * @return
+	 */
+	public String field() { return _field; }
+
+	/** Returns the elasticsearch aggregation request
+	 * @return
+	 */
+	public abstract AbstractAggregationBuilder getAggregationBuilder();
+
+	/** Converts the elasticsearch aggregation result into the typed result
+	 * @param aggregation - the elasticsearch result, or Optional.empty() if there were no indexes to aggregate over
+	 * @return the typed result
+	 */
+	public abstract R convertResult(final Optional<Aggregation> aggregation);
+
+	/** Counts the documents with each of the top values of a field
+	 *  Result: (value -> doc count), in descending order of doc count
+	 * @author Alex
+	 */
+	public static class TermsAggregation extends ElasticsearchAggregation<LinkedHashMap<String, Long>> {
+		/** Counts the documents with each of the top values of a field
+		 * @param name - the aggregation name
+		 * @param field - the field to aggregate over (should be not_analyzed)
+		 * @param size - the max number of values to return
+		 */
+		public TermsAggregation(final String name, final String field, final int size) {
+			super(name, field);
+			_size = size;
+		}
+		protected final int _size;
+
+		@Override
+		public AbstractAggregationBuilder getAggregationBuilder() {
+			return AggregationBuilders.terms(_name).field(_field).size(_size);
+		}
+
+		@Override
+		public LinkedHashMap<String, Long> convertResult(final Optional<Aggregation> aggregation) {
+			final LinkedHashMap<String, Long> ret = new LinkedHashMap<>();
+			aggregation.map(agg -> (Terms) agg).ifPresent(terms -> terms.getBuckets().forEach(bucket -> ret.put(bucket.getKey(), bucket.getDocCount())));
+			return ret;
+		}
+	}
+
+	/** Counts the documents in each time interval of a date field
+	 *  Result: (start of interval in epoch millis -> doc count), in ascending order of time (intervals with no docs are omitted)
+	 * @author Alex
+	 */
+	public static class DateHistogramAggregation extends ElasticsearchAggregation<LinkedHashMap<Long, Long>> {
+		/** Counts the documents in each time interval of a date field
+		 * @param name - the aggregation name
+		 * @param field - the date field to aggregate over
+		 * @param interval - the elasticsearch interval expression, eg "day", "1h", "month"
+		 */
+		public DateHistogramAggregation(final String name, final String field, final String interval) {
+			super(name, field);
+			_interval = interval;
+		}
+		protected final String _interval;
+
+		@Override
+		public AbstractAggregationBuilder getAggregationBuilder() {
+			return AggregationBuilders.dateHistogram(_name).field(_field).interval(new DateHistogram.Interval(_interval));
+		}
+
+		@Override
+		public LinkedHashMap<Long, Long> convertResult(final Optional<Aggregation> aggregation) {
+			final LinkedHashMap<Long, Long> ret = new LinkedHashMap<>();
+			aggregation.map(agg -> (DateHistogram) agg).ifPresent(histo -> histo.getBuckets().forEach(bucket -> ret.put(bucket.getKeyAsNumber().longValue(), bucket.getDocCount())));
+			return ret;
+		}
+	}
+
+	/** Counts the (approximate) number of distinct values of a field
+	 *  Result: the number of distinct values
+	 * @author Alex
+	 */
+	public static class CardinalityAggregation extends ElasticsearchAggregation<Long> {
+		/** Counts the (approximate) number of distinct values of a field
+		 * @param name - the aggregation name
+		 * @param field - the field to aggregate over
+		 */
+		public CardinalityAggregation(final String name, final String field) {
+			super(name, field);
+		}
+
+		@Override
+		public AbstractAggregationBuilder getAggregationBuilder() {
+			return AggregationBuilders.cardinality(_name).field(_field);
+		}
+
+		@Override
+		public Long convertResult(final Optional<Aggregation> aggregation) {
+			return aggregation.map(agg -> ((Cardinality) agg).getValue()).orElse(0L);
+		}
+	}
+
+	/** Returns the count/min/max/avg/sum of a numeric field
+	 *  Result: a StatsResult
+	 * @author Alex
+	 */
+	public static class StatsAggregation extends ElasticsearchAggregation<StatsAggregation.StatsResult> {
+		/** Returns the count/min/max/avg/sum of a numeric field
+		 * @param name - the aggregation name
+		 * @param field - the numeric field to aggregate over
+		 */
+		public StatsAggregation(final String name, final String field) {
+			super(name, field);
+		}
+
+		/** The result of a stats aggregation (min/max/avg are NaN/infinite if count is 0)
+		 * @author Alex
+		 */
+		public static class StatsResult {
+			protected StatsResult(final long count, final double min, final double max, final double avg, final double sum) {
+				this.count = count;
+				this.min = min;
+				this.max = max;
+				this.avg = avg;
+				this.sum = sum;
+			}
+			public long count() { return count; }
+			public double min() { return min; }
+			public double max() { return max; }
+			public double avg() { return avg; }
+			public double sum() { return sum; }
+
+			private final long count;
+			private final double min;
+			private final double max;
+			private final double avg;
+			private final double sum;
+		}
+
+		@Override
+		public AbstractAggregationBuilder getAggregationBuilder() {
+			return AggregationBuilders.stats(_name).field(_field);
+		}
+
+		@Override
+		public StatsResult convertResult(final Optional<Aggregation> aggregation) {
+			return aggregation
+					.map(agg -> (Stats) agg)
+					.map(stats -> new StatsResult(stats.getCount(), stats.getMin(), stats.getMax(), stats.getAvg(), stats.getSum()))
+					.orElseGet(() -> new StatsResult(0L, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN, 0.0));
+		}
+	}
+}
@@ -16,28 +16,32 @@
 package com.ikanow.aleph2.shared.crud.elasticsearch.data_model;
 
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
-import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext.IndexContext.ReadWriteIndexContext.TimedRwIndexContext;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchContextUtils;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchFutureUtils;
@@ -47,9 +51,9 @@ import fj.data.Either;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import scala.Tuple2;
-import scala.Tuple3;
 
 //TODO: ALEPH-14: Ignore requests for new indexes that are too old? (So we don't bother creating indexes that we'll delete an hour later)
 
@@ -146,6 +150,18 @@ public abstract class ElasticsearchContext {
 		protected Client client() { return _client.get(); }
 		private final SetOnce<Client> _client = new SetOnce<>();
 		
+		/** Returns the client if it has been set (eg contexts built standalone won't have one)
+		 * @return
+		 */
+		protected Optional<Client> optionalClient() {
+			try {
+				return Optional.ofNullable(_client.get());
+			}
+			catch (Exception e) {
+				return Optional.empty();
+			}
+		}
+		
 		/** Returns a list of indexes that can be used directly
 		 * @param date_range - ignored for FixedRoIndexContext; for TimeBasedIndexContext, can be used to narrow down the indexes searched 
 		 * @return a list of indexes that can be passed into Client calls
@@ -156,6 +172,13 @@ public abstract class ElasticsearchContext {
 			return getReadableIndexList(date_range).toArray(new String[0]);
 		}
 		
+		/** For time-based index contexts, the field that determines which index a record is written into
+		 * @return the time field, if this context is time-based (and one is specified)
+		 */
+		public Optional<String> timeField() {
+			return Optional.empty();
+		}
+		
 		/** ADT encapsulating information about a read-only index of set of indexes - see enclosing class for more details
 		 * @author Alex
 		 */
@@ -181,19 +204,49 @@ public abstract class ElasticsearchContext {
 			 */
 			public static class TimedRoIndexContext extends ReadOnlyIndexContext {
 				public TimedRoIndexContext(final List<String> indexes) {
+					this(indexes, Optional.empty());
+				}				
+				/** Creates a read-only time-based index context
+				 * @param indexes - the index names including patterns
+				 * @param time_field - the field that was used to generate the time-based indexes, enables pruning of indexes based on the query 
+				 */
+				public TimedRoIndexContext(final List<String> indexes, final Optional<String> time_field) {
+					this(() -> Optional.of(indexes), indexes, time_field);
+				}				
+				/** Creates a read-only time-based index context whose indexes are looked up for each query (eg because they depend on state that can change
+				 *  over the lifetime of the context)
+				 * @param indexes - returns the index names including patterns, or Optional.empty() if they aren't currently known - must not block
+				 * @param fallback_indexes - the indexes (eg aliases) that are read, unpruned, when the time-based indexes aren't known
+				 * @param time_field - the field that was used to generate the time-based indexes, enables pruning of indexes based on the query 
+				 */
+				public TimedRoIndexContext(final Supplier<Optional<List<String>>> indexes, final List<String> fallback_indexes, final Optional<String> time_field) {
 					_indexes = indexes;
+					_fallback_indexes = fallback_indexes;
+					_time_field = time_field;
 				}				
-				final private List<String> _indexes;
+				final private Supplier<Optional<List<String>>> _indexes;
+				final private List<String> _fallback_indexes;
+				final private Optional<String> _time_field;
+				
+				@Override
+				public Optional<String> timeField() {
+					return _time_field;
+				}
 				
 				@Override
 				public List<String> getReadableIndexList(final Optional<Tuple2<Long, Long>> date_range) {
-					if (!date_range.isPresent()) { // Convert to wildcards
-						return _indexes.stream().map(i -> i.replaceFirst("_[^_]+$", "_*")).collect(Collectors.toList());
+					final Optional<List<String>> indexes = _indexes.get();
+					if (!indexes.isPresent()) {
+						return Collections.unmodifiableList(_fallback_indexes);
+					}
+					else if (!date_range.isPresent()) { // Convert to wildcards
+						return indexes.get().stream().map(i -> i.replaceFirst("_[^_]+$", "_*")).collect(Collectors.toList());
 					}
 					else {
-						return _indexes.stream()
-									.flatMap(i -> ElasticsearchContextUtils.getIndexesFromDateRange(i, date_range.get()))
-									.map(s -> s + '*')
+						// (collapse whole days/months/years into single wildcards, and drop periods that don't have an index)
+						final Optional<Client> client = optionalClient();
+						return indexes.get().stream()
+									.flatMap(i -> ElasticsearchContextUtils.getPrunedIndexesFromDateRange(client, i, date_range.get()).stream())
 									.collect(Collectors.toList());
 					}
 				} 
@@ -203,19 +256,35 @@ public abstract class ElasticsearchContext {
 		 * @author Alex
 		 */
 		public static abstract class ReadWriteIndexContext extends IndexContext {
-			private ReadWriteIndexContext(Optional<Long> target_max_index_size_mb, final Either<Boolean, Function<String, Optional<String>>> create_aliases) {
+			private ReadWriteIndexContext(Optional<Long> target_max_index_size_mb, final Optional<Long> target_max_index_docs, final Optional<Duration> target_max_index_age, final Either<Boolean, Function<String, Optional<String>>> create_aliases) {
 				_target_max_index_size_mb = target_max_index_size_mb.filter(i -> i >= 0); // (negative means no limit)
+				_target_max_index_docs = target_max_index_docs.filter(i -> i >= 0); // (negative means no limit)
+				_target_max_index_age = target_max_index_age.filter(d -> !d.isNegative()); // (negative means no limit)
 				_create_aliases = create_aliases;
 			}			
 			public final Optional<Long> target_max_index_size_mb() { return _target_max_index_size_mb; }
+			public final Optional<Long> target_max_index_docs() { return _target_max_index_docs; }
+			public final Optional<Duration> target_max_index_age() { return _target_max_index_age; }
 			protected final Optional<Long> _target_max_index_size_mb;
+			protected final Optional<Long> _target_max_index_docs;
+			protected final Optional<Duration> _target_max_index_age;
+			
+			/** If this context can split its indexes into multiple indexes (by size, doc count or age)
+			 * @return
+			 */
+			public boolean mayRollover() {
+				return _target_max_index_size_mb.isPresent() || _target_max_index_docs.isPresent() || _target_max_index_age.isPresent();
+			}
 			protected final Either<Boolean, Function<String, Optional<String>>> _create_aliases;
 			
 			protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());			
 			
 			// READ-ONLY ALIAS CREATION:
 			
-			private final ScheduledExecutorService _scheduler = Executors.newScheduledThreadPool(1);			
+			// (shared by all contexts - daemon, so it never keeps the JVM alive)
+			protected static final ScheduledExecutorService _scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+				Lambdas.get(() -> { final Thread t = new Thread(runnable, "es-index-rollover"); t.setDaemon(true); return t; }));
+			protected static final ESLogger _logger = Loggers.getLogger(ReadWriteIndexContext.class);
 
 			// READ-ONLY ALIAS UTILS:
 
@@ -248,124 +317,194 @@ public abstract class ElasticsearchContext {
 				return alias_to_create.isPresent();
 			}
 			
-			// INDEX SIZING UTILITY:
+			// INDEX ROLLOVER UTILITY:
 			
 			private static long MB = 1024L*1024L;
 			public static String BAR = "_";
 			public static final long INDEX_SIZE_CHECK_MS = 10000L; // (Every 10s)			
+			public static final long INDEX_SIZE_CHECK_MAX_MS = 120000L; // (Backs off to every 2 mins while the index is idle or the checks are failing)			
+			public static final long INDEX_IDLE_MS = 3600000L; // (Stop checking indexes that haven't been written to for an hour)
+			public static final String INDEX_CREATION_DATE = "index.creation_date";
+			
+			/** The current state of a base index - updated by the background checks, read (wait-free) by the writers
+			 */
+			public static class IndexState {
+				protected IndexState(final String base_index) {
+					this.base_index = base_index;
+				}
+				protected final String base_index;
+				protected final CompletableFuture<Void> ready = new CompletableFuture<>();
+				protected volatile int suffix_index = 0;
+				protected volatile String current_index;
+				protected volatile long last_used = System.currentTimeMillis();
+				protected volatile long last_checked = System.currentTimeMillis();
+				protected volatile long check_interval_ms = INDEX_SIZE_CHECK_MS;
+			}
 			public static class MutableState {
-				private AtomicBoolean _is_working = new AtomicBoolean(false); 
-				private ConcurrentHashMap<String, Tuple3<Long, String, Integer>> _base_index_states = new ConcurrentHashMap<>();
+				private ConcurrentHashMap<String, IndexState> _base_index_states = new ConcurrentHashMap<>();
 			}
 			private final MutableState _mutable_state = new MutableState(); // (WARNING - mutable)
 			
-			/** Every 10s check the index size and increment the index suffix if too large
+			/** Returns the index to write into for a base index - wait-free except for the first call per base index 
+			 *  (if rollover is enabled then the index is checked every 10s in the background, and the suffix incremented if the index is too large/full/old)
 			 * @return
 			 */
 			protected String getIndexSuffix(final String base_index) {
-				// Common:
-				final long now = new Date().getTime();
-				final Tuple3<Long, String, Integer> last_suffix = _mutable_state._base_index_states.computeIfAbsent(base_index, __ -> Tuples._3T(null, "", 0));
-				final Long last_checked = last_suffix._1();
-				final boolean checked_for_aliases = Lambdas.get(() -> {
-					if (mayCreateAliasesForThisIndex()) {
-						if (null == last_checked) { // alias checking logic, first time through only... (And then for index splitting, whenever an index is split)
-							checkForAliases(base_index);
-							if (!_target_max_index_size_mb.isPresent()) { // (update the concurrent hash map here since not going any further)
-								_mutable_state._base_index_states.put(base_index, Tuples._3T(now, "", 0)); // (current time + defaults - 2/3 not used)
-							}
-							return true;
+				final IndexState state = Optional.ofNullable(_mutable_state._base_index_states.get(base_index)).orElseGet(() -> initIndexState(base_index));
+				if (!state.ready.isDone()) { // (another thread is initializing it, first time through only)
+					state.ready.join();
+				}
+				if (mayRollover()) {
+					state.last_used = System.currentTimeMillis();
+				}
+				return state.current_index;
+			}//(end getIndexSuffix)
+			
+			/** First time through for a base index - checks the aliases, works out the current index (blocking), and starts the background checks
+			 * @param base_index
+			 * @return
+			 */
+			protected IndexState initIndexState(final String base_index) {
+				final IndexState new_state = new IndexState(base_index);
+				final IndexState existing_state = _mutable_state._base_index_states.putIfAbsent(base_index, new_state);
+				if (null != existing_state) {
+					return existing_state;
+				}
+				try {
+					if (mayCreateAliasesForThisIndex()) { // alias checking logic, first time through only... (And then for index splitting, whenever an index is split)
+						checkForAliases(base_index);
+					}
+					new_state.current_index = base_index;
+					if (mayRollover()) {
+						try {
+							checkRollover(new_state).join();
 						}
+						catch (Exception e) { // carry on with the base index on error
+						}
+						scheduleRolloverCheck(new_state);
 					}
-					return false;
-				});
-				
-				if (!_target_max_index_size_mb.isPresent()) { // if not splitting contexts into multiple indexes
-					return base_index;
 				}
-				else synchronized (this) { // (just need this sync point so that multiple threads first time through don't fall through to default)					
-					return _target_max_index_size_mb
-							.filter(__ -> { // only check first time or every 10s
-								if ((null == last_checked) || ((now - last_checked) >= INDEX_SIZE_CHECK_MS)) {
-									_mutable_state._base_index_states.put(base_index, Tuples._3T(now, last_suffix._2(), last_suffix._3()));
-									return true;
-								}
-								else return false;
-							})
-							// (if it's processing a previous request, keep going with the current suffix)
-							.filter(__ -> _mutable_state._is_working.compareAndSet(false, true)) 
-							.map(m -> {	
-								final CompletableFuture<Tuple3<Long, String, Integer>> future = ElasticsearchFutureUtils.wrap(
-										this.client().admin().indices().prepareStats()
-						                    .clear()
-						                    .setIndices(base_index + "*")
-						                    .setStore(true)
-						                    .execute()								
-										,
-										stats -> {
-											final int suffix_index = Lambdas.get(() -> {
-												final IndexStats index_stats = stats.getIndex(getName(base_index, last_suffix));
-												
-												final Predicate<IndexStats> shard_too_big = i_stats -> 
-													Arrays.stream(i_stats.getShards()).map(shard -> shard.getStats().getStore()).anyMatch(x -> x.getSizeInBytes() >= (m*MB));
-												
-												if ((null != index_stats) && shard_too_big.test(index_stats))
-												{
-													int max_index = 1;
-													// find a new index to use:									
-													for (; ; max_index++) {
-														final IndexStats candidate_index_stats = stats.getIndex(base_index + BAR + max_index);
-														
-														if (null == candidate_index_stats) break;
-														else if (!shard_too_big.test(candidate_index_stats)) break; // (found one we can use!)
-													}
-													return max_index;
-												}
-												else {
-													return last_suffix._3();
-												}
-											});			
-											if (mayCreateAliasesForThisIndex() && !checked_for_aliases && (suffix_index != last_suffix._3())) {
-												checkForAliases(base_index);
-											}
-											final Tuple3<Long, String, Integer> new_suffix = Tuples._3T(now, BAR + suffix_index, suffix_index);
-											_mutable_state._base_index_states.put(base_index, new_suffix);
-											return new_suffix;
-										})
-										// Just stick a future at the end of the chain to ensure the mutable state is always fixed
-										.thenApply(x -> {
-											_mutable_state._is_working.set(false);
-											return x;
-										})
-										.exceptionally(t -> {
-											_mutable_state._is_working.set(false);
-											return last_suffix;
-										});
-										;
-								
-								if (null == last_checked) { // first time through, wait for the code to complete
-									try {
-										final Tuple3<Long, String, Integer> new_suffix = future.join();
-										return getName(base_index, new_suffix);
-									}
-									catch (Exception e) { // pass through to default on error
-										return null;
-									}
+				finally {
+					new_state.ready.complete(null);
+				}
+				return new_state;
+			}
+			
+			/** Schedules the next background check of a base index (or forgets about it if it's no longer being written to)
+			 *  The interval doubles (up to INDEX_SIZE_CHECK_MAX_MS) after a failed check or if nothing has been written since the last check, 
+			 *  and drops back to INDEX_SIZE_CHECK_MS otherwise
+			 * @param state
+			 */
+			protected void scheduleRolloverCheck(final IndexState state) {
+				_scheduler.schedule(() -> {
+					try {
+						final long now = System.currentTimeMillis();
+						if ((now - state.last_used) >= INDEX_IDLE_MS) { // (will get re-initialized if it's written to again)
+							_mutable_state._base_index_states.remove(state.base_index, state);
+						}
+						else {
+							final boolean idle = state.last_used < state.last_checked;
+							state.last_checked = now;
+							checkRollover(state).whenComplete((__, t) -> {
+								if (null != t) {
+									_logger.warn("Rollover check failed for {}: {}", state.base_index, t.getMessage());
 								}
-								else return null; // pass through to default
-							})
-							.orElseGet(() -> getName(base_index, last_suffix))
-							;
+								rescheduleRolloverCheck(state, (null != t) || idle);
+							});
+						}
+					}
+					catch (Throwable t) { // (don't let an error stop the checks for this index)
+						_logger.warn("Rollover check failed for {}: {}", state.base_index, t.getMessage());
+						rescheduleRolloverCheck(state, true);
+					}
+				}
+				,
+				state.check_interval_ms, TimeUnit.MILLISECONDS
+				);
+			}
+			
+			/** Updates the check interval for a base index and schedules the next check
+			 * @param state
+			 * @param back_off - if true doubles the interval (up to INDEX_SIZE_CHECK_MAX_MS), else resets it
+			 */
+			protected void rescheduleRolloverCheck(final IndexState state, final boolean back_off) {
+				state.check_interval_ms = back_off ? Math.min(2*state.check_interval_ms, INDEX_SIZE_CHECK_MAX_MS) : INDEX_SIZE_CHECK_MS;
+				scheduleRolloverCheck(state);
+			}
+			
+			/** Checks if the current index for a base index is too large/full/old, and if so moves the state on to the first index that isn't
+			 * @param state
+			 * @return a future containing the (possibly new) suffix index
+			 */
+			protected CompletableFuture<Integer> checkRollover(final IndexState state) {
+				final String base_index = state.base_index;
+				
+				final CompletableFuture<IndicesStatsResponse> stats_future = ElasticsearchFutureUtils.wrap(
+						this.client().admin().indices().prepareStats()
+		                    .clear()
+		                    .setIndices(base_index + "*")
+		                    .setStore(_target_max_index_size_mb.isPresent())
+		                    .setDocs(_target_max_index_docs.isPresent())
+		                    .execute()
+		                ,
+						stats -> stats);
+				
+				final CompletableFuture<Map<String, Long>> created_future = _target_max_index_age.isPresent()
+						? ElasticsearchFutureUtils.wrap(
+								this.client().admin().indices().prepareGetSettings(base_index + "*").execute()
+								,
+								gsr -> StreamSupport.stream(gsr.getIndexToSettings().spliterator(), false)
+											.collect(Collectors.toMap(kv -> kv.key, kv -> kv.value.getAsLong(INDEX_CREATION_DATE, 0L))))
+						: CompletableFuture.completedFuture(Collections.emptyMap());
+				
+				return stats_future.thenCombine(created_future, (stats, created) -> {
+					final long now = System.currentTimeMillis();
 					
-				} //(end sync/if checking index sizes)
-			}//(end getIndexSuffix)
+					final Predicate<IndexStats> too_big = i_stats -> _target_max_index_size_mb
+							.map(m -> Arrays.stream(i_stats.getShards()).map(shard -> shard.getStats().getStore()).anyMatch(x -> x.getSizeInBytes() >= (m*MB)))
+							.orElse(false);
+					final Predicate<IndexStats> too_full = i_stats -> _target_max_index_docs
+							.map(max_docs -> i_stats.getPrimaries().getDocs().getCount() >= max_docs)
+							.orElse(false);
+					final Predicate<IndexStats> too_old = i_stats -> _target_max_index_age
+							.map(max_age -> Optional.ofNullable(created.get(i_stats.getIndex())).filter(c -> c > 0).map(c -> (now - c) >= max_age.toMillis()).orElse(false))
+							.orElse(false);
+					final Predicate<IndexStats> needs_rollover = too_big.or(too_full).or(too_old);
+					
+					final IndexStats index_stats = stats.getIndex(getName(base_index, state.suffix_index));
+					if ((null != index_stats) && needs_rollover.test(index_stats)) {
+						int max_index = 1;
+						// find a new index to use:									
+						for (; ; max_index++) {
+							final IndexStats candidate_index_stats = stats.getIndex(base_index + BAR + max_index);
+							
+							if (null == candidate_index_stats) break;
+							else if (!needs_rollover.test(candidate_index_stats)) break; // (found one we can use!)
+						}
+						return max_index;
+					}
+					else {
+						return state.suffix_index;
+					}
+				})
+				.thenApply(suffix_index -> {
+					if (suffix_index != state.suffix_index) {
+						state.suffix_index = suffix_index;
+						state.current_index = getName(base_index, suffix_index);
+						if (mayCreateAliasesForThisIndex()) {
+							checkForAliases(base_index);
+						}
+					}
+					return suffix_index;
+				});
+			}
 			
 			//(util function)
-			private static String getName(final String index, final Tuple3<Long, String, Integer> suffix_meta) {
+			private static String getName(final String index, final int suffix_index) {
 				return index + 
-						((0 != suffix_meta._3())
-								? suffix_meta._2()
-										: "");
+						((0 != suffix_index)
+								? BAR + suffix_index
+								: "");
 			}
 			
 			/** Gets the index to write to
@@ -384,7 +523,17 @@ public abstract class ElasticsearchContext {
 				 * @param create_aliases - if true tries to maintain a read-only alias across the different indexes comprising this context
 				 */
 				public FixedRwIndexContext(final String index, final Optional<Long> target_max_index_size_mb, final Either<Boolean, Function<String, Optional<String>>> create_aliases) {
-					super(target_max_index_size_mb, create_aliases);
+					this(index, target_max_index_size_mb, Optional.empty(), Optional.empty(), create_aliases);
+				}
+				/** Creates a fixed name index that can roll over into a new index by size, doc count and/or age
+				 * @param index - the base index name
+				 * @param target_max_index_size_mb - the target max index size
+				 * @param target_max_index_docs - the target max number of docs in an index
+				 * @param target_max_index_age - the target max age of an index
+				 * @param create_aliases - if true tries to maintain a read-only alias across the different indexes comprising this context
+				 */
+				public FixedRwIndexContext(final String index, final Optional<Long> target_max_index_size_mb, final Optional<Long> target_max_index_docs, final Optional<Duration> target_max_index_age, final Either<Boolean, Function<String, Optional<String>>> create_aliases) {
+					super(target_max_index_size_mb, target_max_index_docs, target_max_index_age, create_aliases);
 					_index = index;
 				}
 				/** Creates a fixed name index (will create a read only index)
@@ -398,7 +547,7 @@ public abstract class ElasticsearchContext {
 				 */
 				@Override
 				public List<String> getReadableIndexList(Optional<Tuple2<Long, Long>> date_range) {
-					return Arrays.asList(_index + _target_max_index_size_mb.map(__ -> "*").orElse(""));
+					return Arrays.asList(_index + (mayRollover() ? "*" : ""));
 				}
 
 				/* (non-Javadoc)
@@ -416,6 +565,9 @@ public abstract class ElasticsearchContext {
 				public FixedRwIndexSecondaryContext(final String index, Optional<Long> target_max_index_size_mb) {
 					super(index, target_max_index_size_mb, Either.left(false));
 				}
+				public FixedRwIndexSecondaryContext(final String index, Optional<Long> target_max_index_size_mb, final Optional<Long> target_max_index_docs, final Optional<Duration> target_max_index_age) {
+					super(index, target_max_index_size_mb, target_max_index_docs, target_max_index_age, Either.left(false));
+				}
 			}
 			
 			/** Just one index but it is time-based ie contains _{TIME_SIGNATURE}
@@ -429,7 +581,18 @@ public abstract class ElasticsearchContext {
 				 * @param create_aliases - if true tries to maintain a read-only alias across the different indexes comprising this context
 				 */
 				public TimedRwIndexContext(final String index, final Optional<String> time_field, final Optional<Long> target_max_index_size_mb, final Either<Boolean, Function<String, Optional<String>>> create_aliases) {
-					super(target_max_index_size_mb, create_aliases);
+					this(index, time_field, target_max_index_size_mb, Optional.empty(), Optional.empty(), create_aliases);
+				}
+				/** Created a time-based index context, where each time period's index can roll over into a new index by size, doc count and/or age
+				 * @param index - index name including pattern
+				 * @param time_field - the field to use, will just use "now" if left blank
+				 * @param target_max_index_size_mb - the target max index size
+				 * @param target_max_index_docs - the target max number of docs in an index
+				 * @param target_max_index_age - the target max age of an index
+				 * @param create_aliases - if true tries to maintain a read-only alias across the different indexes comprising this context
+				 */
+				public TimedRwIndexContext(final String index, final Optional<String> time_field, final Optional<Long> target_max_index_size_mb, final Optional<Long> target_max_index_docs, final Optional<Duration> target_max_index_age, final Either<Boolean, Function<String, Optional<String>>> create_aliases) {
+					super(target_max_index_size_mb, target_max_index_docs, target_max_index_age, create_aliases);
 					_index = index;
 					_time_field = time_field;
 					_index_split = ElasticsearchContextUtils.splitTimeBasedIndex(_index);
@@ -446,6 +609,7 @@ public abstract class ElasticsearchContext {
 				final Tuple2<String, String> _index_split;
 				final ThreadLocal<SimpleDateFormat> _formatter;
 				
+				@Override
 				public Optional<String> timeField() {
 					return _time_field;
 				}
@@ -459,7 +623,8 @@ public abstract class ElasticsearchContext {
 						return Arrays.asList(_index.replaceFirst("_[^_]+$", "_*"));
 					}
 					else {
-						return ElasticsearchContextUtils.getIndexesFromDateRange(_index, date_range.get()).map(s -> s + '*').collect(Collectors.toList());
+						// (not pruned against existing indexes, since this context creates them and so the cached list would often be stale)
+						return ElasticsearchContextUtils.getCollapsedIndexesFromDateRange(_index, date_range.get()).collect(Collectors.toList());
 					}
 				}
 				/* (non-Javadoc)
@@ -470,8 +635,8 @@ public abstract class ElasticsearchContext {
 					final Date d = _time_field
 											.filter(__ -> writable_object.isPresent())
 											.map(t -> writable_object.get().get(t))
-											.filter(j -> j.isLong())
-											.map(j -> new Date(j.asLong()))
+											.flatMap(j -> ElasticsearchContextUtils.parseTime(j))
+											.map(l -> new Date(l))
 										.orElseGet(() -> new Date()); // (else just use "now")
 							
 					final String formatted_date = _formatter.get().format(d);
@@ -487,6 +652,9 @@ public abstract class ElasticsearchContext {
 			public TimedRwIndexSecondaryContext(final String index, final Optional<String> time_field, Optional<Long> target_max_index_size_mb) {
 				super(index, time_field, target_max_index_size_mb, Either.left(false));
 			}
+			public TimedRwIndexSecondaryContext(final String index, final Optional<String> time_field, Optional<Long> target_max_index_size_mb, final Optional<Long> target_max_index_docs, final Optional<Duration> target_max_index_age) {
+				super(index, time_field, target_max_index_size_mb, target_max_index_docs, target_max_index_age, Either.left(false));
+			}
 		}
 	}
 
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.ikanow.aleph2.shared.crud.elasticsearch.data_model;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.management.ObjectName;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import com.ikanow.aleph2.data_model.utils.Lambdas;
+
+/** Write path metrics for the Elasticsearch CRUD service (and its batch subsystem)
+ *  Obtained via getUnderlyingPlatformDriver(ElasticsearchWriteMetrics.class, Optional.empty())
+ *  All the counters are cumulative since the service was created, rates are calculated by the reporters over each reporting period
+ * @author Alex
+ */
+public class ElasticsearchWriteMetrics {
+
+	/** The upper bounds (inclusive, in ms) of the bulk latency histogram buckets - the final bucket is everything larger
+	 */
+	public static final long[] LATENCY_BUCKETS_MS = { 5L, 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, 30000L };
+
+	/** JMX interface onto the metrics
+	 */
+	public interface ElasticsearchWriteMetricsMXBean {
+		Map<String, Long> getCounters();
+		Map<String, Long> getGauges();
+		Map<String, Long> getItemFailures();
+		Map<String, Long> getBulkLatencyHistogram();
+	}
+
+	public ElasticsearchWriteMetrics() {}
+
+	////////////////////////////////////////////////////
+
+	// RECORDING
+
+	/** Records documents being handed to the service for writing
+	 * @param docs - the number of documents
+	 */
+	public void recordSubmitted(final long docs) {
+		_docs_submitted.add(docs);
+	}
+
+	/** Records a bulk request being sent to elasticsearch
+	 * @param docs - the number of actions in the request
+	 * @param bytes - the estimated size of the request
+	 */
+	public void recordBulkSent(final long docs, final long bytes) {
+		_bulk_requests.increment();
+		_docs_sent.add(docs);
+		_bytes_sent.add(bytes);
+	}
+
+	/** Records the result of a bulk request that elasticsearch responded to
+	 * @param docs_written - the number of successful items
+	 * @param latency_ms - the time between the request being sent and the response arriving
+	 */
+	public void recordBulkCompleted(final long docs_written, final long latency_ms) {
+		_docs_written.add(docs_written);
+		_bulk_latency_total_ms.add(latency_ms);
+		int bucket = 0;
+		while ((bucket < LATENCY_BUCKETS_MS.length) && (latency_ms > LATENCY_BUCKETS_MS[bucket])) ++bucket;
+		_bulk_latency_histogram.incrementAndGet(bucket);
+	}
+
+	/** Records a bulk request failing in its entirety (eg no nodes available)
+	 * @param docs - the number of actions in the request
+	 * @param reason - the exception message
+	 */
+	public void recordBulkFailed(final long docs, final String reason) {
+		_bulk_request_failures.increment();
+		_item_failures.computeIfAbsent(getFailureReason(reason), __ -> new LongAdder()).add(docs);
+	}
+
+	/** Records a single item in a bulk request failing
+	 * @param reason - the failure message
+	 */
+	public void recordItemFailed(final String reason) {
+		_item_failures.computeIfAbsent(getFailureReason(reason), __ -> new LongAdder()).increment();
+	}
+
+	/** Records a document being re-submitted with the next auto type after a mapping failure
+	 */
+	public void recordAutoTypeRetry() {
+		_auto_type_retries.increment();
+	}
+
+	/** Records a document being scheduled for retry after a transient failure
+	 */
+	public void recordTransientRetry() {
+		_transient_retries.increment();
+	}
+
+	/** Records a document being dropped after exhausting its retries (or because the retry queue is full)
+	 */
+	public void recordDroppedRetry() {
+		_dropped_retries.increment();
+	}
+
+	/** Registers a value to be sampled on each snapshot (eg queue depths)
+	 * @param name - the name of the gauge
+	 * @param gauge - the supplier of the current value
+	 */
+	public void registerGauge(final String name, final Supplier<Long> gauge) {
+		_gauges.put(name, gauge);
+	}
+
+	////////////////////////////////////////////////////
+
+	// ACCESSORS
+
+	public long docs_submitted() { return _docs_submitted.sum(); }
+	public long docs_sent() { return _docs_sent.sum(); }
+	public long docs_written() { return _docs_written.sum(); }
+	public long bytes_sent() { return _bytes_sent.sum(); }
+	public long bulk_requests() { return _bulk_requests.sum(); }
+	public long bulk_request_failures() { return _bulk_request_failures.sum(); }
+	public long auto_type_retries() { return _auto_type_retries.sum(); }
+	public long transient_retries() { return _transient_retries.sum(); }
+	public long dropped_retries() { return _dropped_retries.sum(); }
+
+	/** Returns the cumulative counters
+	 * @return a map of counter name vs value
+	 */
+	public Map<String, Long> getCounters() {
+		final LinkedHashMap<String, Long> counters = new LinkedHashMap<>();
+		counters.put("docs_submitted", docs_submitted());
+		counters.put("docs_sent", docs_sent());
+		counters.put("docs_written", docs_written());
+		counters.put("bytes_sent", bytes_sent());
+		counters.put("bulk_requests", bulk_requests());
+		counters.put("bulk_request_failures", bulk_request_failures());
+		counters.put("bulk_latency_total_ms", _bulk_latency_total_ms.sum());
+		counters.put("auto_type_retries", auto_type_retries());
+		counters.put("transient_retries", transient_retries());
+		counters.put("dropped_retries", dropped_retries());
+		return counters;
+	}
+
+	/** Returns the current value of all the registered gauges
+	 * @return a map of gauge name vs value
+	 */
+	public Map<String, Long> getGauges() {
+		return _gauges.entrySet().stream()
+				.collect(Collectors.toMap(kv -> kv.getKey(), kv -> Optional.ofNullable(kv.getValue().get()).orElse(0L), (a, b) -> a, LinkedHashMap::new));
+	}
+
+	/** Returns the number of failed items, grouped by the exception that caused them
+	 * @return a map of exception name vs number of failed items
+	 */
+	public Map<String, Long> getItemFailures() {
+		return _item_failures.entrySet().stream()
+				.collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue().sum(), (a, b) -> a, LinkedHashMap::new));
+	}
+
+	/** Returns the bulk latency histogram
+	 * @return a map of "<=N ms" (and a final ">N ms") vs the number of bulk requests in that bucket
+	 */
+	public Map<String, Long> getBulkLatencyHistogram() {
+		final LinkedHashMap<String, Long> histogram = new LinkedHashMap<>();
+		for (int i = 0; i < LATENCY_BUCKETS_MS.length; ++i) {
+			histogram.put("<=" + LATENCY_BUCKETS_MS[i] + "ms", _bulk_latency_histogram.get(i));
+		}
+		histogram.put(">" + LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1] + "ms", _bulk_latency_histogram.get(LATENCY_BUCKETS_MS.length));
+		return histogram;
+	}
+
+	/** Returns all the metrics in one map, eg for logging
+	 * @return a map of metric name vs value (the failures and histogram are nested maps)
+	 */
+	public Map<String, Object> getSnapshot() {
+		final LinkedHashMap<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.putAll(getCounters());
+		snapshot.putAll(getGauges());
+		snapshot.put("item_failures", getItemFailures());
+		snapshot.put("bulk_latency", getBulkLatencyHistogram());
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	////////////////////////////////////////////////////
+
+	// REPORTING
+
+	/** Starts periodically passing a snapshot of the metrics (plus docs_per_sec and bytes_per_sec over the last period) to a reporter
+	 *  Any previous periodic reporting is stopped
+	 * @param period - how often to report
+	 * @param reporter - the consumer of the snapshots
+	 */
+	public synchronized void startReporting(final Duration period, final Consumer<Map<String, Object>> reporter) {
+		stopReporting();
+		final long[] last = { docs_written(), bytes_sent(), System.nanoTime() };
+		_reporting = Optional.of(_reporter_scheduler.scheduleAtFixedRate(() -> {
+			final long now = System.nanoTime();
+			final long docs = docs_written();
+			final long bytes = bytes_sent();
+			final double secs = Math.max(1L, now - last[2])/1.0e9;
+
+			final LinkedHashMap<String, Object> snapshot = new LinkedHashMap<>(getSnapshot());
+			snapshot.put("docs_per_sec", (long)((docs - last[0])/secs));
+			snapshot.put("bytes_per_sec", (long)((bytes - last[1])/secs));
+			last[0] = docs; last[1] = bytes; last[2] = now;
+			try {
+				reporter.accept(snapshot);
+			}
+			catch (Throwable t) {} // (don't let a broken reporter kill the schedule)
+		},
+		period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS));
+	}
+
+	/** Starts periodically logging a snapshot of the metrics at INFO level
+	 * @param period - how often to log
+	 */
+	public void startLogReporting(final Duration period) {
+		final ESLogger logger = Loggers.getLogger(ElasticsearchWriteMetrics.class);
+		startReporting(period, snapshot -> logger.info("Elasticsearch write metrics: {}", snapshot));
+	}
+
+	/** Stops any periodic reporting started with startReporting/startLogReporting
+	 */
+	public synchronized void stopReporting() {
+		_reporting.ifPresent(f -> f.cancel(false));
+		_reporting = Optional.empty();
+	}
+
+	/** Registers the metrics with the platform MBean server
+	 * @param name - the name used to distinguish this service's metrics from any others in the JVM (eg the bucket path)
+	 * @return the JMX object name under which the metrics were registered (can be used to unregister them)
+	 */
+	public ObjectName registerMBean(final String name) {
+		try {
+			final ObjectName object_name = new ObjectName("com.ikanow.aleph2.elasticsearch:type=WriteMetrics,name=" + ObjectName.quote(name));
+			final ElasticsearchWriteMetricsMXBean mbean = new ElasticsearchWriteMetricsMXBean() {
+				public Map<String, Long> getCounters() { return ElasticsearchWriteMetrics.this.getCounters(); }
+				public Map<String, Long> getGauges() { return ElasticsearchWriteMetrics.this.getGauges(); }
+				public Map<String, Long> getItemFailures() { return ElasticsearchWriteMetrics.this.getItemFailures(); }
+				public Map<String, Long> getBulkLatencyHistogram() { return ElasticsearchWriteMetrics.this.getBulkLatencyHistogram(); }
+			};
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, object_name);
+			return object_name;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Converts an elasticsearch failure message into a short "reason" to group by (the name of the innermost exception)
+	 *  eg "RemoteTransportException[...]; nested: EsRejectedExecutionException[rejected execution ...]" -> "EsRejectedExecutionException"
+	 * @param message - the failure message
+	 * @return the reason
+	 */
+	public static String getFailureReason(final String message) {
+		if (null == message) return "unknown";
+		final int nested = message.lastIndexOf("nested: ");
+		final String innermost = (nested < 0) ? message : message.substring(nested + 8);
+		final int end = innermost.indexOf('[');
+		return ((end < 0) ? innermost : innermost.substring(0, end)).trim();
+	}
+
+	////////////////////////////////////////////////////
+
+	// STATE
+
+	protected final LongAdder _docs_submitted = new LongAdder();
+	protected final LongAdder _docs_sent = new LongAdder();
+	protected final LongAdder _docs_written = new LongAdder();
+	protected final LongAdder _bytes_sent = new LongAdder();
+	protected final LongAdder _bulk_requests = new LongAdder();
+	protected final LongAdder _bulk_request_failures = new LongAdder();
+	protected final LongAdder _bulk_latency_total_ms = new LongAdder();
+	protected final LongAdder _auto_type_retries = new LongAdder();
+	protected final LongAdder _transient_retries = new LongAdder();
+	protected final LongAdder _dropped_retries = new LongAdder();
+	protected final AtomicLongArray _bulk_latency_histogram = new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+	protected final ConcurrentHashMap<String, LongAdder> _item_failures = new ConcurrentHashMap<>();
+	protected final ConcurrentHashMap<String, Supplier<Long>> _gauges = new ConcurrentHashMap<>();
+
+	protected Optional<ScheduledFuture<?>> _reporting = Optional.empty(); // (guarded by this)
+	protected static final ScheduledExecutorService _reporter_scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+		Lambdas.get(() -> { final Thread t = new Thread(runnable, "es-write-metrics"); t.setDaemon(true); return t; }));
+}
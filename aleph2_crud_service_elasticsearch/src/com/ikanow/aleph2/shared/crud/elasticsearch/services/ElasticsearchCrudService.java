@@ -15,32 +15,46 @@
  ******************************************************************************/
 package com.ikanow.aleph2.shared.crud.elasticsearch.services;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import org.apache.metamodel.DataContext;
 import org.apache.metamodel.elasticsearch.ElasticSearchDataContext;
 import org.apache.metamodel.schema.Table;
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.UnavailableShardsException;
 import org.elasticsearch.action.WriteConsistencyLevel;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.stats.IndicesStatsRequestBuilder;
@@ -50,6 +64,7 @@ import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.count.CountRequestBuilder;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetRequestBuilder;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
@@ -57,21 +72,46 @@ import org.elasticsearch.action.index.IndexRequest.OpType;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.cluster.metadata.ProcessClusterEventTimeoutException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.highlight.HighlightField;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.NodeDisconnectedException;
+import org.elasticsearch.transport.ReceiveTimeoutTransportException;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService;
@@ -86,8 +126,10 @@ import com.ikanow.aleph2.data_model.utils.FutureUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchAggregation;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext.ReadWriteContext;
+import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchWriteMetrics;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchContextUtils;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchFutureUtils;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchUtils;
@@ -103,6 +145,12 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 
 	public enum CreationPolicy { AVAILABLE_IMMEDIATELY, SINGLE_OBJECT_AVAILABLE_IMMEDIATELY, OPTIMIZED };
 	
+	/** What the batch subsystem does when a producer tries to write while the in-flight budget is exhausted
+	 *  BLOCK - the producer waits until enough in-flight documents have been acknowledged by elasticsearch
+	 *  REJECT - the write fails immediately with a RejectedExecutionException
+	 */
+	public enum BackpressurePolicy { BLOCK, REJECT };
+	
 	public ElasticsearchCrudService(final Class<O> bean_clazz, 
 			final ElasticsearchContext es_context, 
 			final Optional<Boolean> id_ranges_ok, final CreationPolicy creation_policy, 
@@ -143,7 +191,22 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	protected final ObjectMapper _object_mapper;
 	protected final Optional<DataSchemaBean.WriteSettings> _batch_write_settings;
 	
+	/** The number of hits retrieved per round trip when scrolling through large result sets */
+	public static final int SCROLL_PAGE_SIZE = 1000;
+	/** How long ES keeps a scroll context alive between page requests */
+	public static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(2L);
+	/** A sensible TTL for setCountCacheTtl - long enough to absorb status/UI polling, short enough to look live */
+	public static final Duration DEFAULT_COUNT_CACHE_TTL = Duration.ofSeconds(5L);
+	
+	/** Index stats doc counts shared across all the services in the JVM (since services are often created per request), keyed on client and index pattern 
+	 *  Each value is (time fetched, count) - entries are checked against the TTL of the service reading them, the cache expiry just bounds its size */
+	protected static final Cache<Tuple2<Client, String>, Tuple2<Long, CompletableFuture<Long>>> _count_cache = 
+			CacheBuilder.newBuilder().maximumSize(10000L).expireAfterWrite(10L, TimeUnit.MINUTES).build();
+	
 	/** A wrapper for an ES return value that is auto-closeable
+	 *  If the response was generated with a scroll then the cursor pages through the entire result set,
+	 *  requesting the next page in the background while the current one is being consumed 
+	 *  (in that case iterator() can only be called once)
 	 * @author acp
 	 *
 	 * @param <O>
@@ -151,31 +214,179 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	public class ElasticsearchCursor extends Cursor<O> {
 				
 		protected ElasticsearchCursor(final SearchResponse sr) {
+			this(sr, Optional.empty());
+		}
+		protected ElasticsearchCursor(final SearchResponse sr, final Optional<Long> limit) {
 			_hits = sr == null ? null : sr.getHits();
+			_scroll_id = sr == null ? null : sr.getScrollId();
+			_limit = limit;
 		}
 		protected final SearchHits _hits;
+		protected final Optional<Long> _limit;
+		protected String _scroll_id; // (mutable, can change between pages)
 		
 		@Override
 		public void close() throws Exception {
+			clearScroll();
 		}
 
 		@Override
 		public Iterator<O> iterator() {
+			return iterator(hit -> convertHit(hit));
+		}
+		
+		/** Iterates over the hits (paging through the scroll if there is one), converting each one
+		 * @param converter - converts each search hit into the returned type
+		 * @return an iterator over the converted hits
+		 */
+		protected <T> Iterator<T> iterator(final Function<SearchHit, T> converter) {
 			return null == _hits
 					? Collections.emptyIterator()
-					: Arrays.stream(_hits.hits())
-						.<O>map(hit -> {
-							final Map<String, Object> src_fields = hit.getSource();
-							src_fields.computeIfAbsent("_id", __ -> hit.getId());
-							return _object_mapper.convertValue(src_fields, _state.clazz);
-						})
-						.iterator();
+					: (null == _scroll_id)
+						? Arrays.stream(_hits.hits())
+							.<T>map(converter)
+							.iterator()
+						: new ScrollingIterator<T>(converter);
 		}
 
 		@Override
 		public long count() {
 			return Optional.ofNullable(_hits).map(SearchHits::totalHits).orElse(0L);
 		}		
+		
+		/** Releases the server side scroll context, if there is one
+		 */
+		protected synchronized void clearScroll() {
+			if (null != _scroll_id) {
+				_state.client.prepareClearScroll().addScrollId(_scroll_id).execute();
+				_scroll_id = null;
+			}
+		}
+		
+		/** Iterates over the pages of a scroll, pre-fetching page n+1 as soon as page n is returned
+		 * @author Alex
+		 */
+		protected class ScrollingIterator<T> implements Iterator<T> {
+			protected ScrollingIterator(final Function<SearchHit, T> converter) {
+				_converter = converter;
+				setPage(_hits.hits());
+			}
+			protected final Function<SearchHit, T> _converter;
+			protected SearchHit[] _curr_page;
+			protected int _curr_index = 0;
+			protected long _num_fetched = 0L;
+			protected long _num_returned = 0L;
+			protected CompletableFuture<SearchResponse> _next_page = null;
+			
+			/** Makes the page the current one and kicks off the request for the next page (if there should be one)
+			 * @param page
+			 */
+			protected void setPage(final SearchHit[] page) {
+				_curr_page = page;
+				_curr_index = 0;
+				_num_fetched += page.length;
+				
+				final long max_to_fetch = _limit.map(l -> Math.min(l, _hits.totalHits())).orElse(_hits.totalHits());
+				if ((page.length > 0) && (_num_fetched < max_to_fetch) && (null != _scroll_id)) {
+					_next_page = ElasticsearchFutureUtils.wrap(
+									_state.client.prepareSearchScroll(_scroll_id).setScroll(SCROLL_KEEP_ALIVE).execute(), 
+									sr -> sr);
+				}
+				else {
+					_next_page = null;
+					clearScroll(); // (finished, can release the server side resources immediately)
+				}
+			}
+			
+			@Override
+			public boolean hasNext() {
+				if (_limit.map(l -> _num_returned >= l).orElse(false)) {
+					clearScroll();
+					return false;
+				}
+				if (_curr_index < _curr_page.length) {
+					return true;
+				}
+				else if (null != _next_page) {
+					final SearchResponse sr = _next_page.join();
+					synchronized (ElasticsearchCursor.this) {
+						if (null != _scroll_id) _scroll_id = sr.getScrollId();
+					}
+					setPage(sr.getHits().hits());
+					return _curr_index < _curr_page.length;
+				}
+				else return false;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				_num_returned++;
+				return _converter.apply(_curr_page[_curr_index++]);
+			}
+		}
+	}
+	
+	/** Converts an ES search hit into the CRUD service's type
+	 *  The source bytes are parsed exactly once, into a JsonNode that beans are then read from directly (rather than into a Map that is then converted)
+	 *  Hits without a source (eg _id-only projections) are built from the _id and any returned fields 
+	 * @param hit - the search hit
+	 * @return the converted object
+	 */
+	@SuppressWarnings("unchecked")
+	protected O convertHit(final SearchHit hit) {
+		try {
+			final BytesReference source = hit.sourceRef();
+			if ((null == source) || (XContentType.JSON != XContentFactory.xContentType(source))) {
+				return convertFieldsOrSource(hit);
+			}
+			else {
+				final JsonNode json = _object_mapper.readTree(source.streamInput());
+				if (json.isObject() && !json.has("_id")) ((ObjectNode) json).put("_id", hit.getId()); // (if the source has its own _id, that one wins)
+				return JsonNode.class.isAssignableFrom(_state.clazz)
+						? (O) json
+						: _object_mapper.treeToValue(json, _state.clazz);
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/** Slow path for convertHit, for hits with no (JSON) source
+	 * @param hit - the search hit
+	 * @return the converted object
+	 */
+	protected O convertFieldsOrSource(final SearchHit hit) {
+		final Map<String, Object> src_fields = Optional.ofNullable(hit.getSource()).orElseGet(() -> 
+				Optional.ofNullable(hit.getFields()).orElse(Collections.emptyMap()).values().stream()
+					.collect(Collectors.toMap(
+							f -> f.getName(), 
+							f -> (1 == f.getValues().size()) ? f.getValue() : f.getValues(), 
+							(a, b) -> a, HashMap::new)));
+		src_fields.computeIfAbsent("_id", __ -> hit.getId());
+		return _object_mapper.convertValue(src_fields, _state.clazz);
+	}
+	
+	/** Applies a field projection to a search
+	 *  A projection of only the _id is satisfied without fetching the source at all, otherwise the source is filtered server side
+	 * @param srb - the search request builder
+	 * @param field_list - the fields to include/exclude (empty for all fields)
+	 * @param include - whether field_list is the fields to include or exclude
+	 * @return the updated search request builder
+	 */
+	protected static SearchRequestBuilder applyFieldList(final SearchRequestBuilder srb, final List<String> field_list, final boolean include) {
+		if (field_list.isEmpty()) {
+			return srb;
+		}
+		else if (include && field_list.stream().allMatch(f -> f.equals("_id"))) {
+			return srb.setFetchSource(false).setNoFields();
+		}
+		else return include
+				? srb.setFetchSource(field_list.toArray(new String[0]), new String[0])
+				: srb.setFetchSource(new String[0], field_list.toArray(new String[0]));
 	}
 	
 	/////////////////////////////////////////////////////
@@ -184,15 +395,15 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	
 	/** Utility function for adding a set of objects to a single index
 	 * @param rw_context - either the index/type context, or just (index,type) for retries 
-	 * @param new_object - either the object to insert/save, or (id, string source) (must be the object(left) if the index/type context (ie left) is used for "rw_context")
+	 * @param new_object - either the object to insert/save, or (id, serialized source) (must be the object(left) if the index/type context (ie left) is used for "rw_context")
 	 * @param replace_if_present - replace the existing object (else error)
 	 * @param bulk - whether being called as part of a bulk operation
 	 * @return
 	 */
 	private IndexRequestBuilder singleObjectIndexRequest(final Either<ReadWriteContext, Tuple2<String, String>> rw_context, 
-			final Either<O, Tuple2<String, String>> new_object, final boolean replace_if_present, final boolean bulk)
+			final Either<O, Tuple2<String, BytesReference>> new_object, final boolean replace_if_present, final boolean bulk)
 	{
-		final Either<JsonNode, Tuple2<String, String>> json_object =
+		final Either<JsonNode, Tuple2<String, BytesReference>> json_object =
 				new_object.left().map(left-> {
 					return ((JsonNode.class.isAssignableFrom(_state.clazz))
 							? (JsonNode) left
@@ -209,7 +420,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 					.setOpType(replace_if_present ? OpType.INDEX : OpType.CREATE)
 					.setConsistencyLevel(WriteConsistencyLevel.ONE)
 					.setRefresh(!bulk && CreationPolicy.OPTIMIZED != _state.creation_policy)
-					.setSource(json_object.<String>either(left -> left.toString(), right -> right._2()))
+					.setSource(json_object.<BytesReference>either(left -> serializeSource(left), right -> right._2()))
 						)
 				.map(i -> json_object.<IndexRequestBuilder>either(left -> left.has("_id") ? i.setId(left.get("_id").asText()) : i, right -> i.setId(right._1())))
 				//DEBUG
@@ -217,6 +428,30 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 				.get();		
 	}
 	
+	/** Serializes a JSON object straight into UTF-8 bytes for the index request
+	 *  (Avoids building an intermediate String per document - Jackson recycles its internal buffers across calls)
+	 * @param json - the object to serialize
+	 * @return the serialized bytes
+	 */
+	private BytesReference serializeSource(final JsonNode json) {
+		try {
+			return new BytesArray(_object_mapper.writeValueAsBytes(json));
+		}
+		catch (JsonProcessingException e) { // (can't happen for a JsonNode)
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/** Utility function to get the set of indexes to read from, pruning time-based indexes if the query is bounded on the time field
+	 * @param spec - the query being performed
+	 * @return the set of indexes that need to be searched
+	 */
+	protected String[] getReadableIndexArray(final QueryComponent<O> spec) {
+		final ElasticsearchContext.IndexContext index_context = _state.es_context.indexContext();
+		return index_context.getReadableIndexArray(
+					index_context.timeField().flatMap(time_field -> ElasticsearchUtils.getDateRangeFromQuery(spec, time_field)));
+	}
+	
 	private static final String PARSE_ERROR_FRAGMENT = "failed to parse [";
 	private static final int PARSE_ERROR_FRAGMENT_LEN = PARSE_ERROR_FRAGMENT.length();
 	private static final String PARSE_ERROR_FRAGMENT_2 = "tried to parse field [";
@@ -351,7 +586,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 				// WARNING: mutable/imperative code ahead...
 				long _curr_written = 0;
 				List<Object> _id_list = null;
-				HashMap<String, String> _mapping_failures = null; 
+				HashMap<String, BytesReference> _mapping_failures = null; 
 				
 				@Override
 				public void accept(final BulkResponse result, final CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> future) {
@@ -367,7 +602,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 						if (null == _id_list) {
 							_id_list = new LinkedList<Object>();
 						}
-						HashMap<String, String> temp_mapping_failures = null;
+						HashMap<String, BytesReference> temp_mapping_failures = null;
 						final Iterator<BulkItemResponse> it = result.iterator();
 						while (it.hasNext()) {
 							final BulkItemResponse bir = it.next();
@@ -388,15 +623,15 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 													.setConsistencyLevel(WriteConsistencyLevel.ONE)
 													.setRefresh(CreationPolicy.AVAILABLE_IMMEDIATELY == _state.creation_policy);
 									}
-									String failed_json = null;
+									BytesReference failed_json = null;
 									if (null == _mapping_failures) { // first time through, use item id to grab the objects from the original request
 										if (null == temp_mapping_failures) {
-											temp_mapping_failures = new HashMap<String, String>();
+											temp_mapping_failures = new HashMap<String, BytesReference>();
 										}
 										final ActionRequest<?> ar = brb.request().requests().get(bir.getItemId());
 										if (ar instanceof IndexRequest) {											
 											IndexRequest ir = (IndexRequest) ar;
-											failed_json = ir.source().toUtf8();
+											failed_json = ir.source();
 											temp_mapping_failures.put(bir.getId(), failed_json);
 										}
 									}
@@ -508,32 +743,23 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	@Override
 	public CompletableFuture<Optional<O>> getObjectBySpec(final QueryComponent<O> unique_spec, final List<String> field_list, final boolean include) {
 		try {
-			//TODO (ALEPH-14): Handle case where no source is present but fields are
-			
 			Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(unique_spec, _state.id_ranges_ok);
 			
 			final SearchRequestBuilder srb = Optional
 						.of(
 							_state.client.prepareSearch()
-							.setIndices(_state.es_context.indexContext().getReadableIndexArray(Optional.empty()))
+							.setIndices(getReadableIndexArray(unique_spec))
 							.setTypes(_state.es_context.typeContext().getReadableTypeArray())
 							.setQuery(QueryBuilders.constantScoreQuery(query._1()))
 							.setSize(1))
-						.map(s -> field_list.isEmpty() 
-								? s 
-								: include
-									? s.setFetchSource(field_list.toArray(new String[0]), new String[0])
-									: s.setFetchSource(new String[0], field_list.toArray(new String[0]))
-							)
+						.map(s -> applyFieldList(s, field_list, include))
 						.get();
 			
 			return ElasticsearchFutureUtils.wrap(srb.execute(), sr -> {
 				final SearchHit[] sh = sr.getHits().hits();
 				
 				if (sh.length > 0) {
-					final Map<String, Object> src_fields = sh[0].getSource();
-					src_fields.computeIfAbsent("_id", __ -> sh[0].getId());
-					return Optional.ofNullable(_object_mapper.convertValue(src_fields, _state.clazz));
+					return Optional.ofNullable(convertHit(sh[0]));
 				}
 				else {
 					return Optional.empty();
@@ -630,36 +856,32 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	@Override
 	public CompletableFuture<ICrudService.Cursor<O>> getObjectsBySpec(QueryComponent<O> spec, List<String> field_list, boolean include) {
 		try {
-			//TODO (ALEPH-14): Handle case where no source is present but fields are
-			
 			Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(spec, _state.id_ranges_ok);
 			
+			final boolean use_scroll = (null == spec.getLimit()) || (spec.getLimit() > SCROLL_PAGE_SIZE);
+			
 			final SearchRequestBuilder srb = Optional
 						.of(
 							_state.client.prepareSearch()
-							.setIndices(_state.es_context.indexContext().getReadableIndexArray(Optional.empty()))
+							.setIndices(getReadableIndexArray(spec))
 							.setTypes(_state.es_context.typeContext().getReadableTypeArray())
 							.setQuery(QueryBuilders.constantScoreQuery(query._1()))							
 							)
-						.map(s -> (null != spec.getLimit())
-									? s.setSize(spec.getLimit().intValue())
-									: s)
+						// (small limited queries are returned in one go, otherwise scroll through the results a page at a time)
+						.map(s -> use_scroll
+									? s.setScroll(SCROLL_KEEP_ALIVE).setSize(SCROLL_PAGE_SIZE)
+									: s.setSize(spec.getLimit().intValue()))
 						.map(s -> (null != spec.getOrderBy())
 									? spec.getOrderBy().stream()
 											.reduce(s, 
 													(ss, sort) -> ss.addSort(sort._1(), sort._2() > 0 ? SortOrder.ASC : SortOrder.DESC), 
 													(s1, s2) -> s1)
 									: s)
-						.map(s -> field_list.isEmpty() 
-								? s 
-								: include
-									? s.setFetchSource(field_list.toArray(new String[0]), new String[0])
-									: s.setFetchSource(new String[0], field_list.toArray(new String[0]))
-							)
+						.map(s -> applyFieldList(s, field_list, include))
 						.get();
 			
 			return ElasticsearchFutureUtils.wrap(srb.execute(), sr -> {				
-				return new ElasticsearchCursor(sr);
+				return new ElasticsearchCursor(sr, Optional.ofNullable(spec.getLimit()));
 			},
 			(err, future) -> {
 				if (err instanceof IndexMissingException) { // just treat this like an "object not found"
@@ -685,7 +907,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 			Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(spec, _state.id_ranges_ok);
 			
 			final CountRequestBuilder crb = _state.client.prepareCount()
-					.setIndices(_state.es_context.indexContext().getReadableIndexArray(Optional.empty()))
+					.setIndices(getReadableIndexArray(spec))
 					.setTypes(_state.es_context.typeContext().getReadableTypeArray())
 					.setQuery(QueryBuilders.constantScoreQuery(query._1()))
 					;
@@ -708,11 +930,77 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		}
 	}
 
+	/** Computes an aggregation over the objects matching a spec inside elasticsearch (eg counts per day), rather than retrieving the objects
+	 * @param spec - the query (only the filter is used, the limit/order by are ignored)
+	 * @param aggregation - the aggregation to perform, see ElasticsearchAggregation
+	 * @return a future containing the typed aggregation result
+	 */
+	public <R> CompletableFuture<R> aggregateBySpec(final QueryComponent<O> spec, final ElasticsearchAggregation<R> aggregation) {
+		return executeAggregations(spec, Arrays.asList(aggregation))
+				.thenApply(aggs -> aggregation.convertResult(aggs.map(a -> (Aggregation) a.get(aggregation.name()))));
+	}
+	
+	/** Computes multiple aggregations over the objects matching a spec in a single request
+	 * @param spec - the query (only the filter is used, the limit/order by are ignored)
+	 * @param aggregations - the aggregations to perform (with unique names), see ElasticsearchAggregation
+	 * @return a future containing a map of aggregation name to result (whose type is the aggregation's result type)
+	 */
+	public CompletableFuture<Map<String, Object>> aggregateBySpec(final QueryComponent<O> spec, final List<ElasticsearchAggregation<?>> aggregations) {
+		return executeAggregations(spec, aggregations)
+				.thenApply(aggs -> aggregations.stream()
+										.collect(Collectors.toMap(
+												agg -> agg.name(), 
+												agg -> (Object) agg.convertResult(aggs.map(a -> (Aggregation) a.get(agg.name()))),
+												(a1, a2) -> a1,
+												LinkedHashMap::new)));
+	}
+	
+	/** Runs a count-only search for the given aggregations
+	 * @param spec - the query
+	 * @param aggregations - the aggregations to perform
+	 * @return a future containing the elasticsearch aggregation results, or Optional.empty() if there were no indexes
+	 */
+	protected CompletableFuture<Optional<Aggregations>> executeAggregations(final QueryComponent<O> spec, final List<? extends ElasticsearchAggregation<?>> aggregations) {
+		try {
+			final Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(spec, _state.id_ranges_ok);
+			
+			final SearchRequestBuilder srb = aggregations.stream()
+					.reduce(
+						_state.client.prepareSearch()
+							.setIndices(getReadableIndexArray(spec))
+							.setTypes(_state.es_context.typeContext().getReadableTypeArray())
+							.setQuery(QueryBuilders.constantScoreQuery(query._1()))
+							.setSearchType(SearchType.COUNT)
+							.setSize(0), 
+						(s, agg) -> s.addAggregation(agg.getAggregationBuilder()), 
+						(s1, s2) -> s1);
+			
+			return ElasticsearchFutureUtils.wrap(srb.execute(), sr -> {
+				return Optional.ofNullable(sr.getAggregations());
+			},
+			(err, future) -> {
+				if (err instanceof IndexMissingException) {
+					future.complete(Optional.empty());
+				}
+				else {
+					future.completeExceptionally(err);
+				}
+			}
+			);
+		}
+		catch (Exception e) {
+			return FutureUtils.returnError(e);
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#countObjects()
 	 */
 	@Override
 	public CompletableFuture<Long> countObjects() {
+		if (_count_cache_ttl.isPresent() && isCountCacheable()) {
+			return getCachedCount(false);
+		}
 		try {			
 			final CountRequestBuilder crb = _state.client.prepareCount()
 					.setIndices(_state.es_context.indexContext().getReadableIndexArray(Optional.empty()))
@@ -737,82 +1025,407 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		}
 	}
 
+	/** Enables (or disables) serving countObjects() from a short-lived cache of index stats doc counts, shared across services
+	 *  (Only used when the service owns every type in its indexes, ie auto types; note that index stats lag behind the index's refresh, 
+	 *   and count nested documents separately - counts by spec always go to elasticsearch)
+	 * @param ttl - how long a cached count is used for before re-fetching it, eg DEFAULT_COUNT_CACHE_TTL (Optional.empty() to always count)
+	 */
+	public void setCountCacheTtl(final Optional<Duration> ttl) {
+		_count_cache_ttl = ttl;
+	}
+	
+	/** Re-fetches the cached count for this service's indexes (eg after a known change), regardless of its age
+	 * @return a future containing the up-to-date count
+	 */
+	public CompletableFuture<Long> refreshCachedCount() {
+		return getCachedCount(true);
+	}
+	
+	/** Whether the index stats doc count is the same as the count of objects in this service, ie whether the service owns all the types in its indexes
+	 * @return true if countObjects can use the count cache
+	 */
+	protected boolean isCountCacheable() {
+		final ElasticsearchContext.TypeContext type_context = _state.es_context.typeContext();
+		return (type_context instanceof ElasticsearchContext.TypeContext.ReadOnlyTypeContext.AutoRoTypeContext)
+				|| (type_context instanceof ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext)
+				|| type_context.getReadableTypeList().isEmpty();
+	}
+	
+	/** Returns the doc count of this service's indexes from the shared cache, fetching it from the index stats if it's missing or too old
+	 *  (Concurrent callers share a single in-flight stats request)
+	 * @param force_refresh - if true, always re-fetches the count
+	 * @return a future containing the count
+	 */
+	protected CompletableFuture<Long> getCachedCount(final boolean force_refresh) {
+		final String[] indexes = _state.es_context.indexContext().getReadableIndexArray(Optional.empty());
+		final Tuple2<Client, String> key = Tuples._2T(_state.client, String.join(",", indexes));
+		final long ttl_ms = _count_cache_ttl.orElse(DEFAULT_COUNT_CACHE_TTL).toMillis();
+		
+		return _count_cache.asMap().compute(key, (k, v) -> {
+			final long now = System.currentTimeMillis();
+			if (!force_refresh && (null != v) && ((now - v._1()) < ttl_ms) && !v._2().isCompletedExceptionally()) {
+				return v;
+			}
+			final CompletableFuture<Long> count = ElasticsearchFutureUtils.wrap(
+					_state.client.admin().indices().prepareStats(indexes).clear().setDocs(true).setIndicesOptions(IndicesOptions.lenientExpandOpen()).execute(),
+					ir -> Optional.ofNullable(ir.getPrimaries()).map(p -> p.getDocs()).map(d -> d.getCount()).orElse(0L),
+					(err, future) -> {
+						if (err instanceof IndexMissingException) {
+							future.complete(0L);
+						}
+						else {
+							future.completeExceptionally(err);
+						}
+					});
+			return Tuples._2T(now, count);
+		})
+		._2();
+	}
+	
+	protected volatile Optional<Duration> _count_cache_ttl = Optional.empty();
+	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectById(java.lang.Object, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
 	 */
 	@Override
-	public CompletableFuture<Boolean> updateObjectById(Object id,
-			UpdateComponent<O> update) {
-		//TODO (ALEPH-14): TO BE IMPLEMENTED
-		try {
-			throw new RuntimeException(ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "updateObjectById"));
-		}
-		catch (Exception e) {
-			return FutureUtils.returnError(e);
-		}
+	public CompletableFuture<Boolean> updateObjectById(final Object id, final UpdateComponent<O> update) {
+		return updateObjectBySpec(CrudUtils.allOf(_state.clazz).when("_id", id.toString()), Optional.of(false), update);
 	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
 	 */
 	@Override
-	public CompletableFuture<Boolean> updateObjectBySpec(
-			QueryComponent<O> unique_spec, Optional<Boolean> upsert,
-			UpdateComponent<O> update) {
-		// TODO Auto-generated method stub
-		return null;
+	public CompletableFuture<Boolean> updateObjectBySpec(final QueryComponent<O> unique_spec, final Optional<Boolean> upsert, final UpdateComponent<O> update) {
+		try {
+			final ReadWriteContext rw_context = getRwContextOrThrow(_state.es_context, "updateObjectBySpec");
+			final boolean refresh = CreationPolicy.OPTIMIZED != _state.creation_policy;
+			
+			return getFirstMatchingHit(unique_spec, !ElasticsearchUtils.isPartialDocUpdate(update, _object_mapper))
+					.thenCompose(maybe_hit -> maybe_hit
+							.map(hit -> executeActions(Arrays.asList(buildUpdateAction(hit, update, refresh)), refresh).thenApply(n -> n > 0))
+							.orElseGet(() -> upsert.orElse(false)
+									? upsertObject(rw_context, unique_spec, update).thenApply(__ -> true)
+									: CompletableFuture.completedFuture(false)));
+		}
+		catch (Exception e) {
+			return FutureUtils.returnError(e);
+		}
 	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent)
 	 */
 	@Override
-	public CompletableFuture<Long> updateObjectsBySpec(QueryComponent<O> spec,
-			Optional<Boolean> upsert, UpdateComponent<O> update) {
-		// TODO Auto-generated method stub
-		return null;
+	public CompletableFuture<Long> updateObjectsBySpec(final QueryComponent<O> spec, final Optional<Boolean> upsert, final UpdateComponent<O> update) {
+		try {
+			final ReadWriteContext rw_context = getRwContextOrThrow(_state.es_context, "updateObjectsBySpec");
+			final boolean refresh = CreationPolicy.AVAILABLE_IMMEDIATELY == _state.creation_policy;
+			ElasticsearchUtils.validateUpdate(update).ifPresent(error -> { throw new RuntimeException(error); }); // (fail before any page has been updated)
+			
+			// (only upsert if nothing matched - if objects matched but all their updates failed, eg version conflicts, then that's just returned)
+			return applyToMatchingHits(spec, !ElasticsearchUtils.isPartialDocUpdate(update, _object_mapper), hit -> buildUpdateAction(hit, update, refresh), refresh)
+					.thenCompose(matched_succeeded -> ((0 == matched_succeeded._1()) && upsert.orElse(false))
+							? upsertObject(rw_context, spec, update).thenApply(__ -> 1L)
+							: CompletableFuture.completedFuture(matched_succeeded._2()));
+		}
+		catch (Exception e) {
+			return FutureUtils.returnError(e);
+		}
 	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#updateAndReturnObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent, java.util.Optional, com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent, java.util.Optional, java.util.List, boolean)
 	 */
 	@Override
-	public CompletableFuture<Optional<O>> updateAndReturnObjectBySpec(
-			QueryComponent<O> unique_spec, Optional<Boolean> upsert,
-			UpdateComponent<O> update, Optional<Boolean> before_updated,
-			List<String> field_list, boolean include) {
-		// TODO Auto-generated method stub
-		return null;
+	public CompletableFuture<Optional<O>> updateAndReturnObjectBySpec(final QueryComponent<O> unique_spec, final Optional<Boolean> upsert, final UpdateComponent<O> update, 
+			final Optional<Boolean> before_updated, final List<String> field_list, final boolean include)
+	{
+		try {
+			final ReadWriteContext rw_context = getRwContextOrThrow(_state.es_context, "updateAndReturnObjectBySpec");
+			final boolean refresh = CreationPolicy.OPTIMIZED != _state.creation_policy;
+			final boolean return_before = before_updated.orElse(false);
+			
+			return getFirstMatchingHit(unique_spec, true)
+					.thenCompose(maybe_hit -> maybe_hit
+							.map(hit -> {
+								final ObjectNode before = getSourceWithId(hit);
+								final boolean is_delete = ElasticsearchUtils.isDeleteObjectUpdate(update);
+								final ObjectNode after = is_delete ? null : ElasticsearchUtils.applyUpdate(before.deepCopy(), update, _object_mapper);
+								final ActionRequest<?> action = is_delete
+										? new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId())
+										: buildVersionedIndexRequest(hit, after);
+								
+								return executeActions(Arrays.asList(action), refresh)
+										.thenApply(n -> (0 == n) 
+												? Optional.<O>empty() 
+												: Optional.ofNullable(return_before ? before : after).map(json -> convertJson(json, field_list, include)));
+							})
+							.orElseGet(() -> upsert.orElse(false)
+									? upsertObject(rw_context, unique_spec, update).thenApply(json -> return_before ? Optional.<O>empty() : Optional.of(convertJson(json, field_list, include)))
+									: CompletableFuture.completedFuture(Optional.<O>empty())));
+		}
+		catch (Exception e) {
+			return FutureUtils.returnError(e);
+		}
 	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectById(java.lang.Object)
 	 */
 	@Override
-	public CompletableFuture<Boolean> deleteObjectById(Object id) {
-		// TODO Auto-generated method stub
-		return null;
+	public CompletableFuture<Boolean> deleteObjectById(final Object id) {
+		return deleteObjectBySpec(CrudUtils.allOf(_state.clazz).when("_id", id.toString()));
 	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
 	 */
 	@Override
-	public CompletableFuture<Boolean> deleteObjectBySpec(
-			QueryComponent<O> unique_spec) {
-		// TODO Auto-generated method stub
-		return null;
+	public CompletableFuture<Boolean> deleteObjectBySpec(final QueryComponent<O> unique_spec) {
+		try {
+			getRwContextOrThrow(_state.es_context, "deleteObjectBySpec");
+			final boolean refresh = CreationPolicy.OPTIMIZED != _state.creation_policy;
+			
+			return getFirstMatchingHit(unique_spec, false)
+					.thenCompose(maybe_hit -> maybe_hit
+							.map(hit -> executeActions(Arrays.asList(new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId())), refresh).thenApply(n -> n > 0))
+							.orElseGet(() -> CompletableFuture.completedFuture(false)));
+		}
+		catch (Exception e) {
+			return FutureUtils.returnError(e);
+		}
 	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteObjectsBySpec(com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent)
 	 */
 	@Override
-	public CompletableFuture<Long> deleteObjectsBySpec(QueryComponent<O> spec) {
-		// TODO Auto-generated method stub
-		return null;
+	public CompletableFuture<Long> deleteObjectsBySpec(final QueryComponent<O> spec) {
+		try {
+			getRwContextOrThrow(_state.es_context, "deleteObjectsBySpec");
+			final boolean refresh = CreationPolicy.AVAILABLE_IMMEDIATELY == _state.creation_policy;
+			
+			return applyToMatchingHits(spec, false, hit -> new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId()), refresh)
+					.thenApply(matched_succeeded -> matched_succeeded._2());
+		}
+		catch (Exception e) {
+			return FutureUtils.returnError(e);
+		}
 	}
 
+	////////////////////////////////////////////////////
+	
+	// UPDATE/DELETE UTILS
+	
+	/** Builds the search used to find the objects to update/delete (missing indexes are ignored)
+	 * @param indexes - the indexes to search
+	 * @param spec - the query
+	 * @param need_source - whether the update needs the object's source (else only the _index/_type/_id/_version are returned)
+	 * @return the search request builder, with paging/scrolling left to the caller
+	 */
+	protected SearchRequestBuilder buildMatchingSearch(final String[] indexes, final QueryComponent<O> spec, final boolean need_source) {
+		final Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> query = ElasticsearchUtils.convertToElasticsearchFilter(spec, _state.id_ranges_ok);
+		
+		return Optional
+				.of(
+					_state.client.prepareSearch()
+						.setIndices(indexes)
+						.setIndicesOptions(IndicesOptions.lenientExpandOpen())
+						.setTypes(_state.es_context.typeContext().getReadableTypeArray())
+						.setQuery(QueryBuilders.constantScoreQuery(query._1()))
+						.setVersion(true)
+						.setFetchSource(need_source)
+					)
+				.map(s -> (null != spec.getOrderBy())
+							? spec.getOrderBy().stream()
+									.reduce(s, 
+											(ss, sort) -> ss.addSort(sort._1(), sort._2() > 0 ? SortOrder.ASC : SortOrder.DESC), 
+											(s1, s2) -> s1)
+							: s)
+				.get();
+	}
+	
+	/** Returns the first object matching a (unique) spec
+	 * @param unique_spec - the query
+	 * @param need_source - whether to return the object's source
+	 * @return a future containing the hit, if there was one
+	 */
+	protected CompletableFuture<Optional<SearchHit>> getFirstMatchingHit(final QueryComponent<O> unique_spec, final boolean need_source) {
+		return ElasticsearchFutureUtils.wrap(buildMatchingSearch(getReadableIndexArray(unique_spec), unique_spec, need_source).setSize(1).execute(), 
+				sr -> Optional.ofNullable((sr.getHits().hits().length > 0) ? sr.getHits().hits()[0] : null),
+				(err, future) -> {
+					if (err instanceof IndexMissingException) { // just treat this like an "object not found"
+						future.complete(Optional.empty());
+					}
+					else {
+						future.completeExceptionally(err);
+					}
+				});
+	}
+	
+	/** Streams the objects matching a spec through a scroll, and applies a bulk action (update/delete) to each page of them
+	 *  If the spec has no limit, each of the readable indexes (or groups of time-based indexes) is processed in parallel
+	 * @param spec - the query
+	 * @param need_source - whether building the action needs the object's source
+	 * @param action_builder - converts a hit into the update/delete request to apply to it
+	 * @param refresh - whether to refresh the indexes after each bulk request
+	 * @return a future containing the number of objects that matched, and the number successfully updated/deleted
+	 */
+	protected CompletableFuture<Tuple2<Long, Long>> applyToMatchingHits(final QueryComponent<O> spec, final boolean need_source, final Function<SearchHit, ActionRequest<?>> action_builder, final boolean refresh) {
+		final Optional<Long> limit = Optional.ofNullable(spec.getLimit());
+		final String[] indexes = getReadableIndexArray(spec);
+		
+		final List<String[]> index_groups = limit.isPresent()
+				? Arrays.<String[]>asList(indexes)
+				: Arrays.stream(indexes).distinct().map(index -> new String[] { index }).collect(Collectors.toList());
+		
+		final List<CompletableFuture<Tuple2<Long, Long>>> results = index_groups.stream()
+				.map(index_group -> 
+					ElasticsearchFutureUtils.wrap(
+							buildMatchingSearch(index_group, spec, need_source)
+								.setScroll(SCROLL_KEEP_ALIVE)
+								.setSize(limit.map(l -> (int)Math.min(l, SCROLL_PAGE_SIZE)).orElse(SCROLL_PAGE_SIZE))
+								.execute(),
+							sr -> Optional.of(sr),
+							(Throwable err, CompletableFuture<Optional<SearchResponse>> future) -> {
+								if (err instanceof IndexMissingException) {
+									future.complete(Optional.empty());
+								}
+								else {
+									future.completeExceptionally(err);
+								}
+							})
+						.thenCompose(maybe_sr -> maybe_sr
+								.map(sr -> applyToScrollPage(sr, action_builder, Tuples._2T(0L, 0L), limit, refresh))
+								.orElseGet(() -> CompletableFuture.completedFuture(Tuples._2T(0L, 0L)))))
+				.collect(Collectors.toList());
+		
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+				.thenApply(__ -> Tuples._2T(results.stream().mapToLong(f -> f.join()._1()).sum(), results.stream().mapToLong(f -> f.join()._2()).sum()));
+	}
+	
+	/** Recursive utility for applyToMatchingHits - applies the action to a page of hits, then fetches the next page
+	 * @param sr - the current page of the scroll
+	 * @param action_builder - converts a hit into the update/delete request to apply to it
+	 * @param matched_succeeded - the number of objects matched, and the number successfully updated/deleted, so far
+	 * @param remaining - the max number of objects still to update/delete (if the spec had a limit)
+	 * @param refresh - whether to refresh the indexes after each bulk request
+	 * @return a future containing the number of objects that matched, and the number successfully updated/deleted
+	 */
+	protected CompletableFuture<Tuple2<Long, Long>> applyToScrollPage(final SearchResponse sr, final Function<SearchHit, ActionRequest<?>> action_builder, 
+			final Tuple2<Long, Long> matched_succeeded, final Optional<Long> remaining, final boolean refresh)
+	{
+		final SearchHit[] hits = sr.getHits().hits();
+		final int to_process = remaining.map(l -> (int)Math.min(hits.length, l)).orElse(hits.length);
+		final Optional<Long> still_remaining = remaining.map(l -> l - to_process);
+		final boolean is_last_page = (hits.length < SCROLL_PAGE_SIZE) || still_remaining.map(l -> l <= 0).orElse(false) || (null == sr.getScrollId());
+		
+		final CompletableFuture<Long> this_page = (to_process > 0)
+				? executeActions(Arrays.stream(hits, 0, to_process).map(action_builder).collect(Collectors.toList()), refresh)
+				: CompletableFuture.completedFuture(0L);
+		
+		return this_page.thenCompose(n -> {
+			final Tuple2<Long, Long> so_far = Tuples._2T(matched_succeeded._1() + to_process, matched_succeeded._2() + n);
+			if (is_last_page) {
+				Optional.ofNullable(sr.getScrollId()).ifPresent(scroll_id -> _state.client.prepareClearScroll().addScrollId(scroll_id).execute());
+				return CompletableFuture.completedFuture(so_far);
+			}
+			else {
+				return ElasticsearchFutureUtils.wrap(_state.client.prepareSearchScroll(sr.getScrollId()).setScroll(SCROLL_KEEP_ALIVE).execute(), next_sr -> next_sr)
+							.thenCompose(next_sr -> applyToScrollPage(next_sr, action_builder, so_far, still_remaining, refresh));
+			}
+		});
+	}
+	
+	/** Sends a set of update/delete requests to elasticsearch in a single bulk request
+	 * @param actions - the requests
+	 * @param refresh - whether to refresh the indexes afterwards
+	 * @return a future containing the number of requests that succeeded (eg version conflicts count as failures)
+	 */
+	protected CompletableFuture<Long> executeActions(final List<ActionRequest<?>> actions, final boolean refresh) {
+		final BulkRequestBuilder brb = _state.client.prepareBulk()
+											.setConsistencyLevel(WriteConsistencyLevel.ONE)
+											.setRefresh(refresh);
+		actions.stream().forEach(action -> brb.request().add(action));
+		
+		return ElasticsearchFutureUtils.wrap(brb.execute(), br -> 
+					StreamSupport.stream(br.spliterator(), false).filter(bir -> !bir.isFailed()).count());
+	}
+	
+	/** Converts a hit into the update/delete request that applies the update to it
+	 * @param hit - the object to update (with its source unless the update is a partial doc update)
+	 * @param update - the generic update component
+	 * @param refresh - whether to refresh the index after the update (ignored for bulk updates)
+	 * @return the delete, partial update, or (version checked) index request to apply
+	 */
+	protected ActionRequest<?> buildUpdateAction(final SearchHit hit, final UpdateComponent<O> update, final boolean refresh) {
+		if (ElasticsearchUtils.isDeleteObjectUpdate(update)) {
+			return new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId());
+		}
+		else if (ElasticsearchUtils.isPartialDocUpdate(update, _object_mapper)) {
+			return new UpdateRequest(hit.getIndex(), hit.getType(), hit.getId())
+						.doc(serializeSource(ElasticsearchUtils.createPartialUpdateDoc(update, _object_mapper)).toBytes());
+		}
+		else {
+			return buildVersionedIndexRequest(hit, ElasticsearchUtils.applyUpdate(getSourceWithId(hit), update, _object_mapper));
+		}
+	}
+	
+	/** Builds the request to overwrite an object with its updated source, failing if it has been modified since it was read
+	 * @param hit - the original object
+	 * @param updated - the updated source
+	 * @return the index request
+	 */
+	protected IndexRequest buildVersionedIndexRequest(final SearchHit hit, final ObjectNode updated) {
+		final IndexRequest ir = new IndexRequest(hit.getIndex(), hit.getType(), hit.getId()).source(serializeSource(updated));
+		return (hit.getVersion() > 0) ? ir.version(hit.getVersion()) : ir;
+	}
+	
+	/** Creates and stores the object for an upsert that didn't match anything
+	 * @param rw_context - the context to write into
+	 * @param spec - the query that didn't match anything
+	 * @param update - the generic update component
+	 * @return a future containing the new object
+	 */
+	protected CompletableFuture<ObjectNode> upsertObject(final ReadWriteContext rw_context, final QueryComponent<O> spec, final UpdateComponent<O> update) {
+		final ObjectNode new_object = ElasticsearchUtils.createUpsertDoc(spec, update, _object_mapper);
+		final IndexRequestBuilder irb = singleObjectIndexRequest(
+				Either.right(Tuples._2T(rw_context.indexContext().getWritableIndex(Optional.of(new_object)), rw_context.typeContext().getWriteType())),
+				Either.right(Tuples._2T(new_object.has("_id") ? new_object.get("_id").asText() : null, serializeSource(new_object))), 
+				false, false);
+		
+		return ElasticsearchFutureUtils.wrap(irb.execute(), ir -> {
+			new_object.put("_id", ir.getId());
+			return new_object;
+		});
+	}
+	
+	/** Returns a hit's source as a mutable JSON object, including its _id
+	 * @param hit - the hit (must include its source)
+	 * @return the object's source
+	 */
+	protected ObjectNode getSourceWithId(final SearchHit hit) {
+		final ObjectNode json = _object_mapper.convertValue(hit.getSource(), ObjectNode.class);
+		if (!json.has("_id")) json.put("_id", hit.getId());
+		return json;
+	}
+	
+	/** Converts a JSON object into the service's object type, optionally including/excluding some fields
+	 * @param json - the object
+	 * @param field_list - the fields to include/exclude (empty for all fields)
+	 * @param include - whether field_list is the fields to include (the _id is always included) or exclude 
+	 * @return the converted object
+	 */
+	protected O convertJson(final ObjectNode json, final List<String> field_list, final boolean include) {
+		final ObjectNode to_convert = field_list.isEmpty()
+				? json
+				: include
+					? json.retain(Lambdas.get(() -> { final List<String> l = new LinkedList<String>(field_list); l.add("_id"); return l; }))
+					: json.without(field_list);
+		return _object_mapper.convertValue(to_convert, _state.clazz);
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService#deleteDatastore()
 	 */
@@ -879,8 +1492,131 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	 */
 	@Override
 	public Optional<IBasicSearchService<O>> getSearchService() {
-		//TODO (ALEPH-14): TO BE IMPLEMENTED
-		throw new RuntimeException(ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "getSearchService"));
+		return Optional.of(_search_service);
+	}
+	protected final ElasticsearchSearchService _search_service = new ElasticsearchSearchService();
+	
+	/** A search service that runs full text queries (with highlighting and aggregations) directly against the CRUD service's indexes
+	 *  Results are returned via the same paging (scrolling) cursor as getObjectsBySpec
+	 * @author Alex
+	 */
+	public class ElasticsearchSearchService implements IBasicSearchService<O> {
+		protected ElasticsearchSearchService() {}
+		
+		/** Runs a full text query, returning only matching objects
+		 * @param full_text_query - a query string (lucene syntax), or Optional.empty() to match everything
+		 * @param filter_spec - a CRUD query that the results must also match (its limit and order by are also applied, else results are ordered by score)
+		 * @return a future containing a cursor over the results
+		 */
+		public CompletableFuture<ElasticsearchSearchCursor> search(final Optional<String> full_text_query, final QueryComponent<O> filter_spec) {
+			return search(full_text_query, filter_spec, Collections.emptyList(), Optional.empty());
+		}
+		
+		/** Runs a full text query, with highlighting and aggregations
+		 * @param full_text_query - a query string (lucene syntax), or Optional.empty() to match everything
+		 * @param filter_spec - a CRUD query that the results must also match (its limit and order by are also applied, else results are ordered by score)
+		 * @param highlight_fields - the fields to return highlighted fragments for (see ElasticsearchSearchCursor.hitsWithHighlights)
+		 * @param aggregations - elasticsearch aggregation JSON (ie the contents of the "aggs" object), passed through unchanged
+		 * @return a future containing a cursor over the results, whose getAggregations() contains the aggregation results
+		 */
+		public CompletableFuture<ElasticsearchSearchCursor> search(final Optional<String> full_text_query, final QueryComponent<O> filter_spec, 
+																	final List<String> highlight_fields, final Optional<JsonNode> aggregations)
+		{
+			try {
+				final Tuple2<FilterBuilder, UnaryOperator<SearchRequestBuilder>> filter = ElasticsearchUtils.convertToElasticsearchFilter(filter_spec, _state.id_ranges_ok);
+				final QueryBuilder query = full_text_query.<QueryBuilder>map(q -> QueryBuilders.queryStringQuery(q)).orElseGet(() -> QueryBuilders.matchAllQuery());
+				
+				final boolean use_scroll = (null == filter_spec.getLimit()) || (filter_spec.getLimit() > SCROLL_PAGE_SIZE);
+				
+				final SearchRequestBuilder srb = Optional
+							.of(
+								_state.client.prepareSearch()
+								.setIndices(getReadableIndexArray(filter_spec))
+								.setTypes(_state.es_context.typeContext().getReadableTypeArray())
+								.setQuery(QueryBuilders.filteredQuery(query, filter._1()))
+								)
+							.map(s -> use_scroll
+										? s.setScroll(SCROLL_KEEP_ALIVE).setSize(SCROLL_PAGE_SIZE)
+										: s.setSize(filter_spec.getLimit().intValue()))
+							.map(s -> (null != filter_spec.getOrderBy())
+										? filter_spec.getOrderBy().stream()
+												.reduce(s, 
+														(ss, sort) -> ss.addSort(sort._1(), sort._2() > 0 ? SortOrder.ASC : SortOrder.DESC), 
+														(s1, s2) -> s1)
+										: s)
+							.map(s -> highlight_fields.stream().reduce(s, (ss, field) -> ss.addHighlightedField(field), (s1, s2) -> s1))
+							.map(Lambdas.wrap_u(s -> aggregations.isPresent() ? s.setAggregations(_object_mapper.writeValueAsBytes(aggregations.get())) : s))
+							.get();
+				
+				return ElasticsearchFutureUtils.wrap(srb.execute(), sr -> {				
+					return new ElasticsearchSearchCursor(sr, Optional.ofNullable(filter_spec.getLimit()));
+				},
+				(err, future) -> {
+					if (err instanceof IndexMissingException) { // just treat this like an "object not found"
+						future.complete(new ElasticsearchSearchCursor(null, Optional.empty()));
+					}
+					else {
+						future.completeExceptionally(err);
+					}
+				}
+				);
+			}
+			catch (Exception e) {
+				return FutureUtils.returnError(e);
+			}
+		}
+		
+		/* (non-Javadoc)
+		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService#getUnderlyingPlatformDriver(java.lang.Class, java.util.Optional)
+		 */
+		public <T> Optional<T> getUnderlyingPlatformDriver(final Class<T> driver_class, final Optional<String> driver_options) {
+			return ElasticsearchCrudService.this.getUnderlyingPlatformDriver(driver_class, driver_options);
+		}
+	}
+	
+	/** A cursor over the results of a search service query - as ElasticsearchCursor but also exposes the aggregations and highlights
+	 * @author Alex
+	 */
+	public class ElasticsearchSearchCursor extends ElasticsearchCursor {
+		protected ElasticsearchSearchCursor(final SearchResponse sr, final Optional<Long> limit) {
+			super(sr, limit);
+			_aggregations = Optional.ofNullable(sr).map(r -> r.getAggregations()).map(aggs -> convertAggregations(aggs));
+		}
+		protected final Optional<JsonNode> _aggregations;
+		
+		/** Returns the aggregation results
+		 * @return the aggregation results JSON (keyed on aggregation name), if aggregations were requested
+		 */
+		public Optional<JsonNode> getAggregations() {
+			return _aggregations;
+		}
+		
+		/** Iterates over the results together with their highlighted fragments (like iterator(), can only be called once for scrolling results) 
+		 * @return an iterator over (object, map of field name to highlighted fragments)
+		 */
+		public Iterator<Tuple2<O, Map<String, List<String>>>> hitsWithHighlights() {
+			return iterator(hit -> Tuples._2T(convertHit(hit), 
+					Optional.ofNullable(hit.getHighlightFields()).orElse(Collections.emptyMap()).values().stream()
+						.collect(Collectors.toMap(
+								(HighlightField hf) -> hf.getName(), 
+								(HighlightField hf) -> Optional.ofNullable(hf.getFragments()).map(frags -> Arrays.stream(frags).map(Text::string).collect(Collectors.toList())).orElse(Collections.emptyList())))
+					));
+		}
+		
+		/** Converts the ES aggregation results into JSON
+		 * @param aggs - the ES aggregation results
+		 * @return the JSON
+		 */
+		protected JsonNode convertAggregations(final Aggregations aggs) {
+			try {
+				final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+				((ToXContent) aggs).toXContent(builder, ToXContent.EMPTY_PARAMS);
+				return _object_mapper.readTree(builder.endObject().string()).get("aggregations");
+			}
+			catch (Exception e) {
+				throw new RuntimeException(ErrorUtils.getLongForm("convertAggregations: {0}", e), e);
+			}
+		}
 	}
 
 	/* (non-Javadoc)
@@ -892,9 +1628,32 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		if (ElasticsearchContext.class == driver_class) return (Optional<T>) Optional.of(_state.es_context);
 		else if (IMetaModel.class == driver_class) return (Optional<T>) getMetaModel(); 
 		else if (IDataWriteService.IBatchSubservice.class.isAssignableFrom(driver_class)) return (Optional<T>) this.getBatchWriteSubservice(); 
+		else if (ElasticsearchWriteMetrics.class == driver_class) return (Optional<T>) Optional.of(_write_metrics);
 		else return Optional.empty();
 	}
 
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	public static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofMillis(250L);
+	public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(30L);
+	public static final int DEFAULT_MAX_PENDING_RETRIES = 100000;
+	public static final int DEFAULT_BACKPRESSURE_BATCHES = 4; // (full batches per write thread that can be in flight before producers are blocked/rejected)
+	
+	/** Bulk failures that indicate the cluster is pushing back or temporarily unavailable, rather than a problem with the document
+	 *  (ConnectTransportException covers NodeNotConnectedException)
+	 */
+	protected static final List<Class<? extends Throwable>> TRANSIENT_FAILURES = Arrays.asList(
+			EsRejectedExecutionException.class, RejectedExecutionException.class,
+			NoNodeAvailableException.class, ConnectTransportException.class, NodeDisconnectedException.class,
+			UnavailableShardsException.class, ProcessClusterEventTimeoutException.class, ReceiveTimeoutTransportException.class,
+			ElasticsearchTimeoutException.class
+			);
+	
+	/** Bulk item failures only come back as messages, of the form "<exception>[<message>]; nested: <exception>[<message>]", so 
+	 *  this matches the transient exception names in that position (and not eg the same words inside a message) 
+	 */
+	protected static final Pattern TRANSIENT_FAILURE_MESSAGE = Pattern.compile("(?:^|[^A-Za-z0-9_$.])(?:" + 
+			TRANSIENT_FAILURES.stream().map(c -> c.getSimpleName()).collect(Collectors.joining("|")) + "|NodeNotConnectedException)\\[");
+	
 	/** A subsystem providing a simple interface to dump JSON objects in batch into the CRUD service, at the expense of less visibility
 	 * @author Alex
 	 *
@@ -903,14 +1662,25 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 	public class ElasticsearchBatchSubsystem implements IBatchSubservice<O> {
 
 		protected ElasticsearchBatchSubsystem() {
+			_write_metrics.registerGauge("inflight_docs", () -> getInflightDocs());
+			_write_metrics.registerGauge("inflight_bytes", () -> getInflightBytes());
+			_write_metrics.registerGauge("pending_retries", () -> (long) getPendingRetries());
+			_write_metrics.registerGauge("bulk_processor_stripes", () -> Optional.ofNullable(_stripes).map(stripes -> (long) stripes.length).orElse(0L));
+			
 			// Kick off thread that handles higher speed flushing
 			final ExecutorService executor = Executors.newSingleThreadExecutor();
 			executor.submit(() -> {
 				for (;;) {
 					if (_flush_now) {
-						synchronized (this) {
-							_current.flush(); // (must always be non-null because _flush_now can only be set if _current exists)
-							_flush_now = false;
+						_flush_now = false;
+						final BulkProcessor[] stripes = _stripes;
+						if (null != stripes) {
+							for (BulkProcessor stripe: stripes) {
+								try {
+									stripe.flush();
+								}
+								catch (IllegalStateException e) {} // (stripes swapped out and closed under us, which flushes them anyway)
+							}
 						}
 					}
 					TimeUnit.MILLISECONDS.sleep(50);
@@ -921,102 +1691,453 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		@Override
 		public void setBatchProperties(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads)
 		{
-			BulkProcessor old = null;
+			BulkProcessor[] old = null;
 			synchronized (this) {
-				old = _current;
-				_current = buildBulkProcessor(max_objects, size_kb, flush_interval, write_threads);
+				old = _stripes;
+				_stripes = buildStripes(max_objects, size_kb, flush_interval, write_threads);
 			}
-			if (null != old) old.close();
+			if (null != old) Arrays.stream(old).forEach(BulkProcessor::close);
 		}
 
-		protected BulkProcessor buildBulkProcessor() {
-			return buildBulkProcessor(_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_max_objects), 
+		protected BulkProcessor[] buildStripes() {
+			return buildStripes(_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_max_objects), 
 					_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_max_size_kb), 
 					_batch_write_settings.map(DataSchemaBean.WriteSettings::batch_flush_interval).map(i -> Duration.of(i, ChronoUnit.SECONDS)), 
 					_batch_write_settings.map(DataSchemaBean.WriteSettings::target_write_concurrency)
 					);
 		}
 		
+		/** Builds one bulk processor per write thread (plus one), each with a single concurrent request
+		 *  Producers are assigned to a stripe by thread, so the documents written by any one thread are sent in the order they were written, as before
+		 *  (and there is no ordering between threads, as before)
+		 * @param max_objects - the max number of objects per bulk request (per stripe)
+		 * @param size_kb - the max size of each bulk request (per stripe)
+		 * @param flush_interval - the max time a document can sit in a stripe before its bulk request is sent
+		 * @param write_threads - the number of additional stripes
+		 * @return the stripes
+		 */
+		protected BulkProcessor[] buildStripes(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
+			final int num_stripes = 1 + write_threads.orElse(0);
+			
+			final long batches_in_flight = DEFAULT_BACKPRESSURE_BATCHES*(long)num_stripes;
+			_default_max_inflight_docs = batches_in_flight*max_objects.orElse(1000);
+			_default_max_inflight_bytes = batches_in_flight*1024L*size_kb.orElse(10240L);
+			signalBudgetChange();
+			
+			final BulkProcessor[] stripes = new BulkProcessor[num_stripes];
+			for (int i = 0; i < num_stripes; ++i) {
+				stripes[i] = buildBulkProcessor(max_objects, size_kb, flush_interval, Optional.empty());
+			}
+			return stripes;
+		}
+		
+		/** Returns the current stripes, building them from the write settings the first time through
+		 * @return the current stripes
+		 */
+		protected BulkProcessor[] getStripes() {
+			final BulkProcessor[] stripes = _stripes;
+			if (null != stripes) {
+				return stripes;
+			}
+			synchronized (this) {
+				if (null == _stripes) {
+					_stripes = buildStripes();
+				}
+				return _stripes;
+			}
+		}
+		
+		/** Adds a request to the calling thread's stripe (without taking any locks other than the stripe's own)
+		 * @param ar - the request to add
+		 */
+		protected void addToStripe(final ActionRequest<?> ar) {
+			for (;;) {
+				final BulkProcessor[] stripes = getStripes();
+				try {
+					stripes[(int)(Thread.currentThread().getId() % stripes.length)].add(ar);
+					return;
+				}
+				catch (IllegalStateException e) { // (stripes were swapped out and closed by setBatchProperties under us, so try again with the new ones)
+					if (stripes == _stripes) throw e;
+				}
+			}
+		}
+		
 		@Override
-		public synchronized void storeObjects(final List<O> new_objects, final boolean replace_if_present) {
-			if (null == _current) {
-				_current = buildBulkProcessor();
+		public void storeObjects(final List<O> new_objects, final boolean replace_if_present) {
+			// (the budget for the whole batch is reserved before any of it is queued, so with the REJECT policy either all the objects are accepted or none are)
+			final List<IndexRequest> irs = new_objects.stream()
+												.map(new_object -> singleObjectIndexRequest(Either.left((ReadWriteContext) _state.es_context), 
+																		Either.left(new_object), replace_if_present, true).request())
+												.collect(Collectors.toList());
+			if (irs.isEmpty()) {
+				return;
 			}
-			new_objects.stream().forEach(new_object -> 			
-				_current.add(singleObjectIndexRequest(Either.left((ReadWriteContext) _state.es_context), 
-					Either.left(new_object), replace_if_present, true).request()));
+			acquireBudget(irs.size(), irs.stream().mapToLong(ir -> getRequestSize(ir)).sum(), false);
+			irs.stream().forEach(ir -> addToStripe(ir));
+			_write_metrics.recordSubmitted(irs.size());
 		}
 
 		@Override
-		public synchronized void storeObject(final O new_object, final boolean replace_if_present) {
-			if (null == _current) {
-				_current = buildBulkProcessor();
-			}			
-			_current.add(singleObjectIndexRequest(Either.left((ReadWriteContext) _state.es_context), 
-							Either.left(new_object), replace_if_present, true).request());
+		public void storeObject(final O new_object, final boolean replace_if_present) {
+			final IndexRequest ir = singleObjectIndexRequest(Either.left((ReadWriteContext) _state.es_context), 
+										Either.left(new_object), replace_if_present, true).request();
+			
+			acquireBudget(1L, getRequestSize(ir), false);
+			addToStripe(ir);
+			_write_metrics.recordSubmitted(1L);
+		}
+		
+		/** Sets the limits on how much data can be "in flight" (ie handed to the batch subsystem but not yet acknowledged by elasticsearch)
+		 *  and what happens to writes that would exceed them. By default the limits are DEFAULT_BACKPRESSURE_BATCHES full batches per write thread 
+		 * @param max_inflight_docs - the maximum number of documents in flight (defaults to a multiple of the batch size)
+		 * @param max_inflight_kb - the maximum size in KB of the documents in flight (defaults to a multiple of the batch size)
+		 * @param policy - whether to block or reject writes that exceed the budget (defaults to BLOCK)
+		 */
+		public void setBackpressure(final Optional<Long> max_inflight_docs, final Optional<Long> max_inflight_kb, final Optional<BackpressurePolicy> policy) {
+			_max_inflight_docs_override = max_inflight_docs;
+			_max_inflight_bytes_override = max_inflight_kb.map(kb -> 1024L*kb);
+			_backpressure_policy = policy.orElse(BackpressurePolicy.BLOCK);
+			signalBudgetChange();
+		}
+		
+		/** The number of documents handed to the batch subsystem but not yet acknowledged by elasticsearch
+		 * @return the number of documents in flight
+		 */
+		public long getInflightDocs() {
+			return _inflight_docs.get();
+		}
+		
+		/** The size of the documents handed to the batch subsystem but not yet acknowledged by elasticsearch
+		 * @return the number of bytes in flight
+		 */
+		public long getInflightBytes() {
+			return _inflight_bytes.get();
+		}
+		
+		/** Reserves room in the in-flight budget for one or more requests, blocking or rejecting (depending on the backpressure policy) if there isn't room
+		 *  for all of them (Requests larger than the entire budget are allowed through when nothing else is in flight)
+		 * @param docs - the number of requests
+		 * @param bytes - the total size of the requests
+		 * @param force - if true, always reserves the space immediately (used for re-submitting failed requests from the listener, which must never block)
+		 */
+		protected void acquireBudget(final long docs, final long bytes, final boolean force) {
+			if (tryAcquireBudget(docs, bytes, force)) { // (fast path, no locking)
+				return;
+			}
+			if (BackpressurePolicy.REJECT == _backpressure_policy) {
+				throw new RejectedExecutionException(ErrorUtils.get(ErrorUtils.BATCH_WRITE_BUDGET_EXCEEDED, _inflight_docs.get(), _inflight_bytes.get(), 
+															_max_inflight_docs_override.orElse(_default_max_inflight_docs), _max_inflight_bytes_override.orElse(_default_max_inflight_bytes)));
+			}
+			// Budget exhausted, so wait for it to be released
+			_budget_waiters.incrementAndGet(); // (before re-checking under the lock, so releaseBudget can't miss us)
+			_budget_lock.lock();
+			try {
+				while (!tryAcquireBudget(docs, bytes, force)) {
+					_flush_now = true; // (make sure anything sitting in the current batch gets sent, so the budget can be released)
+					try {
+						_budget_released.await(100L, TimeUnit.MILLISECONDS);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException(e);
+					}
+				}
+			}
+			finally {
+				_budget_lock.unlock();
+				_budget_waiters.decrementAndGet();
+			}
+		}
+		
+		/** Reserves room in the in-flight budget if there is any, without blocking
+		 *  (The docs are reserved atomically, so only one producer can ever get in when nothing else is in flight - the bytes are checked 
+		 *   just before, so concurrent producers can overshoot the byte limit by at most a request each)
+		 * @param docs - the number of requests
+		 * @param bytes - the total size of the requests
+		 * @param force - if true, always reserves the space
+		 * @return true if the space was reserved
+		 */
+		protected boolean tryAcquireBudget(final long docs, final long bytes, final boolean force) {
+			for (;;) {
+				final long inflight_docs = _inflight_docs.get();
+				if (!force && (0 != inflight_docs) 
+						&& ((inflight_docs + docs > _max_inflight_docs_override.orElse(_default_max_inflight_docs)) 
+								|| (_inflight_bytes.get() + bytes > _max_inflight_bytes_override.orElse(_default_max_inflight_bytes))))
+				{
+					return false;
+				}
+				if (_inflight_docs.compareAndSet(inflight_docs, inflight_docs + docs)) {
+					_inflight_bytes.addAndGet(bytes);
+					return true;
+				}
+			}
+		}
+		
+		/** Returns the space reserved for all the requests in a completed (successfully or otherwise) bulk request to the in-flight budget
+		 * @param in - the completed bulk request
+		 */
+		protected void releaseBudget(final BulkRequest in) {
+			final long bytes = in.requests().stream().mapToLong(ar -> getRequestSize(ar)).sum();
+			_inflight_bytes.updateAndGet(b -> Math.max(0L, b - bytes));
+			_inflight_docs.updateAndGet(d -> Math.max(0L, d - in.numberOfActions()));
+			if (_budget_waiters.get() > 0) { // (only need the lock if someone is blocked)
+				signalBudgetChange();
+			}
+		}
+		
+		/** Wakes up any blocked producers so they re-check the budget
+		 */
+		protected void signalBudgetChange() {
+			_budget_lock.lock();
+			try {
+				_budget_released.signalAll();
+			}
+			finally {
+				_budget_lock.unlock();
+			}
+		}
+		
+		/** Re-submits a request into the current batch from the retry thread, bypassing the backpressure (never call from inside the bulk listener, see afterBulk)
+		 * @param ar - the request to re-submit
+		 */
+		protected void resubmit(final ActionRequest<?> ar) {
+			if (null != _stripes) {
+				acquireBudget(1L, getRequestSize(ar), true);
+				addToStripe(ar);
+			}
+		}
+		
+		/** Returns the (approximate) number of bytes that a request will take up in the in-flight budget
+		 * @param ar - the request
+		 * @return the size of its source, for index requests, else 0
+		 */
+		protected long getRequestSize(final ActionRequest<?> ar) {
+			return ((ar instanceof IndexRequest) && (null != ((IndexRequest) ar).source()))
+					? ((IndexRequest) ar).source().length()
+					: 0L;
+		}
+		
+		protected final AtomicLong _inflight_docs = new AtomicLong(0L);
+		protected final AtomicLong _inflight_bytes = new AtomicLong(0L);
+		protected final AtomicInteger _budget_waiters = new AtomicInteger(0); // (producers blocked on _budget_released)
+		protected final ReentrantLock _budget_lock = new ReentrantLock(); // (only taken to wait for/signal budget being released)
+		protected final Condition _budget_released = _budget_lock.newCondition();
+		protected volatile long _default_max_inflight_docs = Long.MAX_VALUE; // (overwritten when the stripes are built)
+		protected volatile long _default_max_inflight_bytes = Long.MAX_VALUE; // (overwritten when the stripes are built)
+		protected volatile Optional<Long> _max_inflight_docs_override = Optional.empty();
+		protected volatile Optional<Long> _max_inflight_bytes_override = Optional.empty();
+		protected volatile BackpressurePolicy _backpressure_policy = BackpressurePolicy.BLOCK;
+		
+		private volatile boolean _flush_now = false; // (_very_ simple inter-thread comms via this mutable var, NOTE: don't let it get more complex than this without refactoring)
+		
+		/** Sets the policy for retrying documents that failed for transient reasons (thread pool rejections, timeouts, nodes unavailable)
+		 *  The delay before the nth retry is a random value in [backoff/2, backoff], where backoff = min(max_backoff, initial_backoff*2^(n-1))
+		 * @param max_retries - the maximum number of times a document is retried before it is dropped (defaults to DEFAULT_MAX_RETRIES, 0 to disable retries)
+		 * @param initial_backoff - the nominal delay before the first retry (defaults to DEFAULT_INITIAL_BACKOFF)
+		 * @param max_backoff - the maximum nominal delay between retries (defaults to DEFAULT_MAX_BACKOFF)
+		 * @param max_pending_retries - the maximum number of documents waiting to be retried, any failures beyond this are dropped (defaults to DEFAULT_MAX_PENDING_RETRIES)
+		 */
+		public void setRetryPolicy(final Optional<Integer> max_retries, final Optional<Duration> initial_backoff, final Optional<Duration> max_backoff, final Optional<Integer> max_pending_retries) {
+			_max_retries = max_retries.orElse(DEFAULT_MAX_RETRIES);
+			_initial_backoff_ms = initial_backoff.orElse(DEFAULT_INITIAL_BACKOFF).toMillis();
+			_max_backoff_ms = max_backoff.orElse(DEFAULT_MAX_BACKOFF).toMillis();
+			_max_pending_retries = max_pending_retries.orElse(DEFAULT_MAX_PENDING_RETRIES);
+		}
+		
+		/** The number of documents currently waiting to be retried
+		 * @return the size of the retry queue
+		 */
+		public int getPendingRetries() {
+			return _pending_retries.get();
+		}
+		
+		/** The number of documents that have been dropped because they exceeded the retry policy
+		 * @return the number of dropped documents since this subsystem was created
+		 */
+		public long getDroppedRetries() {
+			return _write_metrics.dropped_retries();
+		}
+		
+		/** Decides whether a bulk item failure is worth retrying
+		 * @param error_message - the failure message
+		 * @param status - the REST status of the failure, if available
+		 * @return true if the failure is transient (ie the cluster is pushing back or temporarily unavailable)
+		 */
+		protected boolean isTransientFailure(final String error_message, final RestStatus status) {
+			if ((RestStatus.TOO_MANY_REQUESTS == status) || (RestStatus.SERVICE_UNAVAILABLE == status) 
+					|| (RestStatus.GATEWAY_TIMEOUT == status) || (RestStatus.REQUEST_TIMEOUT == status))
+			{
+				return true;
+			}
+			return Optional.ofNullable(error_message)
+						.map(msg -> TRANSIENT_FAILURE_MESSAGE.matcher(msg).find())
+						.orElse(false);
+		}
+		
+		/** Decides whether the failure of an entire bulk request is worth retrying, from the type of the exception or any of its causes 
+		 *  (eg a RemoteTransportException wrapping an EsRejectedExecutionException) 
+		 * @param error - the exception the bulk request failed with
+		 * @return true if the failure is transient (ie the cluster is pushing back or temporarily unavailable)
+		 */
+		protected boolean isTransientFailure(final Throwable error) {
+			for (Throwable t = error; null != t; t = (t.getCause() == t) ? null : t.getCause()) {
+				final Throwable cause = t;
+				if (TRANSIENT_FAILURES.stream().anyMatch(transient_error -> transient_error.isInstance(cause))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/** Queues a failed request for a delayed retry, or drops it if it has exhausted its retries or the retry queue is full
+		 * @param ar - the request to retry
+		 */
+		protected void scheduleRetry(final ActionRequest<?> ar) {
+			final int attempt = 1 + Optional.ofNullable(_retry_attempts.get(ar)).orElse(0);
+			if (attempt > _max_retries) {
+				_retry_attempts.remove(ar);
+				_write_metrics.recordDroppedRetry();
+				return;
+			}
+			if (_pending_retries.incrementAndGet() > _max_pending_retries) { // (retry queue is full)
+				_pending_retries.decrementAndGet();
+				_retry_attempts.remove(ar);
+				_write_metrics.recordDroppedRetry();
+				return;
+			}
+			_retry_attempts.put(ar, attempt);
+			_write_metrics.recordTransientRetry();
+			
+			final long backoff_ms = Math.min(_max_backoff_ms, _initial_backoff_ms << Math.min(attempt - 1, 30));
+			final long delay_ms = backoff_ms/2 + ThreadLocalRandom.current().nextLong(1 + backoff_ms/2); // (jitter so retries from different producers don't synchronize)
+			
+			_retry_scheduler.schedule(() -> {
+				try {
+					resubmit(ar);
+				}
+				finally {
+					_pending_retries.decrementAndGet();
+				}
+			}, 
+			delay_ms, TimeUnit.MILLISECONDS);
 		}
 		
-		private boolean _flush_now = false; // (_very_ simple inter-thread comms via this mutable var, NOTE: don't let it get more complex than this without refactoring)
+		protected volatile int _max_retries = DEFAULT_MAX_RETRIES;
+		protected volatile long _initial_backoff_ms = DEFAULT_INITIAL_BACKOFF.toMillis();
+		protected volatile long _max_backoff_ms = DEFAULT_MAX_BACKOFF.toMillis();
+		protected volatile int _max_pending_retries = DEFAULT_MAX_PENDING_RETRIES;
+		
+		protected final ConcurrentHashMap<ActionRequest<?>, Integer> _retry_attempts = new ConcurrentHashMap<>(); // (requests are compared by identity)
+		protected final AtomicInteger _pending_retries = new AtomicInteger(0);
+		protected final ConcurrentHashMap<BulkRequest, Long> _bulk_start_times = new ConcurrentHashMap<>(); // (bulk requests are compared by identity)
+		protected final ScheduledExecutorService _retry_scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> 
+			Lambdas.get(() -> { final Thread t = new Thread(runnable, "es-batch-retry"); t.setDaemon(true); return t; }));
+		
 		
+		/** Builds a single bulk processor (the in-flight budget covers all the stripes, so is set in buildStripes)
+		 * @param max_objects - the max number of objects per bulk request
+		 * @param size_kb - the max size of each bulk request
+		 * @param flush_interval - the max time a document can sit in the processor before its bulk request is sent
+		 * @param write_threads - the number of additional concurrent requests
+		 * @return the bulk processor
+		 */
 		protected BulkProcessor buildBulkProcessor(final Optional<Integer> max_objects, final Optional<Long> size_kb, final Optional<Duration> flush_interval, final Optional<Integer> write_threads) {
 			return BulkProcessor.builder(_state.client, 
 						new BulkProcessor.Listener() {							
 							@Override
 							public void beforeBulk(long exec_id, BulkRequest in) {
-								return; // (nothing to do)
+								_write_metrics.recordBulkSent(in.numberOfActions(), in.estimatedSizeInBytes());
+								_bulk_start_times.put(in, System.nanoTime());
 							}
 							
 							@Override
-							public void afterBulk(long arg0, BulkRequest in, Throwable error) {
-								return; // (nothing to exec_id but weep)
+							public void afterBulk(long exec_id, BulkRequest in, Throwable error) {
+								releaseBudget(in);
+								_bulk_start_times.remove(in);
+								_write_metrics.recordBulkFailed(in.numberOfActions(), error.toString());
+								
+								// The entire request failed - if that's because the cluster is pushing back/unavailable then retry everything, else nothing to do but weep
+								if (isTransientFailure(error)) {
+									in.requests().stream().forEach(ar -> scheduleRetry(ar));
+								}
+								else {
+									in.requests().stream().forEach(ar -> _retry_attempts.remove(ar));
+								}
 							}
 							
 							@Override
 							public void afterBulk(long exec_id, BulkRequest in, BulkResponse out) {
+								releaseBudget(in);
+								
+								final long latency_ms = Optional.ofNullable(_bulk_start_times.remove(in)).map(start -> (System.nanoTime() - start)/1000000L).orElse(out.getTookInMillis());
+								long failed = 0L;
+								if (out.hasFailures() || !_retry_attempts.isEmpty()) {
+									// Re-queue anything that failed for transient reasons (and forget about retried requests that are now done)
+									final Iterator<BulkItemResponse> it = out.iterator();
+									while (it.hasNext()) {
+										final BulkItemResponse bir = it.next();
+										final ActionRequest<?> ar = in.requests().get(bir.getItemId());
+										if (bir.isFailed()) {
+											failed++;
+											_write_metrics.recordItemFailed(bir.getFailure().getMessage());
+										}
+										if (bir.isFailed() && isTransientFailure(bir.getFailure().getMessage(), bir.getFailure().getStatus())) {
+											scheduleRetry(ar);
+										}
+										else if (!_retry_attempts.isEmpty()) {
+											_retry_attempts.remove(ar);
+										}
+									}
+								}
+								_write_metrics.recordBulkCompleted(in.numberOfActions() - failed, latency_ms);
+
 								if (out.hasFailures() &&
 										(_state.es_context.typeContext() instanceof ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext)
 										)
 								{
 									final ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext auto_context = (ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext) _state.es_context.typeContext();
 									final Iterator<BulkItemResponse> it = out.iterator();
-									synchronized (this) {
-										while (it.hasNext()) {										
-											final BulkItemResponse bir = it.next();
-											if (bir.isFailed()) {								
-												final String error_message = bir.getFailure().getMessage();
-												
-												if (error_message.startsWith("MapperParsingException")
-														||
-													error_message.startsWith("WriteFailureException; nested: MapperParsingException"))
-												{
-													final Set<String> fixed_type_fields = auto_context.fixed_type_fields();
-													if (!fixed_type_fields.isEmpty()) {
-														// Obtain the field name from the exception (if we fail then drop the record) 
-														final String field = getFieldFromParsingException(error_message);
-														if ((null == field) || fixed_type_fields.contains(field)) {
-															continue;
-														}
-													}//(else roll on to...)																												
-													
-													String failed_json = null;
-													final ActionRequest<?> ar = in.requests().get(bir.getItemId());
-													if (ar instanceof IndexRequest) {											
-														IndexRequest ir = (IndexRequest) ar;
-														failed_json = ir.source().toUtf8();
+									// (re-submitted from the retry thread, not here: adding to a full stripe blocks until a bulk request completes, which can't happen while this listener is running)
+									while (it.hasNext()) {										
+										final BulkItemResponse bir = it.next();
+										if (bir.isFailed()) {								
+											final String error_message = bir.getFailure().getMessage();
+											
+											if (error_message.startsWith("MapperParsingException")
+													||
+												error_message.startsWith("WriteFailureException; nested: MapperParsingException"))
+											{
+												final Set<String> fixed_type_fields = auto_context.fixed_type_fields();
+												if (!fixed_type_fields.isEmpty()) {
+													// Obtain the field name from the exception (if we fail then drop the record) 
+													final String field = getFieldFromParsingException(error_message);
+													if ((null == field) || fixed_type_fields.contains(field)) {
+														continue;
 													}
-													if (null != failed_json) {
+												}//(else roll on to...)																												
+												
+												BytesReference failed_json = null;
+												final ActionRequest<?> ar = in.requests().get(bir.getItemId());
+												if (ar instanceof IndexRequest) {											
+													IndexRequest ir = (IndexRequest) ar;
+													failed_json = ir.source();
+												}
+												if (null != failed_json) {
+													_write_metrics.recordAutoTypeRetry();
+													final IndexRequest retry_request = singleObjectIndexRequest(
+																Either.right(Tuples._2T(bir.getIndex(), 
+																		ElasticsearchContextUtils.getNextAutoType(auto_context.getPrefix(), bir.getType()))), 
+																Either.right(Tuples._2T(bir.getId(), failed_json)), 
+																false, true).request();
+													_retry_scheduler.execute(() -> {
+														resubmit(retry_request);
 														_flush_now = true;
-														_current.add(singleObjectIndexRequest(
-																	Either.right(Tuples._2T(bir.getIndex(), 
-																			ElasticsearchContextUtils.getNextAutoType(auto_context.getPrefix(), bir.getType()))), 
-																	Either.right(Tuples._2T(bir.getId(), failed_json)), 
-																	false, true).request());
-													}//(End got the source, so re-insert this into the stream)
-												}//(was a mapping error)
-											}//(item failed)
-										}//(loop over iterms)
-										
-									}//(synchronized)									
+													});
+												}//(End got the source, so re-insert this into the stream)
+											}//(was a mapping error)
+										}//(item failed)
+									}//(loop over iterms)
 								}//(has failures AND is an auto type)
 								
 							}//(end afterBulk)
@@ -1029,7 +2150,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 					.build();
 		}
 		
-		protected BulkProcessor _current; // (note: mutable)
+		protected volatile BulkProcessor[] _stripes; // (note: mutable, only ever replaced as a whole)
 
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice#storeObjects(java.util.List)
@@ -1048,6 +2169,7 @@ public class ElasticsearchCrudService<O> implements ICrudService<O> {
 		}
 	}
 	protected ElasticsearchBatchSubsystem _batch_processor = null;
+	protected final ElasticsearchWriteMetrics _write_metrics = new ElasticsearchWriteMetrics();
 	
 	/** A table-level interface to the CRUD store using the open MetaModel library
 	 * MongoDB implementation
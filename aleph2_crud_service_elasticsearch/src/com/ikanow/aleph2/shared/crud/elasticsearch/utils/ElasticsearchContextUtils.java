@@ -24,14 +24,32 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.joda.FormatDateTimeFormatter;
+import org.elasticsearch.common.joda.Joda;
 
 import scala.Tuple2;
 
 import com.codepoetics.protonpack.StreamUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.ikanow.aleph2.data_model.utils.Functions;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
@@ -42,6 +60,49 @@ import com.ikanow.aleph2.data_model.utils.Tuples;
  */
 public class ElasticsearchContextUtils {
 
+	/** How long the list of existing indexes used to prune date-range queries is cached for (indexes created inside this window are only
+	 *  guaranteed to be searched if they fall in the last period of the range)
+	 */
+	public static final long EXISTING_INDEX_CACHE_MS = 10000L;
+	
+	/** Cache of (client, base index) -> (time fetched, open indexes starting with that base index)
+	 */
+	protected static final Cache<Tuple2<Client, String>, Tuple2<Long, NavigableSet<String>>> _existing_index_cache = 
+			CacheBuilder.newBuilder().maximumSize(1000L).expireAfterWrite(10L, TimeUnit.MINUTES).build();
+	
+	/** The in-progress fetches of the existing indexes, so that there's at most one per (client, base index) at a time
+	 */
+	protected static final ConcurrentHashMap<Tuple2<Client, String>, CompletableFuture<NavigableSet<String>>> _existing_index_refreshes = new ConcurrentHashMap<>();
+
+	/** The format elasticsearch uses for date fields that don't specify one, used to parse string times
+	 */
+	protected static final FormatDateTimeFormatter DEFAULT_DATE_FORMAT = Joda.forPattern("dateOptionalTime");
+	
+	/** Converts a time field (from an object being written, or a query term) into a time - this is used both to route objects
+	 *  to time-based indexes and to prune the indexes searched by date-range queries, so the two always agree 
+	 * @param o - the time, eg a Date, a Number, a String in elasticsearch's default date format, or a JsonNode of those
+	 * @return the time in ms since the epoch, or Optional.empty() if not a time
+	 */
+	public static Optional<Long> parseTime(final Object o) {
+		if (o instanceof JsonNode) {
+			final JsonNode j = (JsonNode)o;
+			return j.isNumber() 
+					? Optional.of(j.asLong()) 
+					: j.isTextual() ? parseTime(j.asText()) : Optional.empty();
+		}
+		else if (o instanceof Date) return Optional.of(((Date)o).getTime());
+		else if (o instanceof Number) return Optional.of(((Number)o).longValue());
+		else if (o instanceof String) {
+			try {
+				return Optional.of(DEFAULT_DATE_FORMAT.parser().parseMillis((String)o));
+			}
+			catch (Exception e) { // (not a date)
+				return Optional.empty();
+			}
+		}
+		else return Optional.empty();
+	}
+
 	/** Creates a list of time-based indexes from a time range
 	 * @param index_template
 	 * @param date_range
@@ -69,6 +130,174 @@ public class ElasticsearchContextUtils {
 		}
 	}
 	
+	/** Creates a list of time-based index patterns from a time range, like getIndexesFromDateRange except that runs of periods making up
+	 *  a whole day, month or year are collapsed into a single wildcard (eg a 90 day range over hourly indexes returns ~90 patterns, not ~2160)
+	 * @param index_template
+	 * @param date_range
+	 * @return a stream of index patterns (including the trailing wildcard)
+	 */
+	public static Stream<String> getCollapsedIndexesFromDateRange(final String index_template, final Tuple2<Long, Long> date_range) {
+		try {
+			final Tuple2<String, String> index_split = splitTimeBasedIndex(index_template);
+			final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(index_split._2());
+			final ChronoUnit time_period = getIndexGroupingPeriod.apply(index_split._2());
+
+			final LocalDateTime lower_end = LocalDateTime.ofInstant(Instant.ofEpochMilli(date_range._1()), ZoneId.systemDefault());
+			final LocalDateTime upper_end = LocalDateTime.ofInstant(Instant.ofEpochMilli(date_range._2()), ZoneId.systemDefault());
+			
+			final Tuple2<LocalDateTime, LocalDateTime> temporal_range = 
+					Tuples._2T(truncate(lower_end, time_period), truncate(upper_end.plus(1, time_period), time_period));
+			
+			// (weeks don't nest inside months or years, so are never collapsed)
+			final List<ChronoUnit> collapse_periods = (ChronoUnit.WEEKS == time_period)
+					? Collections.emptyList()
+					: Stream.of(ChronoUnit.YEARS, ChronoUnit.MONTHS, ChronoUnit.DAYS)
+							.filter(p -> p.getDuration().compareTo(time_period.getDuration()) > 0)
+							.collect(Collectors.toList());
+			
+			final LinkedList<String> patterns = new LinkedList<>();
+			LocalDateTime d = temporal_range._1();
+			while (d.isBefore(temporal_range._2())) {
+				final LocalDateTime curr = d;
+				// Use the coarsest period that starts here, fits inside the range, and has a formatted prefix that identifies it
+				final Optional<Tuple2<String, LocalDateTime>> collapsed = collapse_periods.stream()
+						.filter(p -> truncate(curr, p).equals(curr))
+						.map(p -> curr.plus(1, p))
+						.filter(next -> !next.isAfter(temporal_range._2()))
+						.map(next -> Tuples._2T(getCollapsedPrefix(formatter, time_period, curr, next), next))
+						.filter(prefix_next -> !prefix_next._1().isEmpty())
+						.findFirst();
+				
+				patterns.add(reconstructTimedBasedSplitIndex(index_split._1(), collapsed.map(t2 -> t2._1()).orElseGet(() -> formatter.format(curr))) + "*");
+				d = collapsed.map(t2 -> t2._2()).orElseGet(() -> curr.plus(1, time_period));
+			}
+			return patterns.stream();
+		}
+		catch (Exception e) { // This particular index was probably not time-based..
+			return getIndexesFromDateRange(index_template, date_range).map(s -> s + "*");
+		}
+	}
+	
+	/** Returns the formatted prefix shared by every period in [start, end) and by neither neighbouring period, or "" if there isn't one
+	 *  (eg non-zero-padded or day-first formats)
+	 * @param formatter - the index suffix formatter
+	 * @param time_period - the index grouping period
+	 * @param start - the start of the run of periods (inclusive)
+	 * @param end - the end of the run of periods (exclusive)
+	 * @return the prefix, or "" if the run can't be collapsed
+	 */
+	private static String getCollapsedPrefix(final DateTimeFormatter formatter, final ChronoUnit time_period, final LocalDateTime start, final LocalDateTime end) {
+		final String first = formatter.format(start);
+		final String last = formatter.format(end.minus(1, time_period));
+		int i = 0;
+		while ((i < first.length()) && (i < last.length()) && (first.charAt(i) == last.charAt(i))) {
+			++i;
+		}
+		final String prefix = first.substring(0, i);
+		if (prefix.isEmpty() 
+				|| formatter.format(start.minus(1, time_period)).startsWith(prefix) 
+				|| formatter.format(end).startsWith(prefix)) 
+		{
+			return "";
+		}
+		final boolean all_match = StreamUtils.takeWhile(Stream.iterate(start, d -> d.plus(1, time_period)), d -> d.isBefore(end))
+										.allMatch(d -> formatter.format(d).startsWith(prefix));
+		return all_match ? prefix : "";
+	}
+	
+	/** Returns the open indexes whose names start with the base index of a time-based index template, from a cache of the cluster state - never
+	 *  blocks: if the cached version is older than EXISTING_INDEX_CACHE_MS then it is still returned, and a new version is fetched in the background 
+	 *  (see refreshExistingIndexes)
+	 * @param client - the elasticsearch client
+	 * @param base_index - the base index (see splitTimeBasedIndex)
+	 * @return the set of existing indexes, or Optional.empty() if they haven't been retrieved yet
+	 */
+	public static Optional<NavigableSet<String>> getExistingIndexes(final Client client, final String base_index) {
+		final Tuple2<Long, NavigableSet<String>> cached = _existing_index_cache.getIfPresent(Tuples._2T(client, base_index));
+		if ((null == cached) || ((System.currentTimeMillis() - cached._1()) >= EXISTING_INDEX_CACHE_MS)) {
+			refreshExistingIndexes(client, base_index);
+		}
+		return Optional.ofNullable(cached).map(t2 -> t2._2());
+	}
+	
+	/** Fetches the open indexes whose names start with the base index of a time-based index template from the cluster state, asynchronously,
+	 *  and updates the cache used by getExistingIndexes (if a fetch is already in progress then that is returned instead)
+	 * @param client - the elasticsearch client
+	 * @param base_index - the base index (see splitTimeBasedIndex)
+	 * @return a future containing the set of existing indexes (completes exceptionally if they couldn't be retrieved, eg cluster not available)
+	 */
+	public static CompletableFuture<NavigableSet<String>> refreshExistingIndexes(final Client client, final String base_index) {
+		final Tuple2<Client, String> key = Tuples._2T(client, base_index);
+		final CompletableFuture<NavigableSet<String>> refresh = _existing_index_refreshes.computeIfAbsent(key, __ -> {
+			final long now = System.currentTimeMillis();
+			try {
+				return ElasticsearchFutureUtils.wrap(client.admin().cluster().prepareState().clear().setMetaData(true).setIndices(base_index + "_*").execute(),
+						state -> {
+							final NavigableSet<String> indexes = 
+									StreamSupport.stream(state.getState().getMetaData().getIndices().values().spliterator(), false)
+										.map(cursor -> cursor.value)
+										.filter(index_meta -> IndexMetaData.State.OPEN == index_meta.getState())
+										.map(index_meta -> index_meta.getIndex())
+										.collect(Collectors.toCollection(TreeSet::new));
+							
+							final Tuple2<Long, NavigableSet<String>> fetched = Tuples._2T(now, Collections.unmodifiableNavigableSet(indexes));
+							
+							// (don't overwrite a newer version)
+							return _existing_index_cache.asMap().merge(key, fetched, (v1, v2) -> (v1._1() >= v2._1()) ? v1 : v2)._2();
+						});
+			}
+			catch (Exception e) { // (eg client closed)
+				final CompletableFuture<NavigableSet<String>> error = new CompletableFuture<NavigableSet<String>>();
+				error.completeExceptionally(e);
+				return error;
+			}
+		});
+		refresh.whenComplete((__, ___) -> _existing_index_refreshes.remove(key, refresh));
+		return refresh;
+	}
+	
+	/** Removes index patterns (of the form "<prefix>*") that don't match any existing index - the last pattern is always retained, since
+	 *  it normally covers the current period (whose index might have been created since existing_indexes was generated), and so that an
+	 *  empty list (ie all indexes!) is never returned
+	 * @param existing_indexes - the existing indexes, eg from getExistingIndexes
+	 * @param index_patterns - the index patterns, eg from getCollapsedIndexesFromDateRange
+	 * @return the pruned list of index patterns
+	 */
+	public static List<String> pruneIndexPatterns(final NavigableSet<String> existing_indexes, final List<String> index_patterns) {
+		final int last = index_patterns.size() - 1;
+		return StreamUtils.zipWithIndex(index_patterns.stream())
+					.filter(pattern_index -> (last == pattern_index.getIndex()) || matchesExistingIndex(existing_indexes, pattern_index.getValue()))
+					.map(pattern_index -> pattern_index.getValue())
+					.collect(Collectors.toList());
+	}
+	
+	/** Whether an index pattern of the form "<prefix>*" matches any of a sorted set of indexes
+	 * @param existing_indexes
+	 * @param index_pattern
+	 * @return
+	 */
+	private static boolean matchesExistingIndex(final NavigableSet<String> existing_indexes, final String index_pattern) {
+		final String prefix = index_pattern.replaceFirst("[*]$", "");
+		return Optional.ofNullable(existing_indexes.ceiling(prefix)).filter(index -> index.startsWith(prefix)).isPresent();
+	}
+	
+	/** Returns the (collapsed) index patterns for a time-based index template and date range, with patterns that don't match any existing 
+	 *  index removed if a client is available and the existing indexes have already been fetched (else the patterns are returned unpruned
+	 *  rather than waiting for them, see getExistingIndexes)
+	 * @param client - the elasticsearch client, if available
+	 * @param index_template
+	 * @param date_range
+	 * @return a list of index patterns
+	 */
+	public static List<String> getPrunedIndexesFromDateRange(final Optional<Client> client, final String index_template, final Tuple2<Long, Long> date_range) {
+		final List<String> patterns = getCollapsedIndexesFromDateRange(index_template, date_range).collect(Collectors.toList());
+		return client
+				.filter(__ -> index_template.contains("_{"))
+				.flatMap(c -> getExistingIndexes(c, splitTimeBasedIndex(index_template)._1()))
+				.map(existing -> pruneIndexPatterns(existing, patterns))
+				.orElse(patterns);
+	}
+	
 	/** Simple utility to truncate a date time to the start of the corresponding time period 
 	 * @param start = the date time
 	 * @param period - the time period
@@ -15,7 +15,10 @@
  ******************************************************************************/
 package com.ikanow.aleph2.shared.crud.elasticsearch.utils;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
@@ -31,7 +34,12 @@ import org.elasticsearch.search.sort.SortOrder;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.LinkedHashMultimap;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.BeanTemplate;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.Tuples;
@@ -39,6 +47,8 @@ import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.Operator;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateOperator;
 
 /** Utilities for converting from generic CRUD commands to Elasticsearch
  * @author acp
@@ -98,6 +108,314 @@ public class ElasticsearchUtils {
 
 	//////////////////////////////////////////////////////////////////////
 	
+	// DATE RANGE EXTRACTION
+	
+	/** Extracts the (inclusive) range of times that a query can match on a given time field, so that time-sliced indexes can be pruned
+	 *  (Only returns a value if the range is bounded at both ends, since otherwise every index has to be searched anyway)
+	 * @param query_in - the generic query component
+	 * @param time_field - the field on which the indexes are time-sliced
+	 * @return optionally, a tuple of (lower, upper) bounds in ms since the epoch
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Optional<Tuple2<Long, Long>> getDateRangeFromQuery(final QueryComponent<T> query_in, final String time_field) {
+		final Tuple2<Long, Long> range = Patterns.match(query_in)
+				.<Tuple2<Long, Long>>andReturn()
+					.when((Class<SingleQueryComponent<T>>)(Class<?>)SingleQueryComponent.class, q -> getDateRangeFromQuery_single(q, time_field))
+					.when((Class<MultiQueryComponent<T>>)(Class<?>)MultiQueryComponent.class, q -> getDateRangeFromQuery_multi(q, time_field))
+					.otherwise(() -> null);
+		
+		return Optional.ofNullable(range)
+					.filter(r -> (null != r._1()) && (null != r._2()))
+					.filter(r -> r._1() <= r._2())
+					;
+	}
+	
+	/** Date range extraction for a multi query, intersects (and) or unions (or) the ranges of the children 
+	 * @param query_in - a multi query
+	 * @param time_field - the field on which the indexes are time-sliced
+	 * @return a (lower, upper) tuple, either element null if unbounded, or null if no constraint
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T> Tuple2<Long, Long> getDateRangeFromQuery_multi(final MultiQueryComponent<T> query_in, final String time_field) {
+		final List<Tuple2<Long, Long>> ranges = query_in.getElements().stream()
+				.map(e -> (Tuple2<Long, Long>) Patterns.match(e).<Tuple2<Long, Long>>andReturn()
+						.when(SingleQueryComponent.class, q -> getDateRangeFromQuery_single(q, time_field))
+						.when(MultiQueryComponent.class, q -> getDateRangeFromQuery_multi((MultiQueryComponent<?>)q, time_field))
+						.otherwise(__ -> null))
+				.collect(Collectors.toList());
+		
+		return combineDateRanges(query_in.getOp(), ranges);
+	}
+	
+	/** Date range extraction for a single query, intersects (and) or unions (or) all the clauses 
+	 * @param query_in - a single query (ie set of fields)
+	 * @param time_field - the field on which the indexes are time-sliced
+	 * @return a (lower, upper) tuple, either element null if unbounded, or null if no constraint
+	 */
+	protected static <T> Tuple2<Long, Long> getDateRangeFromQuery_single(final SingleQueryComponent<T> query_in, final String time_field) {
+		final LinkedHashMultimap<String, Tuple2<Operator, Tuple2<Object, Object>>> fields = query_in.getAll();
+		
+		final List<Tuple2<Long, Long>> ranges = fields.entries().stream()
+				.map(kv -> time_field.equals(kv.getKey()) ? operatorToDateRange(kv.getValue()) : null)
+				.collect(Collectors.toList());
+		
+		return combineDateRanges(query_in.getOp(), ranges);
+	}
+	
+	/** Combines the ranges of a set of clauses
+	 * @param op - and (intersect) vs or (union)
+	 * @param ranges - the list of ranges, null for clauses that place no constraint on the time field
+	 * @return a (lower, upper) tuple, either element null if unbounded, or null if no constraint
+	 */
+	protected static Tuple2<Long, Long> combineDateRanges(final Operator op, final List<Tuple2<Long, Long>> ranges) {
+		if (Operator.any_of == op) { // union, only meaningful if every clause constrains the time
+			if (ranges.isEmpty() || ranges.stream().anyMatch(r -> null == r)) return null;
+			return ranges.stream().reduce((r1, r2) -> Tuples._2T(
+									((null == r1._1()) || (null == r2._1())) ? null : Math.min(r1._1(), r2._1()),
+									((null == r1._2()) || (null == r2._2())) ? null : Math.max(r1._2(), r2._2())
+								)).get();
+		}
+		else { // intersection
+			return ranges.stream().filter(r -> null != r).reduce((r1, r2) -> Tuples._2T(
+									(null == r1._1()) ? r2._1() : (null == r2._1()) ? r1._1() : (Long)Math.max(r1._1(), r2._1()),
+									(null == r1._2()) ? r2._2() : (null == r2._2()) ? r1._2() : (Long)Math.min(r1._2(), r2._2())
+								)).orElse(null);
+		}
+	}
+	
+	/** Converts a single clause on the time field into a range
+	 * @param operator_args - an operator enum and a pair of objects whose context depends on the operator
+	 * @return a (lower, upper) tuple, either element null if unbounded, or null if no constraint
+	 */
+	protected static Tuple2<Long, Long> operatorToDateRange(final Tuple2<Operator, Tuple2<Object, Object>> operator_args) {
+		return Patterns.match(operator_args).<Tuple2<Long, Long>>andReturn()
+				.when(op_args -> (Operator.equals == op_args._1()) && (null == op_args._2()._2()), op_args -> {
+					final Long l = objToTime(op_args._2()._1());
+					return (null == l) ? null : Tuples._2T(l, l);
+				})
+				.when(op_args -> EnumSet.of(Operator.range_open_open, Operator.range_open_closed, Operator.range_closed_closed, Operator.range_closed_open).contains(op_args._1()), 
+						op_args -> Tuples._2T(objToTime(op_args._2()._1()), objToTime(op_args._2()._2())))
+				.otherwise(__ -> null);
+	}
+	
+	/** Converts a query term into a time if possible (see ElasticsearchContextUtils.parseTime, which is also used to route writes)
+	 * @param o - the query term (eg Date, Long, String)
+	 * @return the time in ms since the epoch, or null if not a time
+	 */
+	private static Long objToTime(final Object o) {
+		return ElasticsearchContextUtils.parseTime(o).orElse(null);
+	}
+	
+	//////////////////////////////////////////////////////////////////////
+	
+	// UPDATES
+	
+	/** Returns true if the update deletes the entire object (ie CrudUtils.update(...).deleteObject())
+	 * @param update - the generic update component
+	 * @return true if the object should be deleted instead of updated
+	 */
+	public static <T> boolean isDeleteObjectUpdate(final UpdateComponent<T> update) {
+		return update.getAll().entries().stream()
+				.anyMatch(kv -> (UpdateOperator.unset == kv.getValue()._1()) && kv.getKey().isEmpty() && (null == kv.getValue()._2()));
+	}
+	
+	/** Returns true if the update can be sent to elasticsearch as a partial document (ie without fetching the source first):
+	 *  it must consist only of "set"s, and none of the values can be objects (since elasticsearch merges partial objects into the existing ones instead of replacing them)
+	 * @param update - the generic update component
+	 * @param object_mapper - the mapper used to convert the values to JSON 
+	 * @return true if createPartialUpdateDoc can be used
+	 */
+	public static <T> boolean isPartialDocUpdate(final UpdateComponent<T> update, final ObjectMapper object_mapper) {
+		return !update.getAll().isEmpty() && update.getAll().entries().stream()
+				.allMatch(kv -> (UpdateOperator.set == kv.getValue()._1()) && !kv.getKey().isEmpty() && !toJsonValue(kv.getValue()._2(), object_mapper).isObject());
+	}
+	
+	/** Creates the partial document for an update for which isPartialDocUpdate returns true (dotted fields become nested objects)
+	 * @param update - the generic update component
+	 * @param object_mapper - the mapper used to convert the values to JSON
+	 * @return the partial document to merge into the existing objects
+	 */
+	public static <T> ObjectNode createPartialUpdateDoc(final UpdateComponent<T> update, final ObjectMapper object_mapper) {
+		final ObjectNode doc = object_mapper.createObjectNode();
+		update.getAll().entries().stream().forEach(kv -> getParentNode(doc, kv.getKey(), true).set(getLeafName(kv.getKey()), toJsonValue(kv.getValue()._2(), object_mapper)));
+		return doc;
+	}
+	
+	/** Checks that a generic update only uses operators that applyUpdate supports, so that multi-object updates can fail before changing anything
+	 * @param update - the generic update component
+	 * @return an error message if the update isn't supported
+	 */
+	public static <T> Optional<String> validateUpdate(final UpdateComponent<T> update) {
+		return update.getAll().entries().stream()
+				.filter(kv -> (UpdateOperator.remove == kv.getValue()._1()) && (kv.getValue()._2() instanceof QueryComponent))
+				.findFirst()
+				.map(__ -> ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "remove/query"));
+	}
+	
+	/** Applies a generic update to an object's source (in place), with the same semantics as the MongoDB implementation
+	 *  (Not supported: removing elements from a list by query, see validateUpdate)
+	 * @param doc - the object's source, which is modified
+	 * @param update - the generic update component
+	 * @param object_mapper - the mapper used to convert the values to JSON
+	 * @return the updated doc (for chaining)
+	 */
+	public static <T> ObjectNode applyUpdate(final ObjectNode doc, final UpdateComponent<T> update, final ObjectMapper object_mapper) {
+		update.getAll().entries().stream()
+			.filter(kv -> !kv.getKey().isEmpty() && !kv.getKey().equals("_id")) // (can't change the _id of an object)
+			.forEach(kv -> {
+				final String leaf = getLeafName(kv.getKey());
+				final UpdateOperator op = kv.getValue()._1();
+				final Object val = kv.getValue()._2();
+				final ObjectNode parent = getParentNode(doc, kv.getKey(), UpdateOperator.unset != op && UpdateOperator.remove != op);
+				if (null == parent) return; // (nothing to unset/remove)
+				
+				Patterns.match(val).andAct()
+					.when(QueryComponent.class, __ -> UpdateOperator.remove == op, __ -> { 
+						throw new RuntimeException(ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "remove/query")); 
+					})
+					.when(__ -> UpdateOperator.set == op, __ -> parent.set(leaf, toJsonValue(val, object_mapper)))
+					.when(__ -> UpdateOperator.unset == op, __ -> parent.remove(leaf))
+					.when(Number.class, n -> UpdateOperator.increment == op, n -> {
+						final JsonNode existing = parent.path(leaf);
+						if (existing.isIntegralNumber() && ((n instanceof Long) || (n instanceof Integer) || (n instanceof Short) || (n instanceof Byte))) {
+							parent.put(leaf, existing.asLong() + n.longValue());
+						}
+						else if (existing.isNumber()) {
+							parent.put(leaf, existing.asDouble() + n.doubleValue());
+						}
+						else {
+							parent.set(leaf, toJsonValue(n, object_mapper));
+						}
+					})
+					.when(__ -> (UpdateOperator.add == op) || (UpdateOperator.add_deduplicate == op), __ -> {
+						final ArrayNode array = getArrayNode(parent, leaf);
+						toJsonList(val, object_mapper).stream()
+							.filter(j -> (UpdateOperator.add == op) || !StreamSupport.stream(array.spliterator(), false).anyMatch(existing -> existing.equals(j)))
+							.forEach(j -> array.add(j));
+					})
+					.when(__ -> UpdateOperator.remove == op, __ -> {
+						final JsonNode existing = parent.get(leaf);
+						if ((null != existing) && existing.isArray()) {
+							final List<JsonNode> to_remove = toJsonList(val, object_mapper);
+							final Iterator<JsonNode> it = existing.iterator();
+							while (it.hasNext()) {
+								if (to_remove.contains(it.next())) it.remove();
+							}
+						}
+					})
+					.otherwise(() -> {}); // (do nothing)
+			});
+		return doc;
+	}
+	
+	/** Creates the object to insert when an upsert doesn't match anything: the equality terms from the (and-ed) query, with the update applied 
+	 * @param spec - the query that failed to match anything
+	 * @param update - the generic update component
+	 * @param object_mapper - the mapper used to convert the values to JSON
+	 * @return the new object
+	 */
+	public static <T> ObjectNode createUpsertDoc(final QueryComponent<T> spec, final UpdateComponent<T> update, final ObjectMapper object_mapper) {
+		final ObjectNode doc = object_mapper.createObjectNode();
+		addEqualityTerms(doc, spec, object_mapper);
+		return applyUpdate(doc, update, object_mapper);
+	}
+	
+	/** Recursive utility for createUpsertDoc - copies the equality terms of and-ed query components into the doc
+	 * @param doc - the doc to fill in
+	 * @param spec - the query component
+	 * @param object_mapper - the mapper used to convert the values to JSON
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T> void addEqualityTerms(final ObjectNode doc, final QueryComponent<T> spec, final ObjectMapper object_mapper) {
+		if (Operator.any_of == spec.getOp()) return; // (ambiguous, so ignore)
+		
+		Patterns.match(spec).andAct()
+			.when(SingleQueryComponent.class, q -> 
+				((SingleQueryComponent<T>) q).getAll().entries().stream()
+					.filter(kv -> (Operator.equals == kv.getValue()._1()) && (null == kv.getValue()._2()._2()) && (null != kv.getValue()._2()._1()))
+					.forEach(kv -> getParentNode(doc, kv.getKey(), true).set(getLeafName(kv.getKey()), toJsonValue(kv.getValue()._2()._1(), object_mapper))))
+			.when(MultiQueryComponent.class, q -> 
+				((MultiQueryComponent<T>) q).getElements().stream().forEach(e -> addEqualityTerms(doc, e, object_mapper)))
+			.otherwise(() -> {});
+	}
+	
+	/** Converts a value from an update component into JSON
+	 * @param val - the value (JsonNode, bean template, enum, collection or anything Jackson can serialize)
+	 * @param object_mapper - the mapper used to convert the values to JSON
+	 * @return the JSON version of val
+	 */
+	@SuppressWarnings("unchecked")
+	protected static JsonNode toJsonValue(final Object val, final ObjectMapper object_mapper) {
+		return Patterns.match(val).<JsonNode>andReturn()
+				.when(v -> null == v, __ -> object_mapper.getNodeFactory().nullNode())
+				.when(JsonNode.class, j -> j)
+				.when(BeanTemplate.class, b -> object_mapper.valueToTree(((BeanTemplate<Object>) b).get()))
+				.when(Enum.class, e -> object_mapper.getNodeFactory().textNode(e.toString()))
+				.when(Collection.class, c -> ((Collection<Object>) c).stream()
+												.map(o -> toJsonValue(o, object_mapper))
+												.collect(object_mapper::createArrayNode, ArrayNode::add, ArrayNode::addAll))
+				.otherwise(v -> object_mapper.valueToTree(v));
+	}
+	
+	/** Converts a value from an add/remove update into the list of elements to add/remove
+	 * @param val - a single value or collection of values
+	 * @param object_mapper - the mapper used to convert the values to JSON
+	 * @return the list of JSON elements
+	 */
+	protected static List<JsonNode> toJsonList(final Object val, final ObjectMapper object_mapper) {
+		final JsonNode json = toJsonValue(val, object_mapper);
+		return (val instanceof Collection) 
+				? StreamSupport.stream(json.spliterator(), false).collect(Collectors.toList())
+				: Arrays.asList(json);
+	}
+	
+	/** Returns the object containing the leaf of a dotted field name, optionally creating it (and any intermediate objects)
+	 * @param doc - the top level doc
+	 * @param field - the dotted field name
+	 * @param create - whether to create missing objects (if false, returns null if any are missing)
+	 * @return the object containing the leaf field, or null if not present and !create
+	 */
+	protected static ObjectNode getParentNode(final ObjectNode doc, final String field, final boolean create) {
+		ObjectNode curr = doc;
+		final String[] path = field.split("[.]");
+		for (int i = 0; i < path.length - 1; ++i) {
+			final JsonNode next = curr.get(path[i]);
+			if ((null != next) && next.isObject()) {
+				curr = (ObjectNode) next;
+			}
+			else if (create) {
+				curr = curr.putObject(path[i]);
+			}
+			else return null;
+		}
+		return curr;
+	}
+	
+	/** Returns the last element of a dotted field name
+	 * @param field - the dotted field name
+	 * @return the leaf
+	 */
+	protected static String getLeafName(final String field) {
+		return field.substring(field.lastIndexOf('.') + 1);
+	}
+	
+	/** Returns the array at the given field, creating it if it doesn't exist (or converting a single value into an array of one element)
+	 * @param parent - the object containing the field
+	 * @param leaf - the field name
+	 * @return the array
+	 */
+	protected static ArrayNode getArrayNode(final ObjectNode parent, final String leaf) {
+		final JsonNode existing = parent.get(leaf);
+		if ((null != existing) && existing.isArray()) {
+			return (ArrayNode) existing;
+		}
+		final ArrayNode array = parent.putArray(leaf);
+		if ((null != existing) && !existing.isNull()) array.add(existing);
+		return array;
+	}
+	
+	//////////////////////////////////////////////////////////////////////
+	
 	// UTILS
 	
 	/** Defaults to true unless o is non null and boolean and false!
@@ -30,6 +30,8 @@ public class ErrorUtils extends com.ikanow.aleph2.data_model.utils.ErrorUtils {
 	public static final String NOT_YET_IMPLEMENTED = "This feature ({0}) has not yet been implemented, but is on the roadmap";
 	public static final String TRIED_TO_WRITE_INTO_RO_SERVICE = "This CRUD service was created as read-only but the method {0} attemped to write";
 	
+	public static final String BATCH_WRITE_BUDGET_EXCEEDED = "Batch write rejected: {0} docs / {1} bytes already in flight (limits {2} docs / {3} bytes)";
+	
 	public static final String STORE_OBJECTS_ALWAYS_COMPLETES = "Elasticsearch does not support continue_on_error:false in storeObjects";
 	
 	public static final String INVALID_CONFIGURATION = "Invalid configuration: connection={0} cluster={1}, err={2}";
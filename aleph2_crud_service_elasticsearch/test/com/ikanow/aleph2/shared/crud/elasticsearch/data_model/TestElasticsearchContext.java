@@ -19,12 +19,14 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import org.junit.Test;
@@ -63,6 +65,25 @@ public class TestElasticsearchContext {
 					index_context_1.getReadableIndexList(Optional.of(Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime()))));
 		}
 		
+		// Indexes that are looked up per query, falling back to the (unpruned) aliases until they're known
+		{
+			final AtomicReference<Optional<List<String>>> indexes = new AtomicReference<>(Optional.empty());
+			final ElasticsearchContext.IndexContext.ReadOnlyIndexContext.TimedRoIndexContext index_context_1b = 
+					new ElasticsearchContext.IndexContext.ReadOnlyIndexContext.TimedRoIndexContext(() -> indexes.get(), Arrays.asList("r__test1*"), Optional.of("@timestamp"));
+			
+			c1.set(2004, 11, 28); c2.set(2005,  0, 2);
+			assertEquals(Arrays.asList("r__test1*"), index_context_1b.getReadableIndexList(Optional.empty()));
+			assertEquals(Arrays.asList("r__test1*"), index_context_1b.getReadableIndexList(Optional.of(Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime()))));
+			
+			indexes.set(Optional.of(Arrays.asList("test1_{yyyy}")));
+			assertEquals(Arrays.asList("test1_*"), index_context_1b.getReadableIndexList(Optional.empty()));
+			assertEquals(Arrays.asList("test1_2004*", "test1_2005*"), index_context_1b.getReadableIndexList(Optional.of(Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime()))));
+			
+			// (eg after the primary buffer is switched)
+			indexes.set(Optional.of(Arrays.asList("test1_buffer_{yyyy}")));
+			assertEquals(Arrays.asList("test1_buffer_*"), index_context_1b.getReadableIndexList(Optional.empty()));
+		}
+		
 		// Some timestamp testing
 		{
 			final ElasticsearchContext.IndexContext.ReadWriteIndexContext.TimedRwIndexContext index_context_2 = 
@@ -130,6 +151,18 @@ public class TestElasticsearchContext {
 					new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext("test4", Optional.of(10L), Either.left(true));
 			
 			assertEquals(Arrays.asList("test4*"), index_context_4.getReadableIndexList(Optional.empty()));
+			
+			final ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext index_context_5 = 
+					new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext("test5", Optional.empty(), Optional.of(1000L), Optional.empty(), Either.left(true));
+			
+			assertTrue("Rolls over", index_context_5.mayRollover());
+			assertEquals(Arrays.asList("test5*"), index_context_5.getReadableIndexList(Optional.empty()));
+			
+			final ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext index_context_6 = 
+					new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext("test6", Optional.empty(), Optional.of(-1L), Optional.of(Duration.ofDays(-1L)), Either.left(true));
+			
+			assertFalse("Doesn't roll over", index_context_6.mayRollover());
+			assertEquals(Arrays.asList("test6"), index_context_6.getReadableIndexList(Optional.empty()));
 		}
 		
 	}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.ikanow.aleph2.shared.crud.elasticsearch.data_model;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TestElasticsearchWriteMetrics {
+
+	@Test
+	public void test_failureReasons() {
+		assertEquals("EsRejectedExecutionException", ElasticsearchWriteMetrics.getFailureReason("RemoteTransportException[[node][inet[/127.0.0.1:9300]][bulk/shard]]; nested: EsRejectedExecutionException[rejected execution (queue capacity 50)]"));
+		assertEquals("MapperParsingException", ElasticsearchWriteMetrics.getFailureReason("MapperParsingException[failed to parse [test_string]]"));
+		assertEquals("NoNodeAvailableException", ElasticsearchWriteMetrics.getFailureReason("NoNodeAvailableException"));
+		assertEquals("unknown", ElasticsearchWriteMetrics.getFailureReason(null));
+	}
+
+	@Test
+	public void test_recordAndReport() throws Exception {
+		final ElasticsearchWriteMetrics metrics = new ElasticsearchWriteMetrics();
+
+		metrics.recordSubmitted(10L);
+		metrics.recordBulkSent(10L, 1000L);
+		metrics.recordBulkCompleted(8L, 7L);
+		metrics.recordItemFailed("MapperParsingException[failed to parse [test_string]]");
+		metrics.recordItemFailed("RemoteTransportException[x]; nested: EsRejectedExecutionException[rejected execution]");
+		metrics.recordBulkSent(5L, 500L);
+		metrics.recordBulkFailed(5L, "NoNodeAvailableException[None of the configured nodes are available]");
+		metrics.recordBulkCompleted(0L, 100000L);
+		metrics.recordAutoTypeRetry();
+		metrics.recordTransientRetry();
+		metrics.recordDroppedRetry();
+		metrics.registerGauge("test_gauge", () -> 42L);
+
+		final Map<String, Long> counters = metrics.getCounters();
+		assertEquals(10L, counters.get("docs_submitted").longValue());
+		assertEquals(15L, counters.get("docs_sent").longValue());
+		assertEquals(8L, counters.get("docs_written").longValue());
+		assertEquals(1500L, counters.get("bytes_sent").longValue());
+		assertEquals(2L, counters.get("bulk_requests").longValue());
+		assertEquals(1L, counters.get("bulk_request_failures").longValue());
+		assertEquals(1L, counters.get("auto_type_retries").longValue());
+		assertEquals(1L, counters.get("transient_retries").longValue());
+		assertEquals(1L, counters.get("dropped_retries").longValue());
+
+		assertEquals(42L, metrics.getGauges().get("test_gauge").longValue());
+
+		final Map<String, Long> failures = metrics.getItemFailures();
+		assertEquals(1L, failures.get("MapperParsingException").longValue());
+		assertEquals(1L, failures.get("EsRejectedExecutionException").longValue());
+		assertEquals(5L, failures.get("NoNodeAvailableException").longValue());
+
+		final Map<String, Long> histogram = metrics.getBulkLatencyHistogram();
+		assertEquals(ElasticsearchWriteMetrics.LATENCY_BUCKETS_MS.length + 1, histogram.size());
+		assertEquals(1L, histogram.get("<=10ms").longValue());
+		assertEquals(1L, histogram.get(">30000ms").longValue());
+
+		// Periodic reporting
+
+		final CompletableFuture<Map<String, Object>> reported = new CompletableFuture<>();
+		metrics.startReporting(Duration.ofMillis(100L), snapshot -> reported.complete(snapshot));
+		final Map<String, Object> snapshot = reported.get(5L, TimeUnit.SECONDS);
+		metrics.stopReporting();
+		assertEquals(8L, snapshot.get("docs_written"));
+		assertTrue("Has a rate", snapshot.containsKey("docs_per_sec"));
+		assertEquals(42L, snapshot.get("test_gauge"));
+
+		// JMX
+
+		final ObjectName name = metrics.registerMBean("test_recordAndReport");
+		assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+}
@@ -19,6 +19,8 @@ import java.net.UnknownHostException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +28,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Future;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -33,6 +36,7 @@ import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 import org.apache.metamodel.data.DataSet;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ListenableActionFuture;
@@ -48,8 +52,12 @@ import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequest.OpType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.RemoteTransportException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -69,11 +77,14 @@ import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchAggregation;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchConfigurationBean;
 import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchContext;
+import com.ikanow.aleph2.shared.crud.elasticsearch.data_model.ElasticsearchWriteMetrics;
 import com.ikanow.aleph2.shared.crud.elasticsearch.services.ElasticsearchCrudService.CreationPolicy;
 import com.ikanow.aleph2.shared.crud.elasticsearch.services.ElasticsearchCrudService.ElasticsearchBatchSubsystem;
 import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ElasticsearchFutureUtils;
+import com.ikanow.aleph2.shared.crud.elasticsearch.utils.ErrorUtils;
 
 import fj.data.Either;
 import static org.junit.Assert.*;
@@ -345,6 +356,196 @@ public class TestElasticsearchCrudService {
 		}
 	}
 	
+	@Test
+	public void test_BatchRetryPolicy() throws InterruptedException, ExecutionException {
+		
+		DataSchemaBean.WriteSettings write_settings =  new DataSchemaBean.WriteSettings(100, 1023L, 1, 3);		
+		final ElasticsearchCrudService<TestBean> service = getTestService("testBatchRetryPolicy", TestBean.class, true, Optional.of(write_settings));
+
+		@SuppressWarnings("unchecked")
+		final ElasticsearchCrudService<TestBean>.ElasticsearchBatchSubsystem batch_service = service.getUnderlyingPlatformDriver(ElasticsearchBatchSubsystem.class, Optional.empty()).get();
+		
+		// Classification of failures
+		
+		assertTrue(batch_service.isTransientFailure("RemoteTransportException[[node][inet[/127.0.0.1:9300]][bulk/shard]]; nested: EsRejectedExecutionException[rejected execution (queue capacity 50)]", null));
+		assertTrue(batch_service.isTransientFailure("UnavailableShardsException[[test][0] Primary shard is not active or isn't assigned]", null));
+		assertTrue(batch_service.isTransientFailure("some error", RestStatus.TOO_MANY_REQUESTS));
+		assertFalse(batch_service.isTransientFailure("MapperParsingException[failed to parse [test_string]]", RestStatus.BAD_REQUEST));
+		assertFalse(batch_service.isTransientFailure("DocumentAlreadyExistsException[[test][0] [test][_id_1]: document already exists]", RestStatus.CONFLICT));
+		assertFalse(batch_service.isTransientFailure(null, null));
+		assertFalse(batch_service.isTransientFailure("MapperParsingException[failed to parse [test_string]]; nested: IllegalArgumentException[parsing timed out]", null));
+		assertFalse(batch_service.isTransientFailure("MapperParsingException[failed to parse, not an EsRejectedExecutionException]", null));
+		
+		assertTrue(batch_service.isTransientFailure(new RemoteTransportException("remote", new EsRejectedExecutionException("rejected execution (queue capacity 50)"))));
+		assertTrue(batch_service.isTransientFailure(new NoNodeAvailableException("no nodes")));
+		assertFalse(batch_service.isTransientFailure(new ElasticsearchException("request timed out")));
+		assertFalse(batch_service.isTransientFailure((Throwable)null));
+		
+		// Non transient failures are not retried
+		
+		final TestBean test = new TestBean();
+		test._id = "_id_1";
+		test.test_string = "test_string_1";
+		
+		batch_service.storeObject(test, false);
+		batch_service.storeObject(BeanTemplateUtils.clone(test).with("test_string", "test_string_2").done(), false);
+		Thread.sleep(3000L);
+		
+		assertEquals(1, service.countObjects().get().intValue());
+		assertEquals(0, batch_service.getPendingRetries());
+		assertEquals(0L, batch_service.getDroppedRetries());
+		
+		// Disabling retries
+		
+		batch_service.setRetryPolicy(Optional.of(0), Optional.empty(), Optional.empty(), Optional.empty());
+		batch_service.scheduleRetry(new IndexRequest());
+		assertEquals(0, batch_service.getPendingRetries());
+		assertEquals(1L, batch_service.getDroppedRetries());
+	}
+	
+	@Test
+	public void test_BatchBackpressure() throws InterruptedException, ExecutionException {
+		
+		DataSchemaBean.WriteSettings write_settings =  new DataSchemaBean.WriteSettings(100, 1023L, 1, 3);		
+		final ElasticsearchCrudService<TestBean> service = getTestService("testBatchBackpressure", TestBean.class, true, Optional.of(write_settings));
+
+		@SuppressWarnings("unchecked")
+		final ElasticsearchCrudService<TestBean>.ElasticsearchBatchSubsystem batch_service = service.getUnderlyingPlatformDriver(ElasticsearchBatchSubsystem.class, Optional.empty()).get();
+		
+		final TestBean test1 = new TestBean();
+		test1._id = "_id_1";
+		test1.test_string = "test_string_1";
+		final TestBean test2 = BeanTemplateUtils.clone(test1).with("_id", "_id_2").done();
+		final TestBean test3 = BeanTemplateUtils.clone(test1).with("_id", "_id_3").done();
+		
+		// 1) Reject policy, 1 doc budget
+		
+		batch_service.setBackpressure(Optional.of(1L), Optional.empty(), Optional.of(ElasticsearchCrudService.BackpressurePolicy.REJECT));
+		
+		batch_service.storeObject(test1, false);
+		assertEquals(1L, batch_service.getInflightDocs());
+		assertTrue("Some bytes in flight", batch_service.getInflightBytes() > 0L);
+		try {
+			batch_service.storeObject(test2, false);
+			fail("Should have been rejected");
+		}
+		catch (RejectedExecutionException e) {}
+		
+		Thread.sleep(3000L);
+		
+		assertEquals(0L, batch_service.getInflightDocs());
+		assertEquals(0L, batch_service.getInflightBytes());
+		assertEquals(1, service.countObjects().get().intValue());
+		
+		// 1b) Reject policy, 2 doc budget - a batch that doesn't fit is rejected as a whole, ie none of it is queued
+		
+		batch_service.setBackpressure(Optional.of(2L), Optional.empty(), Optional.of(ElasticsearchCrudService.BackpressurePolicy.REJECT));
+		
+		batch_service.storeObject(test1, true);
+		try {
+			batch_service.storeObjects(Arrays.asList(test2, test3), false);
+			fail("Should have been rejected");
+		}
+		catch (RejectedExecutionException e) {}
+		assertEquals(1L, batch_service.getInflightDocs());
+		
+		Thread.sleep(3000L);
+		
+		assertEquals(0L, batch_service.getInflightDocs());
+		assertEquals(1, service.countObjects().get().intValue());
+		
+		// 2) Block policy, 1 doc budget - second write waits for the first to complete
+		
+		batch_service.setBackpressure(Optional.of(1L), Optional.empty(), Optional.of(ElasticsearchCrudService.BackpressurePolicy.BLOCK));
+		
+		batch_service.storeObject(test2, false);
+		batch_service.storeObject(test3, false);
+		
+		Thread.sleep(3000L);
+		
+		assertEquals(0L, batch_service.getInflightDocs());
+		assertEquals(3, service.countObjects().get().intValue());
+	}
+	
+	@Test
+	public void test_BatchMultipleProducers() throws InterruptedException, ExecutionException {
+		
+		DataSchemaBean.WriteSettings write_settings =  new DataSchemaBean.WriteSettings(100, 1023L, 1, 3);		
+		final ElasticsearchCrudService<TestBean> service = getTestService("testBatchMultipleProducers", TestBean.class, true, Optional.of(write_settings));
+
+		@SuppressWarnings("unchecked")
+		final ElasticsearchCrudService<TestBean>.ElasticsearchBatchSubsystem batch_service = service.getUnderlyingPlatformDriver(ElasticsearchBatchSubsystem.class, Optional.empty()).get();
+		
+		// 8 producers, 4 stripes, plus a stripe swap halfway through
+		
+		final List<CompletableFuture<Void>> producers = IntStream.range(0, 8).boxed()
+				.map(producer -> CompletableFuture.runAsync(() -> {
+					IntStream.range(0, 250).forEach(i -> {
+						final TestBean test = new TestBean();
+						test._id = "_id_" + producer + "_" + i;
+						test.test_string = "test_string_" + i;
+						batch_service.storeObject(test, false);
+					});
+				}))
+				.collect(Collectors.toList());
+		
+		batch_service.setBatchProperties(Optional.of(50), Optional.empty(), Optional.of(Duration.of(1, ChronoUnit.SECONDS)), Optional.of(3));
+		
+		CompletableFuture.allOf(producers.toArray(new CompletableFuture[0])).get();
+		
+		assertEquals(4, batch_service._stripes.length);
+		
+		Thread.sleep(3000L);
+		
+		assertEquals(2000, service.countObjects().get().intValue());
+		assertEquals(0L, batch_service.getInflightDocs());
+		
+		// Check the write metrics
+		
+		final ElasticsearchWriteMetrics metrics = service.getUnderlyingPlatformDriver(ElasticsearchWriteMetrics.class, Optional.empty()).get();
+		assertEquals(2000L, metrics.docs_submitted());
+		assertEquals(2000L, metrics.docs_written());
+		assertTrue("Sent some bytes", metrics.bytes_sent() > 0L);
+		assertTrue("Sent some bulk requests", metrics.bulk_requests() > 0L);
+		assertEquals(0L, metrics.getGauges().get("inflight_docs").longValue());
+		assertEquals(4L, metrics.getGauges().get("bulk_processor_stripes").longValue());
+		assertEquals(metrics.bulk_requests(), metrics.getBulkLatencyHistogram().values().stream().mapToLong(l -> l).sum());
+	}
+	
+	@Test
+	public void test_BatchStripedBudget() throws InterruptedException, ExecutionException {
+		
+		DataSchemaBean.WriteSettings write_settings =  new DataSchemaBean.WriteSettings(100, 1023L, 1, 3);		
+		final ElasticsearchCrudService<TestBean> service = getTestService("testBatchStripedBudget", TestBean.class, true, Optional.of(write_settings));
+
+		@SuppressWarnings("unchecked")
+		final ElasticsearchCrudService<TestBean>.ElasticsearchBatchSubsystem batch_service = service.getUnderlyingPlatformDriver(ElasticsearchBatchSubsystem.class, Optional.empty()).get();
+		
+		// 1) Default budget covers all 4 stripes (built on first use from the write settings)
+		
+		final TestBean test1 = new TestBean();
+		test1._id = "_id_1";
+		test1.test_string = "test_string_1";
+		batch_service.storeObject(test1, false);
+		
+		assertEquals(4, batch_service._stripes.length);
+		assertEquals(4L*ElasticsearchCrudService.DEFAULT_BACKPRESSURE_BATCHES*100L, batch_service._default_max_inflight_docs);
+		assertEquals(4L*ElasticsearchCrudService.DEFAULT_BACKPRESSURE_BATCHES*1023L*1024L, batch_service._default_max_inflight_bytes);
+		
+		// 2) Rebuilding the stripes resets the budget to cover the new stripes
+		
+		batch_service.setBatchProperties(Optional.of(50), Optional.empty(), Optional.of(Duration.of(1, ChronoUnit.SECONDS)), Optional.of(1));
+		
+		assertEquals(2, batch_service._stripes.length);
+		assertEquals(2L*ElasticsearchCrudService.DEFAULT_BACKPRESSURE_BATCHES*50L, batch_service._default_max_inflight_docs);
+		assertEquals(2L*ElasticsearchCrudService.DEFAULT_BACKPRESSURE_BATCHES*10240L*1024L, batch_service._default_max_inflight_bytes);
+		
+		Thread.sleep(3000L);
+		
+		assertEquals(0L, batch_service.getInflightDocs());
+		assertEquals(1, service.countObjects().get().intValue());
+	}
+	
 	@Test
 	public void test_CreateMultipleObjects() throws InterruptedException, ExecutionException {
 		
@@ -420,6 +621,90 @@ public class TestElasticsearchCrudService {
 		
 	}
 
+	@Test
+	public void test_CursorHydration() throws InterruptedException, ExecutionException {
+		
+		final ElasticsearchCrudService<TestBean> service = getTestService("testCursorHydration", TestBean.class);
+		final ElasticsearchCrudService<JsonNode> json_service = service.getRawService();
+		
+		final List<TestBean> l = IntStream.rangeClosed(1, 10).boxed()
+				.map(i -> BeanTemplateUtils.build(TestBean.class).with("test_string", "test_string" + i).with("test_long", (long)i).done().get())
+				.collect(Collectors.toList());
+		service.storeObjects(l).get();
+		assertEquals(10, service.countObjects().get().intValue());
+		
+		// 1) Beans (_id not in the source since it was auto-generated)
+		
+		final List<TestBean> beans = StreamSupport.stream(service.getObjectsBySpec(CrudUtils.allOf(TestBean.class).orderBy(Tuples._2T("test_long", 1))).get().spliterator(), false).collect(Collectors.toList());
+		assertEquals(10, beans.size());
+		assertTrue("Has _id", beans.stream().allMatch(b -> null != b._id));
+		assertEquals("test_string1", beans.get(0).test_string);
+		assertEquals(10L, beans.get(9).test_long.longValue());
+		
+		// 2) JSON
+		
+		final List<JsonNode> jsons = StreamSupport.stream(json_service.getObjectsBySpec(CrudUtils.allOf().orderBy(Tuples._2T("test_long", 1))).get().spliterator(), false).collect(Collectors.toList());
+		assertEquals(10, jsons.size());
+		assertEquals(beans.get(0)._id, jsons.get(0).get("_id").asText());
+		assertEquals("test_string1", jsons.get(0).get("test_string").asText());
+		
+		// 3) _id only projection (no source fetched)
+		
+		final List<TestBean> ids = StreamSupport.stream(service.getObjectsBySpec(CrudUtils.allOf(TestBean.class).orderBy(Tuples._2T("test_long", 1)), Arrays.asList("_id"), true).get().spliterator(), false).collect(Collectors.toList());
+		assertEquals(10, ids.size());
+		assertEquals(beans.get(0)._id, ids.get(0)._id);
+		assertEquals(null, ids.get(0).test_string);
+		
+		// 4) Other projections
+		
+		final Optional<TestBean> projected = service.getObjectBySpec(CrudUtils.allOf(TestBean.class).when("test_long", 2L), Arrays.asList("test_long"), false).get();
+		assertEquals("test_string2", projected.get().test_string);
+		assertEquals(null, projected.get().test_long);
+		assertEquals(beans.get(1)._id, projected.get()._id);
+	}
+	
+	@Test
+	public void test_CachedCount() throws InterruptedException, ExecutionException {
+		
+		final ElasticsearchCrudService<TestBean> service = getTestService("testCachedCount", TestBean.class);
+		
+		// (auto types, so the service owns all the docs in the index)
+		final ElasticsearchCrudService<TestBean> auto_service = _factory.getElasticsearchCrudService(TestBean.class,
+				new ElasticsearchContext.ReadWriteContext(_factory.getClient(), 
+						new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext("testcachedcount", Optional.empty(), Either.left(true)),
+						new ElasticsearchContext.TypeContext.ReadWriteTypeContext.AutoRwTypeContext(Optional.empty(), Optional.empty(), Collections.emptySet())),
+				Optional.of(false), CreationPolicy.AVAILABLE_IMMEDIATELY,
+				Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+		auto_service.setCountCacheTtl(Optional.of(Duration.ofMinutes(1L)));
+		
+		final List<TestBean> l = IntStream.rangeClosed(1, 10).boxed()
+				.map(i -> BeanTemplateUtils.build(TestBean.class).with("test_string", "test_string" + i).with("test_long", (long)i).done().get())
+				.collect(Collectors.toList());
+		service.storeObjects(l).get();
+		
+		assertEquals(10, auto_service.countObjects().get().intValue());
+		
+		service.storeObject(BeanTemplateUtils.build(TestBean.class).with("test_string", "test_string11").done().get()).get();
+		
+		// Cached vs exact vs refreshed
+		assertEquals(10, auto_service.countObjects().get().intValue());
+		assertEquals(11, service.countObjects().get().intValue());
+		assertEquals(11, auto_service.refreshCachedCount().get().intValue());
+		assertEquals(11, auto_service.countObjects().get().intValue());
+		
+		// Counts by spec are always exact
+		assertEquals(1, auto_service.countObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_long", 5L)).get().intValue());
+		
+		// Fixed types aren't cached even if requested
+		service.setCountCacheTtl(Optional.of(Duration.ofMinutes(1L)));
+		service.storeObject(BeanTemplateUtils.build(TestBean.class).with("test_string", "test_string12").done().get()).get();
+		assertEquals(12, service.countObjects().get().intValue());
+		
+		// Turned off again
+		auto_service.setCountCacheTtl(Optional.empty());
+		assertEquals(12, auto_service.countObjects().get().intValue());
+	}
+	
 	@Test
 	public void test_CreateMultipleObjects_JSON() throws InterruptedException, ExecutionException {
 		
@@ -953,6 +1238,173 @@ public class TestElasticsearchCrudService {
 		}
 	}
 	
+	@Test
+	public void test_scrollingRetrieve() throws InterruptedException, ExecutionException {
+		
+		final ElasticsearchCrudService<TestBean> service = getTestService("test_scrollingRetrieve", TestBean.class);
+		
+		final int num_docs = 2*ElasticsearchCrudService.SCROLL_PAGE_SIZE + 50;
+		
+		final List<TestBean> l = IntStream.range(0, num_docs).boxed()
+				.map(i -> BeanTemplateUtils.build(TestBean.class)
+								.with("_id", "id" + i)
+								.with("test_string", "test_string" + i)
+								.with("test_long", (Long)(long)i)
+								.done().get())
+				.collect(Collectors.toList());
+
+		service.storeObjects(l).get();
+		
+		assertEquals(num_docs, service.countObjects().get().intValue());
+		
+		// 1) No limit - get everything, across multiple pages
+		
+		try (Cursor<TestBean> cursor = service.getObjectsBySpec(CrudUtils.allOf(TestBean.class)).get()) {
+			
+			assertEquals(num_docs, cursor.count());
+			
+			final Set<String> ids = StreamSupport.stream(cursor.spliterator(), false).map(b -> b._id()).collect(Collectors.toSet());
+			
+			assertEquals(num_docs, ids.size());
+		}
+		catch (Exception e) {
+			//(fail on close, normally carry on - but here error out)
+			fail("getObjectsBySpec errored on close"); 
+		}
+		
+		// 2) Limit that is larger than a page but smaller than the total
+		
+		final long limit = ElasticsearchCrudService.SCROLL_PAGE_SIZE + 10;
+		try (Cursor<TestBean> cursor = service.getObjectsBySpec(CrudUtils.allOf(TestBean.class).orderBy(Tuples._2T("test_long", 1)).limit(limit)).get()) {
+			
+			assertEquals(num_docs, cursor.count()); // (count ignores limit)
+			
+			final List<TestBean> objs = StreamSupport.stream(cursor.spliterator(), false).collect(Collectors.toList());
+			
+			assertEquals(limit, objs.size());
+			assertEquals("id0", objs.get(0)._id());
+			assertEquals("id" + (limit - 1), objs.get(objs.size() - 1)._id());
+		}
+		catch (Exception e) {
+			//(fail on close, normally carry on - but here error out)
+			fail("getObjectsBySpec errored on close"); 
+		}
+	}
+	
+	@Test
+	public void test_searchService() throws Exception {
+		
+		final ElasticsearchCrudService<TestBean> service = getTestService("test_searchService", TestBean.class);
+		
+		final List<TestBean> l = IntStream.range(0, 10).boxed()
+				.map(i -> BeanTemplateUtils.build(TestBean.class)
+								.with("_id", "id" + i)
+								.with("test_string", ((0 == (i % 2)) ? "the quick brown fox " : "the lazy dog ") + i)
+								.with("test_bool", i < 4)
+								.with("test_long", (Long)(long)i)
+								.done().get())
+				.collect(Collectors.toList());
+
+		service.storeObjects(l).get();
+		
+		assertEquals(10, service.countObjects().get().intValue());
+		
+		final ElasticsearchCrudService<TestBean>.ElasticsearchSearchService search_service = 
+				(ElasticsearchCrudService<TestBean>.ElasticsearchSearchService) service.getSearchService().get();
+		
+		// 1) Full text query plus a CRUD filter
+		
+		try (ElasticsearchCrudService<TestBean>.ElasticsearchSearchCursor cursor = 
+				search_service.search(Optional.of("test_string:fox"), CrudUtils.allOf(TestBean.class).when("test_bool", true)).get()) 
+		{
+			assertEquals(2, cursor.count());
+			assertEquals(Arrays.asList("id0", "id2"), 
+					StreamSupport.stream(cursor.spliterator(), false).map(b -> b._id()).sorted().collect(Collectors.toList()));
+			assertEquals(Optional.empty(), cursor.getAggregations());
+		}
+		
+		// 2) Highlighting
+		
+		try (ElasticsearchCrudService<TestBean>.ElasticsearchSearchCursor cursor = 
+				search_service.search(Optional.of("test_string:dog"), CrudUtils.allOf(TestBean.class), Arrays.asList("test_string"), Optional.empty()).get()) 
+		{
+			assertEquals(5, cursor.count());
+			final Iterator<Tuple2<TestBean, Map<String, List<String>>>> it = cursor.hitsWithHighlights();
+			int num_hits = 0;
+			while (it.hasNext()) {
+				final Tuple2<TestBean, Map<String, List<String>>> hit = it.next();
+				assertTrue("Highlighted: " + hit._2(), hit._2().get("test_string").get(0).contains("<em>dog</em>"));
+				num_hits++;
+			}
+			assertEquals(5, num_hits);
+		}
+		
+		// 3) Aggregations only
+		
+		final JsonNode aggs = BeanTemplateUtils.configureMapper(Optional.empty()).readTree("{\"max_long\":{\"max\":{\"field\":\"test_long\"}}}");
+		try (ElasticsearchCrudService<TestBean>.ElasticsearchSearchCursor cursor = 
+				search_service.search(Optional.empty(), CrudUtils.allOf(TestBean.class).limit(0), Collections.emptyList(), Optional.of(aggs)).get()) 
+		{
+			assertEquals(10, cursor.count());
+			assertFalse(cursor.iterator().hasNext());
+			assertEquals(9.0, cursor.getAggregations().get().get("max_long").get("value").asDouble(), 0.0);
+		}
+	}
+	
+	@Test
+	public void test_aggregations() throws Exception {
+		
+		final ElasticsearchCrudService<JsonNode> service = getTestService("test_aggregations", TestBean.class).getRawService();
+		
+		// 3 docs/day on 2015-06-01..03, with test_long 0..8 and test_string one of 3 values
+		final List<JsonNode> l = IntStream.range(0, 9).boxed()
+				.map(i -> (JsonNode) BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode()
+								.put("_id", "id" + i)
+								.put("test_string", "value" + (i % 3))
+								.put("test_long", (long)i)
+								.put("test_date", "2015-06-0" + (1 + i/3) + "T12:00:00Z"))
+				.collect(Collectors.toList());
+
+		service.storeObjects(l).get();
+		
+		assertEquals(9, service.countObjects().get().intValue());
+		
+		// Typed single aggregations
+		
+		final Map<String, Long> terms = service.aggregateBySpec(CrudUtils.allOf(), new ElasticsearchAggregation.TermsAggregation("terms", "test_string", 10)).get();
+		assertEquals(3, terms.size());
+		assertEquals(3L, terms.get("value0").longValue());
+		
+		final Map<Long, Long> per_day = service.aggregateBySpec(CrudUtils.allOf(), new ElasticsearchAggregation.DateHistogramAggregation("per_day", "test_date", "day")).get();
+		assertEquals(Arrays.asList(3L, 3L, 3L), per_day.values().stream().collect(Collectors.toList()));
+		assertEquals(24L*3600L*1000L, per_day.keySet().stream().skip(1).findFirst().get() - per_day.keySet().iterator().next());
+		
+		assertEquals(3L, service.aggregateBySpec(CrudUtils.allOf(), new ElasticsearchAggregation.CardinalityAggregation("distinct", "test_string")).get().longValue());
+		
+		// (with a filter)
+		final ElasticsearchAggregation.StatsAggregation.StatsResult stats = 
+				service.aggregateBySpec(CrudUtils.allOf().when("test_string", "value1"), new ElasticsearchAggregation.StatsAggregation("stats", "test_long")).get();
+		assertEquals(3L, stats.count());
+		assertEquals(1.0, stats.min(), 0.0);
+		assertEquals(7.0, stats.max(), 0.0);
+		assertEquals(12.0, stats.sum(), 0.0);
+		
+		// Multiple aggregations in one request
+		
+		final Map<String, Object> multi = service.aggregateBySpec(CrudUtils.allOf(), Arrays.<ElasticsearchAggregation<?>>asList(
+				new ElasticsearchAggregation.CardinalityAggregation("distinct", "test_string"),
+				new ElasticsearchAggregation.StatsAggregation("stats", "test_long")
+				)).get();
+		assertEquals(3L, multi.get("distinct"));
+		assertEquals(9L, ((ElasticsearchAggregation.StatsAggregation.StatsResult)multi.get("stats")).count());
+		
+		// Missing index
+		
+		final ElasticsearchCrudService<TestBean> service2 = getTestService("test_aggregations_missing", TestBean.class, false, Optional.empty());
+		assertEquals(0L, service2.aggregateBySpec(CrudUtils.allOf(TestBean.class), new ElasticsearchAggregation.CardinalityAggregation("distinct", "test_string")).get().longValue());
+		assertEquals(Collections.emptyMap(), service2.aggregateBySpec(CrudUtils.allOf(TestBean.class), new ElasticsearchAggregation.TermsAggregation("terms", "test_string", 10)).get());
+	}
+	
 	@Test
 	public void test_Counting() throws InterruptedException, ExecutionException {
 		
@@ -1006,6 +1458,103 @@ public class TestElasticsearchCrudService {
 		assertEquals(0L, (long)service.countObjectsBySpec(query_4).get());
 	}
 	
+	@Test
+	public void test_UpdateAndDeleteDocs() throws InterruptedException, ExecutionException {
+		
+		final ElasticsearchCrudService<TestBean> service = getTestService("testUpdateAndDeleteDocs", TestBean.class);
+		
+		final List<TestBean> docs = IntStream.range(0, 2*ElasticsearchCrudService.SCROLL_PAGE_SIZE + 10).boxed()
+				.map(i -> BeanTemplateUtils.build(TestBean.class)
+								.with("_id", "id" + i)
+								.with("test_string", (0 == (i % 2)) ? "even" : "odd")
+								.with("test_long", (long)i)
+							.done().get())
+				.collect(Collectors.toList());
+		service.storeObjects(docs).get();
+		assertEquals(docs.size(), service.countObjects().get().intValue());
+		
+		// 1) Single object updates
+		
+		assertEquals(false, service.updateObjectById("not_present", CrudUtils.update(TestBean.class).set("test_string", "x")).get());
+		assertEquals(true, service.updateObjectById("id1", CrudUtils.update(TestBean.class).set("test_string", "x")).get());
+		assertEquals("x", service.getObjectById("id1").get().get().test_string);
+		
+		assertEquals(true, service.updateObjectBySpec(CrudUtils.allOf(TestBean.class).when("_id", "id2"), Optional.of(false), 
+								CrudUtils.update(TestBean.class).increment("test_long", 100).add("test_string_list", "a", false)).get());
+		final TestBean id2 = service.getObjectById("id2").get().get();
+		assertEquals(102L, id2.test_long.longValue());
+		assertEquals(Arrays.asList("a"), id2.test_string_list);
+		
+		// 1b) Upsert
+		
+		assertEquals(true, service.updateObjectBySpec(CrudUtils.allOf(TestBean.class).when("_id", "upserted").when("test_string", "upsert"), Optional.of(true), 
+								CrudUtils.update(TestBean.class).set("test_long", -1L)).get());
+		final TestBean upserted = service.getObjectById("upserted").get().get();
+		assertEquals("upsert", upserted.test_string);
+		assertEquals(-1L, upserted.test_long.longValue());
+		assertEquals(docs.size() + 1, service.countObjects().get().intValue());
+		
+		// 2) Update and return
+		
+		final Optional<TestBean> before = service.updateAndReturnObjectBySpec(CrudUtils.allOf(TestBean.class).when("_id", "id4"), Optional.of(false), 
+												CrudUtils.update(TestBean.class).increment("test_long", 1), Optional.of(true), Arrays.asList(), false).get();
+		assertEquals(4L, before.get().test_long.longValue());
+		final Optional<TestBean> after = service.updateAndReturnObjectBySpec(CrudUtils.allOf(TestBean.class).when("_id", "id4"), Optional.of(false), 
+												CrudUtils.update(TestBean.class).increment("test_long", 1), Optional.of(false), Arrays.asList("test_long"), true).get();
+		assertEquals(6L, after.get().test_long.longValue());
+		assertEquals("id4", after.get()._id);
+		assertEquals(null, after.get().test_string);
+		
+		// 3) Multi-object updates (across several scroll pages)
+		
+		assertEquals(ElasticsearchCrudService.SCROLL_PAGE_SIZE + 5, 
+				service.updateObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "even"), Optional.of(false), CrudUtils.update(TestBean.class).set("test_bool", true)).get().intValue());
+		assertEquals(ElasticsearchCrudService.SCROLL_PAGE_SIZE + 5, service.countObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_bool", true)).get().intValue());
+		
+		assertEquals(10, 
+				service.updateObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "odd").limit(10), Optional.of(false), CrudUtils.update(TestBean.class).set("test_bool", false)).get().intValue());
+		assertEquals(10, service.countObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_bool", false)).get().intValue());
+		
+		// 3b) Unsupported operators fail before anything is updated
+		
+		try {
+			service.updateObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "odd"), Optional.of(false), 
+					CrudUtils.update(TestBean.class).set("test_bool", true).remove("test_string_list", CrudUtils.allOf(TestBean.class).when("test_string", "a"))).get();
+			fail("Should have thrown");
+		}
+		catch (ExecutionException e) {
+			assertEquals(ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "remove/query"), e.getCause().getMessage());
+		}
+		assertEquals(10, service.countObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_bool", false)).get().intValue());
+		assertEquals(0, service.countObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "odd").when("test_bool", true)).get().intValue());
+		
+		// 3c) Upsert only happens if nothing matched
+		
+		assertEquals(1L, service.updateObjectsBySpec(CrudUtils.allOf(TestBean.class).when("_id", "upserted2").when("test_string", "upsert"), Optional.of(true), 
+								CrudUtils.update(TestBean.class).set("test_long", -2L)).get().longValue());
+		assertEquals(1L, service.updateObjectsBySpec(CrudUtils.allOf(TestBean.class).when("_id", "upserted2").when("test_string", "upsert"), Optional.of(true), 
+								CrudUtils.update(TestBean.class).set("test_long", -3L)).get().longValue());
+		assertEquals(-3L, service.getObjectById("upserted2").get().get().test_long.longValue());
+		assertEquals(true, service.deleteObjectById("upserted2").get());
+		
+		// 4) Single object deletes
+		
+		assertEquals(false, service.deleteObjectById("not_present").get());
+		assertEquals(true, service.deleteObjectById("upserted").get());
+		assertEquals(Optional.empty(), service.getObjectById("upserted").get());
+		assertEquals(true, service.deleteObjectBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "x")).get());
+		assertEquals(docs.size() - 1, service.countObjects().get().intValue());
+		
+		// 5) Multi-object deletes
+		
+		assertEquals(5L, service.deleteObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_bool", false).orderBy(Tuples._2T("test_long", 1)).limit(5)).get().longValue());
+		assertEquals(5, service.countObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_bool", false)).get().intValue());
+		
+		assertEquals(ElasticsearchCrudService.SCROLL_PAGE_SIZE + 5L, service.deleteObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "even")).get().longValue());
+		assertEquals(0, service.countObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "even")).get().intValue());
+		
+		assertEquals(0L, service.deleteObjectsBySpec(CrudUtils.allOf(TestBean.class).when("test_string", "not_present")).get().longValue());
+	}
 	
 	////////////////////////////////////////////////
 	////////////////////////////////////////////////
@@ -1575,7 +2124,7 @@ public class TestElasticsearchCrudService {
 		}
 		
 		// 3+4) Now wait 10s to be up, add more objects, check that they gets added to another index
-		// (add 2, the first one should go on the old one, the second after a wait should go on the new one)
+		// (the size is checked in the background, so both should go on the new one)
 		
 		Thread.sleep(11000L);
 		{
@@ -1609,9 +2158,9 @@ public class TestElasticsearchCrudService {
 		
 			assertEquals(2, stats.getIndices().size());
 			assertTrue("Base index: " + stats.getIndices().keySet(), null != stats.getIndex("test_checkmaxindexsize"));
-			assertEquals(3L, stats.getIndex("test_checkmaxindexsize").getTotal().getDocs().getCount());
+			assertEquals(2L, stats.getIndex("test_checkmaxindexsize").getTotal().getDocs().getCount());
 			assertTrue("Second index: " + stats.getIndices().keySet(), null != stats.getIndex("test_checkmaxindexsize_1"));
-			assertEquals(1L, stats.getIndex("test_checkmaxindexsize_1").getTotal().getDocs().getCount());
+			assertEquals(2L, stats.getIndex("test_checkmaxindexsize_1").getTotal().getDocs().getCount());
 		}
 		
 		// 5) Get a new context for the same service with a larger size, check that it writes to an existing one
@@ -1630,9 +2179,9 @@ public class TestElasticsearchCrudService {
 
 			assertEquals(2, stats.getIndices().size());
 			assertTrue("Base index: " + stats.getIndices().keySet(), null != stats.getIndex("test_checkmaxindexsize"));
-			assertEquals(4L, stats.getIndex("test_checkmaxindexsize").getTotal().getDocs().getCount());
+			assertEquals(3L, stats.getIndex("test_checkmaxindexsize").getTotal().getDocs().getCount());
 			assertTrue("Second index: " + stats.getIndices().keySet(), null != stats.getIndex("test_checkmaxindexsize_1"));
-			assertEquals(1L, stats.getIndex("test_checkmaxindexsize_1").getTotal().getDocs().getCount());
+			assertEquals(2L, stats.getIndex("test_checkmaxindexsize_1").getTotal().getDocs().getCount());
 		}
 		
 		// 6) Get a new context for the same service with the same zero size, check that it writes to a new one (immediately)
@@ -1652,9 +2201,9 @@ public class TestElasticsearchCrudService {
 
 			assertEquals(3, stats.getIndices().size());
 			assertTrue("Base index: " + stats.getIndices().keySet(), null != stats.getIndex("test_checkmaxindexsize"));
-			assertEquals(4L, stats.getIndex("test_checkmaxindexsize").getTotal().getDocs().getCount());
+			assertEquals(3L, stats.getIndex("test_checkmaxindexsize").getTotal().getDocs().getCount());
 			assertTrue("Second index: " + stats.getIndices().keySet(), null != stats.getIndex("test_checkmaxindexsize_1"));
-			assertEquals(1L, stats.getIndex("test_checkmaxindexsize_1").getTotal().getDocs().getCount());
+			assertEquals(2L, stats.getIndex("test_checkmaxindexsize_1").getTotal().getDocs().getCount());
 			assertTrue("Third index: " + stats.getIndices().keySet(), null != stats.getIndex("test_checkmaxindexsize_2"));
 			assertEquals(1L, stats.getIndex("test_checkmaxindexsize_2").getTotal().getDocs().getCount());
 		}
@@ -1679,6 +2228,49 @@ public class TestElasticsearchCrudService {
 		assertEquals(0, stats.getIndices().size());		
 	}
 	
+	@Test
+	public void test_checkMaxIndexDocs() throws InterruptedException, ExecutionException {
+		final ElasticsearchCrudService<TestBean> service = _factory.getElasticsearchCrudService(TestBean.class,
+				new ElasticsearchContext.ReadWriteContext(_factory.getClient(), 
+						new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext("test_checkmaxindexdocs", Optional.empty(), Optional.of(2L), Optional.empty(), Either.left(false)),
+						new ElasticsearchContext.TypeContext.ReadWriteTypeContext.FixedRwTypeContext("test")),
+				Optional.of(false), CreationPolicy.AVAILABLE_IMMEDIATELY,
+				Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+		service.deleteDatastore().get();
+		
+		// 1) Writes go to the base index until the next check, even though it's over the limit
+		
+		service.storeObjects(IntStream.rangeClosed(1, 3).boxed()
+				.map(i -> BeanTemplateUtils.build(TestBean.class).with("_id", "id" + i).with("test_string", "test_string" + i).done().get())
+				.collect(Collectors.toList()))
+			.get();
+		
+		{
+			IndicesStatsResponse stats = service._state.client.admin().indices()
+					.prepareStats("test_checkmaxindexdocs*").setDocs(true).execute().actionGet();
+			
+			assertEquals(1, stats.getIndices().size());
+			assertEquals(3L, stats.getIndex("test_checkmaxindexdocs").getPrimaries().getDocs().getCount());
+		}
+		
+		// 2) After the background check, writes go to a new index
+		
+		Thread.sleep(11000L);
+		service.storeObject(BeanTemplateUtils.build(TestBean.class).with("_id", "id4").with("test_string", "test_string4").done().get()).get();
+		
+		{
+			IndicesStatsResponse stats = service._state.client.admin().indices()
+					.prepareStats("test_checkmaxindexdocs*").setDocs(true).execute().actionGet();
+			
+			assertEquals(2, stats.getIndices().size());
+			assertEquals(3L, stats.getIndex("test_checkmaxindexdocs").getPrimaries().getDocs().getCount());
+			assertEquals(1L, stats.getIndex("test_checkmaxindexdocs_1").getPrimaries().getDocs().getCount());
+		}
+		assertEquals(4L, service.countObjects().get().longValue());
+		
+		service.deleteDatastore().get();
+	}
+	
 	@Test
 	public void test_checkAliases_unlimitedIndex() throws InterruptedException, ExecutionException {
 		final ElasticsearchCrudService<TestBean> service = getTestService("test_checkmaxindexsize_unlimitedindex", TestBean.class, false, true, Optional.empty(), Optional.of(-1L), true);
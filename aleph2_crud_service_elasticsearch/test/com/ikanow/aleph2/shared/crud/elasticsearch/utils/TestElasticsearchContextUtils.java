@@ -20,13 +20,21 @@ import static org.junit.Assert.*;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.elasticsearch.client.Client;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.shared.crud.elasticsearch.services.MockElasticsearchCrudServiceFactory;
 
 public class TestElasticsearchContextUtils {
 
@@ -121,4 +129,113 @@ public class TestElasticsearchContextUtils {
 		
 	}
 	
+	@Test
+	public void test_collapsedIndexesFromDateRange() {
+		
+		Calendar c1 = GregorianCalendar.getInstance();
+		Calendar c2 = GregorianCalendar.getInstance();
+		
+		// ~90 days of hourly indexes
+		
+		c1.set(2004, 10, 28, 22, 53, 01); c2.set(2005, 1, 26, 1, 0, 0);
+		final List<String> res1 = ElasticsearchContextUtils.getCollapsedIndexesFromDateRange("test_{yyyy-MM-dd-HH}", 
+				Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())).collect(Collectors.toList());
+		
+		assertEquals(33, res1.size());
+		assertEquals(Arrays.asList("test_2004-11-28-22*", "test_2004-11-28-23*", "test_2004-11-29-*", "test_2004-11-30-*", "test_2004-12-*", "test_2005-01-*", "test_2005-02-01-*"), 
+				res1.subList(0, 7));
+		assertEquals(Arrays.asList("test_2005-02-25-*", "test_2005-02-26-00*", "test_2005-02-26-01*"), 
+				res1.subList(30, 33));
+		assertTrue("Uncollapsed is much bigger", 2000L < ElasticsearchContextUtils.getIndexesFromDateRange("test_{yyyy-MM-dd-HH}", 
+				Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())).count());
+		
+		// Whole years of daily indexes
+		
+		c1.set(2014, 11, 31); c2.set(2016, 0, 1);
+		assertEquals(Arrays.asList("test_2014-12-31*", "test_2015*", "test_2016-01-01*"), 
+				ElasticsearchContextUtils.getCollapsedIndexesFromDateRange("test_{yyyy-MM-dd}", 
+						Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())).collect(Collectors.toList()));
+		
+		// Formats that can't be collapsed
+		
+		c1.set(2015, 0, 1); c2.set(2015, 1, 2);
+		final List<String> res2 = ElasticsearchContextUtils.getCollapsedIndexesFromDateRange("test_{dd.MM.yyyy}", 
+				Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())).collect(Collectors.toList());
+		assertEquals(33, res2.size());
+		assertEquals("test_01.01.2015*", res2.get(0));
+		
+		c1.set(2004, 11, 28); c2.set(2005,  0, 2);
+		assertEquals(Arrays.asList("test_2005-01*","test_2005-02*"), 
+				ElasticsearchContextUtils.getCollapsedIndexesFromDateRange("test_{YYYY-ww}", 
+						Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())).collect(Collectors.toList()));
+		
+		assertEquals(Arrays.asList("test*"), ElasticsearchContextUtils.getCollapsedIndexesFromDateRange("test", 
+				Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())).collect(Collectors.toList()));
+	}
+	
+	@Test
+	public void test_pruneIndexPatterns() {
+		final TreeSet<String> existing = new TreeSet<String>(Arrays.asList("test_2004-12-05-10", "test_2005-01-03-00_1", "test_other"));
+		
+		assertEquals(Arrays.asList("test_2004-12-*", "test_2005-01-*", "test_2005-02-01-*"), 
+				ElasticsearchContextUtils.pruneIndexPatterns(existing, Arrays.asList("test_2004-11-30-*", "test_2004-12-*", "test_2005-01-*", "test_2005-01-31-23*", "test_2005-02-01-*")));
+		
+		// (always keeps the last one)
+		assertEquals(Arrays.asList("test_2006*"), 
+				ElasticsearchContextUtils.pruneIndexPatterns(existing, Arrays.asList("test_2005-02*", "test_2006*")));
+		
+		// No client, so no pruning
+		Calendar c1 = GregorianCalendar.getInstance();
+		Calendar c2 = GregorianCalendar.getInstance();
+		c1.set(2004, 11, 28); c2.set(2005,  0, 2);
+		assertEquals(Arrays.asList("test_2004-12*", "test_2005-01*"), 
+				ElasticsearchContextUtils.getPrunedIndexesFromDateRange(Optional.empty(), "test_{yyyy-MM}", 
+						Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())));
+	}
+	
+	@Test
+	public void test_existingIndexes() throws InterruptedException, ExecutionException {
+		final Client client = new MockElasticsearchCrudServiceFactory().getClient();
+		try {
+			client.admin().indices().prepareDelete("test_existing_*").get();
+		}
+		catch (Exception e) {} // (This is fine, just means it doesn't exist)
+		client.admin().indices().prepareCreate("test_existing_2004-12").get();
+		
+		Calendar c1 = GregorianCalendar.getInstance();
+		Calendar c2 = GregorianCalendar.getInstance();
+		c1.set(2004, 10, 28); c2.set(2005,  0, 2);
+		
+		// Not fetched yet, so doesn't wait for the cluster state, just doesn't prune
+		assertEquals(Optional.empty(), ElasticsearchContextUtils.getExistingIndexes(client, "test_existing"));
+		assertEquals(Arrays.asList("test_existing_2004-11*", "test_existing_2004-12*", "test_existing_2005-01*"), 
+				ElasticsearchContextUtils.getPrunedIndexesFromDateRange(Optional.of(client), "test_existing_{yyyy-MM}", 
+						Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())));
+		
+		// Once fetched (in the background), prunes
+		assertEquals(Arrays.asList("test_existing_2004-12"), 
+				ElasticsearchContextUtils.refreshExistingIndexes(client, "test_existing").get().stream().collect(Collectors.toList()));
+		assertEquals(Optional.of(Arrays.asList("test_existing_2004-12")), 
+				ElasticsearchContextUtils.getExistingIndexes(client, "test_existing").map(s -> s.stream().collect(Collectors.toList())));
+		assertEquals(Arrays.asList("test_existing_2004-12*", "test_existing_2005-01*"), 
+				ElasticsearchContextUtils.getPrunedIndexesFromDateRange(Optional.of(client), "test_existing_{yyyy-MM}", 
+						Tuples._2T(c1.getTime().getTime(), c2.getTime().getTime())));
+	}
+	
+	@Test
+	public void test_parseTime() {
+		// (same result whether the time is a query term or a field of an object being written)
+		assertEquals(Optional.of(1000L), ElasticsearchContextUtils.parseTime(new Date(1000L)));
+		assertEquals(Optional.of(1000L), ElasticsearchContextUtils.parseTime(1000L));
+		assertEquals(Optional.of(1000L), ElasticsearchContextUtils.parseTime(JsonNodeFactory.instance.numberNode(1000L)));
+		assertEquals(Optional.of(1000L), ElasticsearchContextUtils.parseTime(JsonNodeFactory.instance.numberNode(1000)));
+		assertEquals(Optional.of(1420070400000L), ElasticsearchContextUtils.parseTime("2015-01-01T00:00:00Z"));
+		assertEquals(Optional.of(1420070400000L), ElasticsearchContextUtils.parseTime(JsonNodeFactory.instance.textNode("2015-01-01T00:00:00Z")));
+		assertEquals(Optional.of(1420070400000L), ElasticsearchContextUtils.parseTime("2015-01-01"));
+		
+		assertEquals(Optional.empty(), ElasticsearchContextUtils.parseTime("not a date"));
+		assertEquals(Optional.empty(), ElasticsearchContextUtils.parseTime(JsonNodeFactory.instance.booleanNode(true)));
+		assertEquals(Optional.empty(), ElasticsearchContextUtils.parseTime(null));
+	}
+	
 }
@@ -20,8 +20,10 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
@@ -40,9 +42,13 @@ import org.mockito.stubbing.Answer;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.BeanTemplate;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
@@ -1234,4 +1240,112 @@ public class TestElasticsearchUtils {
 	}
 	
 	
+	@Test
+	public void test_getDateRangeFromQuery() {
+		
+		// 1) Bounded range on the time field
+		
+		final SingleQueryComponent<TestBean> query_1 = CrudUtils.allOf(TestBean.class)
+				.when("string_field", "string_field")
+				.rangeIn("long_field", 1000L, true, 2000L, false);
+		
+		assertEquals(Optional.of(Tuples._2T(1000L, 2000L)), ElasticsearchUtils.getDateRangeFromQuery(query_1, "long_field"));
+		
+		// 2) Not the time field
+		
+		assertEquals(Optional.empty(), ElasticsearchUtils.getDateRangeFromQuery(query_1, "other_field"));
+		
+		// 3) Half open range - no pruning
+		
+		final SingleQueryComponent<TestBean> query_3 = CrudUtils.allOf(TestBean.class)
+				.rangeAbove("long_field", 1000L, true);
+		
+		assertEquals(Optional.empty(), ElasticsearchUtils.getDateRangeFromQuery(query_3, "long_field"));
+		
+		// 4) Two half open ranges ANDed together, one as a date
+		
+		final SingleQueryComponent<TestBean> query_4 = CrudUtils.allOf(TestBean.class)
+				.rangeAbove("long_field", 1000L, true)
+				.rangeBelow("long_field", new Date(3000L), true);
+		
+		assertEquals(Optional.of(Tuples._2T(1000L, 3000L)), ElasticsearchUtils.getDateRangeFromQuery(query_4, "long_field"));
+		
+		// 5) OR of a time clause and a non time clause - no pruning
+		
+		final SingleQueryComponent<TestBean> query_5 = CrudUtils.anyOf(TestBean.class)
+				.when("string_field", "string_field")
+				.rangeIn("long_field", 1000L, true, 2000L, false);
+		
+		assertEquals(Optional.empty(), ElasticsearchUtils.getDateRangeFromQuery(query_5, "long_field"));
+		
+		// 6) Multi queries - union and intersection
+		
+		final SingleQueryComponent<TestBean> query_6a = CrudUtils.allOf(TestBean.class).rangeIn("long_field", 1000L, true, 2000L, false);
+		final SingleQueryComponent<TestBean> query_6b = CrudUtils.allOf(TestBean.class).rangeIn("long_field", 1500L, true, 4000L, false);
+		
+		assertEquals(Optional.of(Tuples._2T(1000L, 4000L)), ElasticsearchUtils.getDateRangeFromQuery(CrudUtils.<TestBean>anyOf(query_6a, query_6b), "long_field"));
+		assertEquals(Optional.of(Tuples._2T(1500L, 2000L)), ElasticsearchUtils.getDateRangeFromQuery(CrudUtils.<TestBean>allOf(query_6a, query_6b), "long_field"));
+		assertEquals(Optional.empty(), ElasticsearchUtils.getDateRangeFromQuery(CrudUtils.<TestBean>anyOf(query_6a, query_3), "long_field"));
+	}
+	
+	@Test
+	public void test_applyUpdate() {
+		final ObjectMapper mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+		
+		final ObjectNode doc = (ObjectNode) mapper.valueToTree(BeanTemplateUtils.build(TestBean.class)
+				.with("_id", "id1")
+				.with("string_field", "a")
+				.with("string_fields", Arrays.asList("x", "y", "z"))
+				.with("bool_field", true)
+				.with("long_field", 5L)
+				.with("nested_object", BeanTemplateUtils.build(TestBean.NestedTestBean.class).with("nested_string_field", "n").done().get())
+				.done().get());
+		
+		// 1) Delete object
+		
+		assertTrue(ElasticsearchUtils.isDeleteObjectUpdate(CrudUtils.update(TestBean.class).deleteObject()));
+		assertFalse(ElasticsearchUtils.isDeleteObjectUpdate(CrudUtils.update(TestBean.class).set("string_field", "b")));
+		
+		// 2) Partial doc updates (only sets of non objects)
+		
+		final UpdateComponent<TestBean> partial = CrudUtils.update(TestBean.class).set("string_field", "b").set("nested_object.nested_string_field", "m");
+		assertTrue(ElasticsearchUtils.isPartialDocUpdate(partial, mapper));
+		assertEquals("{\"string_field\":\"b\",\"nested_object\":{\"nested_string_field\":\"m\"}}", ElasticsearchUtils.createPartialUpdateDoc(partial, mapper).toString());
+		assertFalse(ElasticsearchUtils.isPartialDocUpdate(CrudUtils.update(TestBean.class).set("nested_object", 
+				BeanTemplateUtils.build(TestBean.NestedTestBean.class).with("nested_string_field", "n").done()), mapper));
+		assertFalse(ElasticsearchUtils.isPartialDocUpdate(CrudUtils.update(TestBean.class).increment("long_field", 1), mapper));
+		
+		// 3) Apply all the operators
+		
+		final UpdateComponent<TestBean> update = CrudUtils.update(TestBean.class)
+				.set("string_field", "b")
+				.set("_id", "id2") // (ignored)
+				.increment("long_field", 2)
+				.unset("bool_field")
+				.unset("nested_object.nested_string_field")
+				.add("string_fields", "x", false)
+				.add("string_fields", Arrays.asList("x", "w"), true)
+				.remove("string_fields", "y")
+				.add("nested_object.nested_string_list", "l", false)
+				;
+		
+		ElasticsearchUtils.applyUpdate(doc, update, mapper);
+		
+		assertEquals("id1", doc.get("_id").asText());
+		assertEquals("b", doc.get("string_field").asText());
+		assertEquals(7L, doc.get("long_field").asLong());
+		assertFalse(doc.has("bool_field"));
+		assertEquals("[\"x\",\"z\",\"x\",\"w\"]", doc.get("string_fields").toString());
+		assertEquals("{\"nested_string_list\":[\"l\"]}", doc.get("nested_object").toString());
+		
+		// 4) Upsert
+		
+		final ObjectNode upserted = ElasticsearchUtils.createUpsertDoc(
+				CrudUtils.allOf(TestBean.class).when("string_field", "c").rangeAbove("long_field", 4, false),
+				CrudUtils.update(TestBean.class).increment("long_field", 1).set("bool_field", false), 
+				mapper);
+		
+		assertEquals("{\"string_field\":\"c\",\"long_field\":1,\"bool_field\":false}", upserted.toString());
+	}
+	
 }
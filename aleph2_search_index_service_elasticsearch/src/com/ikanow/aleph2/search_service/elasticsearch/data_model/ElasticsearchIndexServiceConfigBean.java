@@ -54,6 +54,10 @@ public class ElasticsearchIndexServiceConfigBean extends ElasticsearchConfigurat
 		public Map<String, Map<String, Object>> mapping_overrides() { return mapping_overrides; }
 		public String index_name_override() { return index_name_override; }
 		public Long target_index_size_mb() { return target_index_size_mb; }
+		public Long target_index_docs() { return target_index_docs; }
+		public String target_index_age() { return target_index_age; }
+		public Boolean bulk_load_secondary_buffers() { return bulk_load_secondary_buffers; }
+		public Integer bulk_load_max_num_segments() { return bulk_load_max_num_segments; }
 		
 		public enum CollidePolicy { error, new_type };
 		private CollidePolicy collide_policy;
@@ -65,6 +69,10 @@ public class ElasticsearchIndexServiceConfigBean extends ElasticsearchConfigurat
 		private Map<String, Map<String, Object>> mapping_overrides;
 		private String index_name_override;
 		private Long target_index_size_mb;
+		private Long target_index_docs; // (roll over to a new index once this many docs have been written)
+		private String target_index_age; // (roll over to a new index once the current one is this old, eg "1 day")
+		private Boolean bulk_load_secondary_buffers; // (secondary buffers are created with refresh and replicas disabled, which are restored when it becomes the primary)
+		private Integer bulk_load_max_num_segments; // (if set, bulk loaded buffers are force merged down to this many segments when they become the primary)
 	}
 	public static class ColumnarSchemaDefaultBean {
 		// the contents of the "fielddata" sub-object of a property for which an include has been specifed, takes from "_default", or field_type if the field_type can be inferred
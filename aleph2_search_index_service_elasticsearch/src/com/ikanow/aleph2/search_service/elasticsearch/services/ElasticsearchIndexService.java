@@ -16,19 +16,29 @@
 package com.ikanow.aleph2.search_service.elasticsearch.services;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -42,12 +52,15 @@ import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder
 import org.elasticsearch.action.admin.indices.template.delete.DeleteIndexTemplateResponse;
 import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesRequest;
 import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesResponse;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.settings.ImmutableSettings;
-import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.rest.action.admin.indices.alias.delete.AliasesMissingException;
 
 import scala.Tuple2;
 import scala.Tuple3;
@@ -109,7 +122,27 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 	
 	protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
 	
+	/** The max number of indexes deleted per request by handleAgeOutRequests */
+	public static final int AGE_OUT_DELETE_BATCH_SIZE = 50;
+	/** The max number of delete requests handleAgeOutRequests has in flight at once */
+	public static final int AGE_OUT_MAX_CONCURRENT_DELETES = 4;
+	
+	/** Temporal technology override: the max number of replicas warm indexes are reduced to (default WARM_DEFAULT_NUMBER_OF_REPLICAS) */
+	public static final String WARM_NUMBER_OF_REPLICAS = "warm_number_of_replicas";
+	public static final int WARM_DEFAULT_NUMBER_OF_REPLICAS = 1;
+	/** Temporal technology override: the number of segments warm indexes are force merged down to (default WARM_DEFAULT_MAX_NUM_SEGMENTS) */
+	public static final String WARM_MAX_NUM_SEGMENTS = "warm_max_num_segments";
+	public static final int WARM_DEFAULT_MAX_NUM_SEGMENTS = 1;
+	
 	protected final Cache<String, Date> _bucket_template_cache = CacheBuilder.newBuilder().expireAfterAccess(2, TimeUnit.HOURS).build();
+	/** Template updates in progress: bucket _id -> template cache key (see getTemplateCacheKey) -> (bucket version, update)
+	 *  (the per-bucket maps are left in place once empty, so there's no race between removing one and another thread adding to it)
+	 */
+	protected final ConcurrentHashMap<String, ConcurrentHashMap<String, Tuple2<Date, CompletableFuture<Boolean>>>> _template_updates = new ConcurrentHashMap<>();
+	/** The primary buffer of each bucket (by full name) and when it was fetched, see ElasticsearchDataService.getCachedPrimaryBufferName */
+	protected final Cache<String, Tuple2<Long, Optional<String>>> _primary_buffer_cache = CacheBuilder.newBuilder().expireAfterAccess(2, TimeUnit.HOURS).build();
+	protected final ConcurrentHashMap<String, CompletableFuture<Void>> _primary_buffer_refreshes = new ConcurrentHashMap<>();
+	public static final long PRIMARY_BUFFER_CACHE_MS = 10000L;
 	
 	/** Guice generated constructor
 	 * @param crud_factory
@@ -126,7 +159,11 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 	}
 		
 	/** Checks if an index/set-of-indexes spawned from a bucket
+	 *  (The first time a bucket/buffer is seen, this waits for its template to be checked/written, so that no index can be created before its template exists.
+	 *   After that the mapping is returned immediately - any template update needed for a newer version of the bucket is performed asynchronously, 
+	 *   at most one at a time per bucket/buffer, see getTemplateUpdates)
 	 * @param bucket
+	 * @return the mapping for this bucket/buffer
 	 */
 	protected Optional<JsonNode> handlePotentiallyNewIndex(
 			final DataBucketBean bucket, 
@@ -135,40 +172,116 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 			final String index_type)
 	{
 		try {
-			// Will need the current mapping regardless (this is just some JSON parsing so should be pretty quick):
-			final XContentBuilder mapping = ElasticsearchIndexUtils.createIndexMapping(bucket, secondary_buffer, is_primary, schema_config, _mapper, index_type);
-			final JsonNode user_mapping = _mapper.readTree(mapping.bytes().toUtf8());
+			final String cache_key = getTemplateCacheKey(bucket, secondary_buffer, is_primary);
+			
+			// Will need the current mapping regardless (only rebuilt when the bucket changes):
+			final Tuple2<String, JsonNode> mapping = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket, secondary_buffer, is_primary, schema_config, _mapper, index_type);
 			
-			final String cache_key = bucket._id() + secondary_buffer.map(s -> ":" + s).orElse("") + ":" + Boolean.toString(is_primary);
 			final Date current_template_time = _bucket_template_cache.getIfPresent(cache_key);
-			if ((null == current_template_time) || current_template_time.before(Optional.ofNullable(bucket.modified()).orElse(new Date()))) {			
-				try {
-					final GetIndexTemplatesRequest gt = new GetIndexTemplatesRequest().names(ElasticsearchIndexUtils.getBaseIndexName(bucket, secondary_buffer));
-					final GetIndexTemplatesResponse gtr = _crud_factory.getClient().admin().indices().getTemplates(gt).actionGet();
-					
-					if (gtr.getIndexTemplates().isEmpty() 
-							|| 
-						!mappingsAreEquivalent(gtr.getIndexTemplates().get(0), user_mapping, _mapper))
-					{
-						// If no template, or it's changed, then update
-						final String base_name = ElasticsearchIndexUtils.getBaseIndexName(bucket, secondary_buffer);
-						_crud_factory.getClient().admin().indices().preparePutTemplate(base_name).setSource(mapping).execute().actionGet();
-						
-						_logger.info(ErrorUtils.get("Updated mapping for bucket={0}, base_index={1}", bucket.full_name(), base_name));
-					}				
-				}
-				catch (Exception e) {
-					_logger.error(ErrorUtils.getLongForm("Error updating mapper bucket={1} err={0}", e, bucket.full_name()));
-				}
-				_bucket_template_cache.put(cache_key, bucket.modified());			
+			if (null == current_template_time) { // (template not known to be written yet, so wait for it before anything writes to the index)
+				reconcileTemplate(bucket, secondary_buffer, cache_key, mapping).join();
+			}
+			else if (current_template_time.before(Optional.ofNullable(bucket.modified()).orElse(new Date()))) {
+				reconcileTemplate(bucket, secondary_buffer, cache_key, mapping);
 			}
-			return Optional.of(user_mapping);
+			return Optional.of(mapping._2());
 		}
 		catch (Exception e) {
 			return Optional.empty();
 		}
 	}
 	
+	/** Returns a future for any template updates currently in progress for a bucket (across all its buffers)
+	 *  (Needed before anything that reads or writes the bucket's templates directly, or needs new indexes to pick them up)
+	 * @param bucket
+	 * @return a future that completes when the in-progress updates (if any) have completed
+	 */
+	public CompletableFuture<Void> getTemplateUpdates(final DataBucketBean bucket) {
+		return Optional.ofNullable(_template_updates.get(bucket._id()))
+					.map(updates -> CompletableFuture.allOf(updates.values().stream().map(t2 -> t2._2()).toArray(CompletableFuture[]::new)))
+					.orElseGet(() -> CompletableFuture.completedFuture(null));
+	}
+	
+	/** Low level utility - the key used to track the template state of a bucket/buffer
+	 * @param bucket
+	 * @param secondary_buffer
+	 * @param is_primary
+	 * @return
+	 */
+	protected static String getTemplateCacheKey(final DataBucketBean bucket, final Optional<String> secondary_buffer, final boolean is_primary) {
+		return bucket._id() + secondary_buffer.map(s -> ":" + s).orElse("") + ":" + Boolean.toString(is_primary);
+	}
+	
+	/** Checks the template for a bucket/buffer against its mapping, and updates it if needed - asynchronously
+	 *  Callers share any in-progress update for the same bucket/buffer; an update for a newer version of the bucket waits for the older one to complete,
+	 *  so templates can't be written out of order 
+	 * @param bucket
+	 * @param secondary_buffer
+	 * @param cache_key - from getTemplateCacheKey
+	 * @param mapping - from ElasticsearchIndexUtils.getCompiledIndexMapping
+	 * @return a future that completes with true if the template was changed, false otherwise (or on error - in which case it's retried next time)
+	 */
+	protected CompletableFuture<Boolean> reconcileTemplate(final DataBucketBean bucket, final Optional<String> secondary_buffer, final String cache_key, final Tuple2<String, JsonNode> mapping) {
+		final Date modified = Optional.ofNullable(bucket.modified()).orElseGet(() -> new Date());
+		final CompletableFuture<Boolean> new_update = new CompletableFuture<>();
+		final AtomicReference<Tuple2<Date, CompletableFuture<Boolean>>> previous_update = new AtomicReference<>();
+		
+		final ConcurrentHashMap<String, Tuple2<Date, CompletableFuture<Boolean>>> bucket_updates = _template_updates.computeIfAbsent(bucket._id(), __ -> new ConcurrentHashMap<>());
+		final Tuple2<Date, CompletableFuture<Boolean>> update = bucket_updates.compute(cache_key, (k, v) -> {
+			previous_update.set(v);
+			return ((null != v) && !v._1().before(modified))
+					? v // (same or newer version of the bucket already in progress)
+					: Tuples._2T(modified, new_update);
+		});
+		if (update._2() != new_update) {
+			return update._2();
+		}
+		
+		Optional.ofNullable(previous_update.get())
+			.<CompletableFuture<?>>map(t2 -> t2._2())
+			.orElseGet(() -> CompletableFuture.completedFuture(false))
+			.thenCompose(__ -> updateTemplate(bucket, secondary_buffer, mapping))
+			.whenComplete((changed, e) -> {
+				if (null != e) {
+					_logger.error(ErrorUtils.getLongForm("Error updating mapper bucket={1} err={0}", e, bucket.full_name()));
+				}
+				else {
+					_bucket_template_cache.put(cache_key, modified);
+				}
+				bucket_updates.remove(cache_key, update);
+				new_update.complete((null == e) && changed);
+			});
+		
+		return new_update;
+	}
+	
+	/** Compares the stored template for a bucket/buffer with its mapping, and overwrites it if they differ (or it doesn't exist)
+	 * @param bucket
+	 * @param secondary_buffer
+	 * @param mapping - from ElasticsearchIndexUtils.getCompiledIndexMapping
+	 * @return a future that completes with true if the template was changed
+	 */
+	protected CompletableFuture<Boolean> updateTemplate(final DataBucketBean bucket, final Optional<String> secondary_buffer, final Tuple2<String, JsonNode> mapping) {
+		final String base_name = ElasticsearchIndexUtils.getBaseIndexName(bucket, secondary_buffer);
+		
+		return ElasticsearchFutureUtils.wrap(_crud_factory.getClient().admin().indices().prepareGetTemplates(base_name).execute(), gtr -> gtr.getIndexTemplates())
+				.thenCompose(templates -> {
+					try {
+						if (!templates.isEmpty() && mappingsAreEquivalent(templates.get(0), mapping._2(), _mapper)) {
+							return CompletableFuture.completedFuture(false);
+						}
+					}
+					catch (Exception e) { // (just overwrite it)
+					}
+					// If no template, or it's changed, then update
+					return ElasticsearchFutureUtils.wrap(_crud_factory.getClient().admin().indices().preparePutTemplate(base_name).setSource(mapping._1()).execute(), 
+							__ -> {
+								_logger.info(ErrorUtils.get("Updated mapping for bucket={0}, base_index={1}", bucket.full_name(), base_name));
+								return true;
+							});
+				});
+	}
+	
 	/** Check if a new mapping based on a schema is equivalent to a mapping previously stored (from a schema) 
 	 * @param stored_mapping
 	 * @param new_mapping
@@ -233,6 +346,17 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 		return Tuples._3T(schema_config, index_type, type);
 	}
 	
+	/** Low level utility - the max age of an index before it's rolled over, if specified
+	 * @param schema_config
+	 * @return
+	 */
+	protected static Optional<Duration> getTargetIndexAge(final ElasticsearchIndexServiceConfigBean schema_config) {
+		return Optionals.of(() -> schema_config.search_technology_override().target_index_age())
+					.map(s -> TimeUtils.getDuration(s, Optional.of(new Date())))
+					.filter(Validation::isSuccess)
+					.map(v -> v.success());
+	}
+	
 	/** Low level utility - grab a stream of JsonNodes of template mappings
 	 * @param bucket
 	 * @param buffer_name
@@ -267,6 +391,18 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 					;
 	}
 	
+	/** Low level utility - whether a bucket has the search index service enabled
+	 * @param bucket
+	 * @return
+	 */
+	protected static boolean isSearchIndexEnabled(final DataBucketBean bucket) {
+		return Optional.ofNullable(bucket.data_schema())
+					.map(ds -> ds.search_index_schema())
+						.map(sis -> Optional.ofNullable(sis.enabled())
+						.orElse(true))
+				.orElse(false);
+	}
+	
 	/** Implementation of GenericDataService
 	 * @author alex
 	 */
@@ -288,12 +424,7 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 			}
 			
 			// If single bucket, is the search index service enabled?
-			if (!Optional.ofNullable(bucket.data_schema())
-					.map(ds -> ds.search_index_schema())
-						.map(sis -> Optional.ofNullable(sis.enabled())
-						.orElse(true))
-				.orElse(false))
-			{
+			if (!isSearchIndexEnabled(bucket)) {
 				return Optional.empty();
 			}
 			
@@ -317,6 +448,8 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 																	.map(t -> t.grouping_time_period()).orElse(""));
 
 			final Optional<Long> target_max_index_size_mb = Optionals.of(() -> schema_index_type._1().search_technology_override().target_index_size_mb());
+			final Optional<Long> target_max_index_docs = Optionals.of(() -> schema_index_type._1().search_technology_override().target_index_docs());
+			final Optional<Duration> target_max_index_age = getTargetIndexAge(schema_index_type._1());
 
 			// LAMBDA util to pass into the ElasticsearchContext - determines dynamically if the alias should be generated
 			// (ElasticsearchContext is responsible for calling it efficiently)
@@ -344,10 +477,10 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 			// Index
 			final String index_base_name = ElasticsearchIndexUtils.getBaseIndexName(bucket, secondary_buffer);
 			final ElasticsearchContext.IndexContext.ReadWriteIndexContext index_context = time_period.validation(
-					fail -> new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext(index_base_name, target_max_index_size_mb, Either.right(aliasCheck))
+					fail -> new ElasticsearchContext.IndexContext.ReadWriteIndexContext.FixedRwIndexContext(index_base_name, target_max_index_size_mb, target_max_index_docs, target_max_index_age, Either.right(aliasCheck))
 					, 
 					success -> new ElasticsearchContext.IndexContext.ReadWriteIndexContext.TimedRwIndexContext(index_base_name + ElasticsearchContextUtils.getIndexSuffix(success), 
-										Optional.ofNullable(schema_index_type._1().temporal_technology_override().time_field()), target_max_index_size_mb, Either.right(aliasCheck))
+										Optional.ofNullable(schema_index_type._1().temporal_technology_override().time_field()), target_max_index_size_mb, target_max_index_docs, target_max_index_age, Either.right(aliasCheck))
 					);			
 			
 			final boolean auto_type = 
@@ -384,14 +517,115 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 		public <O> Optional<ICrudService<O>> getReadableCrudService(
 				Class<O> clazz, Collection<DataBucketBean> buckets,
 				Optional<String> options) {
-			throw new RuntimeException(ErrorUtils.get(ErrorUtils.NOT_YET_IMPLEMENTED, "ElasticsearchDataService.getReadableCrudService"));
+			// Builds a single read-only context across all the buckets, so that a query over N buckets is one round trip
+			// (multi-buckets have to be resolved to their children by the caller, since the children are just paths)
+			
+			final List<DataBucketBean> search_buckets = buckets.stream()
+					.filter(bucket -> (null == bucket.multi_bucket_children()) || bucket.multi_bucket_children().isEmpty())
+					.filter(bucket -> isSearchIndexEnabled(bucket))
+					.collect(Collectors.toList());
+			
+			if (search_buckets.isEmpty()) {
+				return Optional.empty();
+			}
+			
+			// Index: each bucket's read alias, which tracks every index (time-sliced or size-split) of whichever buffer is currently primary
+			// (as a wildcard, so that buckets that haven't been written into yet are just ignored vs failing the whole query)
+			final List<String> indexes = search_buckets.stream()
+					.map(bucket -> ElasticsearchContext.READ_PREFIX + ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.empty()) + "*")
+					.distinct()
+					.collect(Collectors.toList());
+			
+			// Type: if any of the buckets uses auto types then can't restrict the types, else the union of the fixed types
+			final List<Tuple3<ElasticsearchIndexServiceConfigBean, String, Optional<String>>> schema_index_types = search_buckets.stream()
+					.map(bucket -> getSchemaConfigAndIndexAndType(bucket, _config))
+					.collect(Collectors.toList());
+			
+			final boolean auto_type = schema_index_types.stream()
+					.anyMatch(schema_index_type -> CollidePolicy.new_type == Optional.ofNullable(schema_index_type._1().search_technology_override())
+														.map(t -> t.collide_policy()).orElse(CollidePolicy.new_type));
+			
+			final Optional<List<String>> known_types = auto_type
+					? Optional.empty()
+					: Optional.of(schema_index_types.stream()
+							.map(schema_index_type -> schema_index_type._3().orElse(ElasticsearchIndexServiceConfigBean.DEFAULT_FIXED_TYPE_NAME))
+							.distinct()
+							.collect(Collectors.toList()));
+			
+			// Time field: if every bucket is time-sliced on the same field, then read the (primary buffer's) time-based indexes directly 
+			// so that date-range queries on that field only hit the indexes of the periods they cover (else just read the aliases)
+			// (which buffer is primary can change over the lifetime of the service, so the indexes are worked out per query from the cached primary 
+			//  buffers, see getCachedPrimaryBufferName - until they're all known, the aliases are read instead)
+			final List<Optional<Tuple2<String, String>>> time_fields_and_suffixes = IntStream.range(0, search_buckets.size()).boxed()
+					.map(i -> getTimeFieldAndIndexSuffix(schema_index_types.get(i)._1()))
+					.collect(Collectors.toList());
+			
+			final Set<String> time_fields = time_fields_and_suffixes.stream().map(o -> o.map(t2 -> t2._1()).orElse("")).collect(Collectors.toSet());
+			
+			final ElasticsearchContext.IndexContext.ReadOnlyIndexContext index_context = ((1 == time_fields.size()) && !time_fields.contains(""))
+					? new ElasticsearchContext.IndexContext.ReadOnlyIndexContext.TimedRoIndexContext(
+							() -> {
+								final List<Optional<String>> timed_indexes = IntStream.range(0, search_buckets.size()).boxed()
+										.map(i -> getCachedPrimaryBufferName(search_buckets.get(i))
+												.map(buffer -> ElasticsearchIndexUtils.getBaseIndexName(search_buckets.get(i), buffer.filter(b -> !b.isEmpty())) 
+																	+ time_fields_and_suffixes.get(i).get()._2()))
+										.collect(Collectors.toList());
+								return timed_indexes.stream().allMatch(Optional::isPresent)
+										? Optional.of(timed_indexes.stream().map(Optional::get).distinct().collect(Collectors.toList()))
+										: Optional.<List<String>>empty();
+							},
+							indexes,
+							time_fields.stream().findFirst())
+					: new ElasticsearchContext.IndexContext.ReadOnlyIndexContext.FixedRoIndexContext(indexes);
+			
+			return Optional.of(_crud_factory.getElasticsearchCrudService(clazz,
+									new ElasticsearchContext.ReadOnlyContext(_crud_factory.getClient(), 
+											index_context,
+											new ElasticsearchContext.TypeContext.ReadOnlyTypeContext.AutoRoTypeContext(known_types)),
+									Optional.empty(), 
+									CreationPolicy.OPTIMIZED, 
+									Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty()));
 		}
 
+		/** Returns the time field and the time-based index suffix of a bucket, if it is time-sliced by a time field
+		 *  (the same suffix and time field that its writable context routes objects with - the index template is the base index name of the
+		 *   bucket's primary buffer plus the suffix)
+		 * @param schema_config - the bucket's schema config, see getSchemaConfigAndIndexAndType
+		 * @return a tuple of the time field and index suffix, or Optional.empty() if the bucket isn't time-sliced by a field
+		 */
+		protected Optional<Tuple2<String, String>> getTimeFieldAndIndexSuffix(final ElasticsearchIndexServiceConfigBean schema_config) {
+			final Optional<String> time_field = Optionals.of(() -> schema_config.temporal_technology_override().time_field());
+			return TimeUtils.getTimePeriod(Optionals.of(() -> schema_config.temporal_technology_override().grouping_time_period()).orElse(""))
+					.validation(
+						fail -> Optional.<Tuple2<String, String>>empty(), 
+						success -> time_field.map(tf -> Tuples._2T(tf, ElasticsearchContextUtils.getIndexSuffix(success))));
+		}
+		
+		/** Returns the primary buffer of a bucket without blocking, from a cache that is refreshed in the background once an entry is older than 
+		 *  PRIMARY_BUFFER_CACHE_MS (and invalidated by switchCrudServiceToPrimaryBuffer)
+		 * @param bucket - the bucket
+		 * @return the primary buffer (see getPrimaryBufferName), or Optional.empty() if it hasn't been fetched yet
+		 */
+		protected Optional<Optional<String>> getCachedPrimaryBufferName(final DataBucketBean bucket) {
+			final Tuple2<Long, Optional<String>> cached = _primary_buffer_cache.getIfPresent(bucket.full_name());
+			if ((null == cached) || ((System.currentTimeMillis() - cached._1()) >= PRIMARY_BUFFER_CACHE_MS)) {
+				// (at most one refresh at a time per bucket - getPrimaryBufferName blocks, so not on the caller's thread)
+				final CompletableFuture<Void> refresh = _primary_buffer_refreshes.computeIfAbsent(bucket.full_name(), key -> 
+					CompletableFuture.runAsync(() -> {
+						final long now = System.currentTimeMillis();
+						_primary_buffer_cache.put(key, Tuples._2T(now, getPrimaryBufferName(bucket)));
+					}));
+				refresh.whenComplete((__, t) -> _primary_buffer_refreshes.remove(bucket.full_name(), refresh));
+			}
+			return Optional.ofNullable(cached).map(t2 -> t2._2());
+		}
+		
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getSecondaryBufferList(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
 		 */
 		@Override
 		public Set<String> getSecondaryBuffers(DataBucketBean bucket) {
+			getTemplateUpdates(bucket).join(); // (so buffers whose templates are still being written are included)
 			return getMatchingTemplatesWithMeta(bucket, Optional.empty(), _crud_factory.getClient())
 					.map(json -> json.get(ElasticsearchIndexUtils.CUSTOM_META_SECONDARY))
 					.filter(json -> (null != json) && json.isTextual())
@@ -409,15 +643,18 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 		protected void updateTemplates(final DataBucketBean bucket, final Optional<String> new_primary_buffer) {
 			final Tuple3<ElasticsearchIndexServiceConfigBean, String, Optional<String>> schema_index_type = getSchemaConfigAndIndexAndType(bucket, _config);
 			
+			// (Don't race any template updates still in progress)
+			getTemplateUpdates(bucket).join();
+			
 			// Remove it for all the other buffers
 			Stream.concat(Stream.of(""), getSecondaryBuffers(bucket).stream()).parallel()
 				.<Optional<String>>map(buffer -> buffer.isEmpty() ? Optional.empty() : Optional.of(buffer))
-				.forEach(buffer -> {
+				.forEach(Lambdas.wrap_consumer_u(buffer -> {
 					final boolean is_primary = buffer.equals(new_primary_buffer);
-					final XContentBuilder mapping = ElasticsearchIndexUtils.createIndexMapping(bucket, buffer, is_primary, schema_index_type._1(), _mapper, schema_index_type._2());					
+					final String mapping = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket, buffer, is_primary, schema_index_type._1(), _mapper, schema_index_type._2())._1();
 					final String base_name = ElasticsearchIndexUtils.getBaseIndexName(bucket, buffer);
 					_crud_factory.getClient().admin().indices().preparePutTemplate(base_name).setSource(mapping).execute().actionGet();					
-				})
+				}))
 				;
 		}
 		
@@ -428,8 +665,14 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 		public CompletableFuture<BasicMessageBean> switchCrudServiceToPrimaryBuffer(
 				DataBucketBean bucket, Optional<String> secondary_buffer, Optional<String> new_name_for_ex_primary)
 		{
+			// (If the buffer was bulk loaded, then its indexes need to be made searchable before switching)
+			final ElasticsearchIndexServiceConfigBean schema_config = getSchemaConfigAndIndexAndType(bucket, _config)._1();
+			final boolean bulk_loaded = ElasticsearchIndexUtils.isBulkLoadBuffer(secondary_buffer, false, schema_config);
+			
 			// 1) Update the templates of the aliases - all but the new primary get "is_primary" set 
+			//    (this also takes the new primary out of bulk load mode for any new indexes)
 			updateTemplates(bucket, secondary_buffer);
+			_primary_buffer_cache.invalidate(bucket.full_name()); // (so readers go back to the aliases until the new primary has been fetched)
 			
 			// 2) Delete all the existing aliases and set the new ones as transactionally as possible!
 			
@@ -452,7 +695,25 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 						return stats.getIndices().keySet();
 					})
 					.exceptionally(__ -> Collections.emptySet())
-					.thenCompose(indexes -> {
+					.thenCompose(indexes -> (bulk_loaded && !indexes.isEmpty())
+												? finishBulkLoad(bucket, curr_primary, indexes, schema_config)
+														.handle((__, t) -> (null == t) ? Either.<Throwable, Set<String>>right(indexes) : Either.<Throwable, Set<String>>left(t))
+												: CompletableFuture.completedFuture(Either.<Throwable, Set<String>>right(indexes)))
+					.thenCompose(either_indexes -> either_indexes.<CompletableFuture<BasicMessageBean>>either(
+						t -> CompletableFuture.supplyAsync(() -> { // (blocking, so not on an ES thread)
+							// The bulk loaded indexes might not be searchable, so don't switch to them - put the templates back instead
+							try {
+								updateTemplates(bucket, curr_primary);
+								_primary_buffer_cache.invalidate(bucket.full_name());
+							}
+							catch (Throwable tt) {
+								_logger.error(ErrorUtils.getLongForm("Error restoring templates of bucket={1} err={0}", tt, bucket.full_name()));
+							}
+							return ErrorUtils.buildErrorMessage("ElasticsearchDataService", "switchCrudServiceToPrimaryBuffer", 
+										ErrorUtils.getLongForm("Bucket {1} not switched to {2}, error finishing bulk load: {0}", t, bucket.full_name(), secondary_buffer.orElse("(none)")));
+						})
+						,
+						indexes -> {
 						
 						final IndicesAliasesRequestBuilder iarb = 
 								_crud_factory.getClient().admin().indices().prepareAliases()
@@ -471,15 +732,73 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 										: ErrorUtils.buildErrorMessage("ElasticsearchDataService", "switchCrudServiceToPrimaryBuffer", ErrorUtils.getLongForm("Unknown error bucket {1}: {0}", t, bucket.full_name()))											
 								)
 								;			
-					});
+					}));
 		}
 
+		/** Takes the indexes of a bulk loaded buffer out of bulk load mode: restores their refresh interval and replicas, refreshes them,
+		 *  and (if configured) force merges them
+		 *  (Errors are logged and fail the future, in which case the buffer isn't switched)
+		 * @param bucket
+		 * @param curr_primary - the buffer being replaced, its indexes give the number of replicas if not specified in the settings 
+		 * @param indexes - the indexes of the bulk loaded buffer 
+		 * @param schema_config
+		 * @return a future that completes when the indexes are ready to be searched
+		 */
+		protected CompletableFuture<Void> finishBulkLoad(final DataBucketBean bucket, final Optional<String> curr_primary, final Set<String> indexes, final ElasticsearchIndexServiceConfigBean schema_config) {
+			final JsonNode settings = Optionals.of(() -> schema_config.search_technology_override().settings())
+											.<JsonNode>map(o -> _mapper.convertValue(o, JsonNode.class))
+											.orElseGet(() -> _mapper.createObjectNode());
+			final String refresh_interval = ElasticsearchIndexUtils.getIndexSetting(settings, "refresh_interval").orElse(ElasticsearchIndexUtils.DEFAULT_REFRESH_INTERVAL);
+			final Optional<Integer> max_num_segments = Optionals.of(() -> schema_config.search_technology_override().bulk_load_max_num_segments());
+			final String[] index_array = indexes.stream().toArray(String[]::new);
+			
+			// Number of replicas: from the settings, else from the indexes being replaced, else the ES default
+			final CompletableFuture<String> num_replicas = ElasticsearchIndexUtils.getIndexSetting(settings, "number_of_replicas")
+					.map(replicas -> CompletableFuture.completedFuture(replicas))
+					.orElseGet(() -> ElasticsearchFutureUtils.wrap(
+							_crud_factory.getClient().admin().indices().prepareGetSettings(ElasticsearchIndexUtils.getBaseIndexName(bucket, curr_primary) + "*")
+								.setIndicesOptions(IndicesOptions.lenientExpandOpen())
+								.execute()
+							,
+							gsr -> StreamSupport.stream(gsr.getIndexToSettings().spliterator(), false)
+										.filter(kv -> !indexes.contains(kv.key))
+										.map(kv -> kv.value.get(IndexMetaData.SETTING_NUMBER_OF_REPLICAS))
+										.filter(replicas -> null != replicas)
+										.findFirst()
+										.orElse(ElasticsearchIndexUtils.DEFAULT_NUMBER_OF_REPLICAS))
+							.exceptionally(__ -> ElasticsearchIndexUtils.DEFAULT_NUMBER_OF_REPLICAS));
+			
+			return num_replicas
+					.thenCompose(replicas -> ElasticsearchFutureUtils.wrap(
+							_crud_factory.getClient().admin().indices().prepareUpdateSettings(index_array)
+								.setSettings(ImmutableSettings.settingsBuilder()
+										.put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, replicas)
+										.put("index.refresh_interval", refresh_interval)
+										.build())
+								.execute()
+							,
+							__ -> (Void) null))
+					.thenCompose(__ -> ElasticsearchFutureUtils.wrap(_crud_factory.getClient().admin().indices().prepareRefresh(index_array).execute(), ___ -> (Void) null))
+					.thenCompose(__ -> max_num_segments
+											.map(n -> ElasticsearchFutureUtils.wrap(
+													_crud_factory.getClient().admin().indices().prepareOptimize(index_array).setMaxNumSegments(n).setFlush(true).execute()
+													, 
+													___ -> (Void) null))
+											.orElseGet(() -> CompletableFuture.completedFuture(null)))
+					.whenComplete((__, t) -> {
+						if (null != t) {
+							_logger.error(ErrorUtils.getLongForm("Error finishing bulk load of bucket={1} indexes={2} err={0}", t, bucket.full_name(), indexes));
+						}
+					});
+		}
+		
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#getPrimaryBufferName(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
 		 */
 		@Override
 		public Optional<String> getPrimaryBufferName(DataBucketBean bucket) {
 			// This call gives us the mappings, which includes CUSTOM_META_PRIMARY == if is primary and CUSTOM_META_SECONDARY, ie the string to return
+			getTemplateUpdates(bucket).join(); // (so it's consistent with any template updates still in progress)
 			return getMatchingTemplatesWithMeta(bucket, Optional.empty(), _crud_factory.getClient())
 				.filter(json -> {
 					final JsonNode is_primary_json = json.get(ElasticsearchIndexUtils.CUSTOM_META_IS_PRIMARY);
@@ -501,92 +820,489 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 		 */
 		@Override
 		public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket) {
-			// (Age out the secondary buffers)
-			getSecondaryBuffers(bucket).stream().forEach(Lambdas.wrap_consumer_i(secondary -> handleAgeOutRequest(bucket, Optional.of(secondary))));
+			// (Age out the bucket and its secondary buffers in one sweep, then move their remaining indexes through the lifecycle)
+			final Set<String> secondaries = getSecondaryBuffers(bucket);
 			
 			// Only return the final value for this:
-			return handleAgeOutRequest(bucket, Optional.empty());
+			return handleAgeOutRequests(Arrays.asList(bucket))
+					.thenApply(results -> results.get(bucket.full_name()))
+					.thenCompose(age_out -> CompletableFuture.allOf(secondaries.stream()
+																.map(secondary -> handleIndexLifecycleRequest(bucket, Optional.of(secondary)))
+																.toArray(CompletableFuture[]::new))
+							.thenCompose(__ -> handleIndexLifecycleRequest(bucket, Optional.empty()))
+							.thenApply(lifecycle -> {
+								// (only mention the lifecycle if it did something or failed)
+								return (lifecycle.success() && !Optional.ofNullable(lifecycle.details()).filter(m -> m.containsKey("loggable")).isPresent())
+										? age_out
+										: BeanTemplateUtils.clone(age_out)
+											.with(BasicMessageBean::success, age_out.success() && lifecycle.success())
+											.with(BasicMessageBean::message, age_out.message() + "; " + lifecycle.message())
+											.with(BasicMessageBean::details, ImmutableMap.builder().put("loggable", true).build())
+										.done()
+										;
+							}));
 		}
+		
+		/** Ages out a single buffer of a bucket - deletes its expired indexes in batches (see deleteIndexes) and waits for the deletes to complete
+		 * @param bucket - the bucket to age out
+		 * @param secondaryBuffer - optionally, the secondary buffer to age out
+		 * @return a future containing a message describing what was deleted, marked "loggable" if anything was
+		 */
 		public CompletableFuture<BasicMessageBean> handleAgeOutRequest(final DataBucketBean bucket, Optional<String> secondaryBuffer) {
 
 			// Step 0: get the deletion time
 			
+			final Validation<BasicMessageBean, Long> deletion_bound = getAgeOutLowerBound(bucket, new Date(), "handleAgeOutRequest");
+			if (deletion_bound.isFail()) {
+				return CompletableFuture.completedFuture(deletion_bound.fail());
+			}
+			
+			// Step 1: grab all the indexes
+			
+			final String base_index = ElasticsearchIndexUtils.getBaseIndexName(bucket, secondaryBuffer);
+			final long lower_bound = deletion_bound.success();
+			
+			//(from the cluster metadata, since the stats/routing table only cover open indexes, and closed ones need ageing out too)
+			return ElasticsearchFutureUtils.wrap(
+					_crud_factory.getClient().admin().cluster().prepareState().clear().setMetaData(true).execute()
+					,
+					csr -> csr.getState().getMetaData().concreteAllIndices())
+					.thenCompose(indexes -> {						
+						// Step 2: delete any indexes that are two far off:
+						
+						// (format is <base-index-signature>_<date>[_<fragment>])
+						final List<String> expired_indexes = Arrays.stream(indexes)
+								.filter(index -> index.startsWith(base_index))
+								.filter(index -> getExpiredDateSuffix(base_index, index, lower_bound).isPresent())
+								.collect(Collectors.toList());
+						
+						final long num_deleted = expired_indexes.stream()
+								.map(index -> getExpiredDateSuffix(base_index, index, lower_bound).get())
+								.distinct() // (collapse fragments)
+								.count();
+						
+						return deleteIndexes(expired_indexes.stream().map(index -> Tuples._2T(bucket, index)).collect(Collectors.toList()))
+								.thenApply(errors -> buildAgeOutMessage("handleAgeOutRequest", num_deleted, Optional.ofNullable(errors.get(bucket))));
+					})
+					.exceptionally(t -> {
+						return ErrorUtils.buildErrorMessage("ElasticsearchDataService", "handleAgeOutRequest", ErrorUtils.getLongForm("handleAgeOutRequest error = {0}", t));												
+					})
+					;			
+		}
+
+		/** Ages out many buckets (and their secondary buffers) in a single sweep: the index names are fetched from the cluster once, 
+		 *  the expired indexes are computed in memory for all the buckets, and then deleted in batches (see deleteIndexes)
+		 *  (Index names come from the cluster metadata, so closed indexes are aged out too)
+		 * @param buckets - the buckets to age out
+		 * @return a future containing the result for each bucket, keyed by bucket full name
+		 */
+		public CompletableFuture<Map<String, BasicMessageBean>> handleAgeOutRequests(final Collection<DataBucketBean> buckets) {
+			final Date now = new Date();
+			final Map<String, BasicMessageBean> results = new ConcurrentHashMap<>();
+			
+			// Step 0: get the deletion times, and the index name prefixes for each bucket 
+			
+			final Map<String, Tuple2<DataBucketBean, Long>> base_indexes = new HashMap<>(); // (base index -> bucket, lower bound)
+			final Map<String, List<Tuple2<String, Tuple2<DataBucketBean, Long>>>> buffer_indexes = new HashMap<>(); // (secondary buffers: suffix -> prefix, bucket/lower bound)
+			
+			buckets.stream().forEach(bucket -> {
+				final Validation<BasicMessageBean, Long> deletion_bound = getAgeOutLowerBound(bucket, now, "handleAgeOutRequests");
+				if (deletion_bound.isFail()) {
+					results.put(bucket.full_name(), deletion_bound.fail());
+				}
+				else {
+					final Tuple2<DataBucketBean, Long> bucket_bound = Tuples._2T(bucket, deletion_bound.success());
+					final String base_index = ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.empty());
+					base_indexes.put(base_index, bucket_bound);
+					
+					// (same trick as getMatchingTemplatesWithMeta to get the secondary buffer index names without needing their templates)
+					final String random_string = Stream.generate(() -> (long)(Math.random()*1000000L)).map(l -> Long.toString(l)).filter(s -> !base_index.contains(s)).findAny().get();
+					final String buffer_index = ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.of(random_string));
+					final int buffer_pos = buffer_index.indexOf(random_string);
+					if (buffer_pos >= 0) {
+						buffer_indexes.computeIfAbsent(buffer_index.substring(buffer_pos + random_string.length()), __ -> new LinkedList<>())
+										.add(Tuples._2T(buffer_index.substring(0, buffer_pos), bucket_bound));
+					}
+				}
+			});
+			if (base_indexes.isEmpty()) {
+				return CompletableFuture.completedFuture(results);
+			}
+			// (the suffixes are normally all the same length, so finding a candidate's buffer is normally a single map lookup)
+			final int[] suffix_lengths = buffer_indexes.keySet().stream().mapToInt(String::length).distinct().toArray();
+			
+			// Step 1: grab all the indexes (once)
+			
+			return ElasticsearchFutureUtils.wrap(
+					_crud_factory.getClient().admin().cluster().prepareState().clear().setMetaData(true).execute()
+					,
+					csr -> csr.getState().getMetaData().concreteAllIndices())
+					.thenCompose(indexes -> {
+						
+						// Step 2: work out which indexes have expired, in memory
+						
+						final Map<DataBucketBean, Set<String>> expired_dates = new HashMap<>(); // (for the results)
+						final List<Tuple2<DataBucketBean, String>> expired_indexes = new LinkedList<>();
+						
+						Arrays.stream(indexes).forEach(index -> {
+							// (format is <base-index-signature>_<date>[_<fragment>], where the signature can itself contain _s)
+							for (int pos = index.indexOf('_'); pos > 0; pos = index.indexOf('_', pos + 1)) {
+								final String candidate = index.substring(0, pos);
+								final Optional<Tuple2<DataBucketBean, Long>> bucket_bound = 
+										Optional.ofNullable(base_indexes.get(candidate))
+											.map(Optional::of)
+											.orElseGet(() -> Arrays.stream(suffix_lengths).boxed()
+																.filter(suffix_length -> candidate.length() > suffix_length)
+																.flatMap(suffix_length -> Optional.ofNullable(buffer_indexes.get(candidate.substring(candidate.length() - suffix_length)))
+																			.map(prefixes -> prefixes.stream()
+																					.filter(t2 -> (candidate.length() > (t2._1().length() + suffix_length)) && candidate.startsWith(t2._1())))
+																			.orElseGet(Stream::empty))
+																.map(t2 -> t2._2())
+																.findFirst());
+								
+								if (bucket_bound.isPresent()) {
+									getExpiredDateSuffix(candidate, index, bucket_bound.get()._2()).ifPresent(date_str -> {
+										expired_dates.computeIfAbsent(bucket_bound.get()._1(), __ -> new HashSet<>()).add(candidate + ":" + date_str);
+										expired_indexes.add(Tuples._2T(bucket_bound.get()._1(), index));
+									});
+									break;
+								}
+							}
+						});
+						
+						// Step 3: delete them in batches, with bounded concurrency
+						
+						return deleteIndexes(expired_indexes)
+								.thenApply(errors -> {
+									base_indexes.values().stream().map(t2 -> t2._1()).forEach(bucket -> {
+										final int num_deleted = Optional.ofNullable(expired_dates.get(bucket)).map(Set::size).orElse(0);
+										results.put(bucket.full_name(), buildAgeOutMessage("handleAgeOutRequests", num_deleted, Optional.ofNullable(errors.get(bucket))));
+									});
+									return results;
+								});
+					})
+					.exceptionally(t -> {
+						final BasicMessageBean error = ErrorUtils.buildErrorMessage("ElasticsearchDataService", "handleAgeOutRequests", ErrorUtils.getLongForm("handleAgeOutRequests error = {0}", t));
+						base_indexes.values().stream().forEach(t2 -> results.putIfAbsent(t2._1().full_name(), error));
+						return results;
+					})
+					;
+		}
+		
+		/** Low level utility - builds the result of an age out request
+		 * @param handler - the calling method, for the message
+		 * @param num_deleted - the number of (time periods of) indexes deleted
+		 * @param error - an error that occurred deleting them, if any
+		 * @return the message, marked "loggable" if anything was deleted
+		 */
+		protected BasicMessageBean buildAgeOutMessage(final String handler, final long num_deleted, final Optional<String> error) {
+			final BasicMessageBean message = error
+					.map(err -> ErrorUtils.buildErrorMessage("ElasticsearchDataService", handler, "Deleting {0} indexes: {1}", num_deleted, err))
+					.orElseGet(() -> ErrorUtils.buildSuccessMessage("ElasticsearchDataService", handler, "Deleted {0} indexes", num_deleted));
+			
+			return (num_deleted > 0)
+					? BeanTemplateUtils.clone(message).with(BasicMessageBean::details, 
+							ImmutableMap.builder().put("loggable", true).build()
+							).done()
+					: message
+					;
+		}
+		
+		/** Deletes indexes in batches of AGE_OUT_DELETE_BATCH_SIZE, with at most AGE_OUT_MAX_CONCURRENT_DELETES delete requests in flight at once
+		 * @param to_delete - the (bucket, index) pairs to delete
+		 * @return a future that completes when all the deletes have, containing any errors keyed by bucket
+		 */
+		protected CompletableFuture<Map<DataBucketBean, String>> deleteIndexes(final List<Tuple2<DataBucketBean, String>> to_delete) {
+			final ConcurrentLinkedQueue<List<Tuple2<DataBucketBean, String>>> batches = new ConcurrentLinkedQueue<>(
+					IntStream.range(0, (to_delete.size() + AGE_OUT_DELETE_BATCH_SIZE - 1)/AGE_OUT_DELETE_BATCH_SIZE)
+						.mapToObj(i -> to_delete.subList(i*AGE_OUT_DELETE_BATCH_SIZE, Math.min(to_delete.size(), (i + 1)*AGE_OUT_DELETE_BATCH_SIZE)))
+						.collect(Collectors.toList()));
+			
+			final Map<DataBucketBean, String> errors = new ConcurrentHashMap<>();
+			
+			return CompletableFuture.allOf(IntStream.range(0, Math.min(AGE_OUT_MAX_CONCURRENT_DELETES, batches.size()))
+										.mapToObj(__ -> deleteIndexBatches(batches, errors))
+										.toArray(CompletableFuture[]::new))
+					.thenApply(__ -> errors);
+		}
+		
+		/** Deletes batches of indexes until there are none left - run several of these at once to get bounded concurrency
+		 * @param batches - the remaining batches of (bucket, index) to delete
+		 * @param errors - per bucket errors are added to this
+		 * @return a future that completes when there are no more batches
+		 */
+		protected CompletableFuture<Void> deleteIndexBatches(final ConcurrentLinkedQueue<List<Tuple2<DataBucketBean, String>>> batches, final Map<DataBucketBean, String> errors) {
+			final List<Tuple2<DataBucketBean, String>> batch = batches.poll();
+			if (null == batch) {
+				return CompletableFuture.completedFuture(null);
+			}
+			return ElasticsearchFutureUtils.wrap(
+					_crud_factory.getClient().admin().indices().prepareDelete(batch.stream().map(t2 -> t2._2()).toArray(String[]::new))
+						.setIndicesOptions(IndicesOptions.fromOptions(true, true, true, true)) // (in case some have been deleted in the meantime, and including closed indexes)
+						.execute()
+					,
+					__ -> (Void) null)
+					.exceptionally(t -> {
+						batch.stream().forEach(t2 -> errors.put(t2._1(), ErrorUtils.getLongForm("{0}", t)));
+						return null;
+					})
+					.thenCompose(__ -> deleteIndexBatches(batches, errors));
+		}
+		
+		/** Low level utility - returns the age out time for a bucket (or the message to return if it has none)
+		 * @param bucket
+		 * @param now
+		 * @param handler - the calling method, for the messages
+		 * @return the time before which indexes should be deleted, or a success/error message if the bucket has no/an invalid age out period
+		 */
+		protected Validation<BasicMessageBean, Long> getAgeOutLowerBound(final DataBucketBean bucket, final Date now, final String handler) {
 			final Optional<String> deletion_bound_str =
 					Optionals.of(() -> bucket.data_schema().temporal_schema().exist_age_max());
 			
 			if (!deletion_bound_str.isPresent()) {
-				return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage("ElasticsearchDataService", "handleAgeOutRequest", "No age out period specified: {0}", deletion_bound_str.toString()));
+				return Validation.fail(ErrorUtils.buildSuccessMessage("ElasticsearchDataService", handler, "No age out period specified: {0}", deletion_bound_str.toString()));
 			}
 			
 			final Optional<Long> deletion_bound = deletion_bound_str
-						.map(s -> TimeUtils.getDuration(s, Optional.of(new Date())))
+						.map(s -> TimeUtils.getDuration(s, Optional.of(now)))
 						.filter(Validation::isSuccess)
 						.map(v -> v.success())
 						.map(duration -> 1000L*duration.getSeconds())
 					;
 			
 			if (!deletion_bound.isPresent()) {
-				return CompletableFuture.completedFuture(ErrorUtils.buildErrorMessage("ElasticsearchDataService", "handleAgeOutRequest", "No age out period specified: {0}", deletion_bound_str.toString()));
+				return Validation.fail(ErrorUtils.buildErrorMessage("ElasticsearchDataService", handler, "No age out period specified: {0}", deletion_bound_str.toString()));
 			}
+			return Validation.success(now.getTime() - deletion_bound.get());
+		}
+		
+		/** Low level utility - returns the date part of a time-based index's name if it is on or before the age out time
+		 * @param base_index - the base index that the index belongs to
+		 * @param index - the index name, format is <base-index-signature>_<date>[_<fragment>]
+		 * @param lower_bound - the age out time
+		 * @return the date suffix (without the fragment) if the index has expired, else empty
+		 */
+		protected Optional<String> getExpiredDateSuffix(final String base_index, final String index, final long lower_bound) {
+			if (index.length() <= (1 + base_index.length())) {
+				return Optional.empty();
+			}
+			final String suffix = index.substring(1 + base_index.length()); //(+1 for _)
+			final int fragment_index = suffix.lastIndexOf('_');
+			final String date_str = (fragment_index < 0)
+										? suffix
+										: suffix.substring(0, fragment_index);
 			
-			// Step 1: grab all the indexes
+			final Validation<String, Date> v = TimeUtils.getDateFromSuffix(date_str);
+			return Java8.Stream_JavaStream(v.toStream())
+						.filter(d -> d.getTime() <= lower_bound)
+						.map(__ -> date_str) //(get back to the index)
+						.findFirst()
+						;
+		}
+		
+		/** Moves the time-based indexes of a bucket (or one of its secondary buffers) through their lifecycle, driven by the bucket's temporal schema:
+		 *  - indexes whose period finished more than hot_age_max ago are made "warm": their replicas are reduced (to at most WARM_NUMBER_OF_REPLICAS), 
+		 *    they are force merged (to WARM_MAX_NUM_SEGMENTS segments) and then they are write-blocked
+		 *  - indexes older than warm_age_max are closed, ie they stop using heap and file handles but (unlike aged out indexes) can be re-opened
+		 *  (Indexes are warmed one at a time since merges are expensive, write-blocked and closed indexes are skipped so this is cheap to re-run, 
+		 *   and indexes that are being aged out are left alone)
+		 * @param bucket - the bucket whose indexes to manage
+		 * @param secondary_buffer - optionally, the secondary buffer whose indexes to manage
+		 * @return a future containing a message describing what was done, marked "loggable" if anything was
+		 */
+		public CompletableFuture<BasicMessageBean> handleIndexLifecycleRequest(final DataBucketBean bucket, final Optional<String> secondary_buffer) {
+			final Date now = new Date();
 			
-			final String base_index = ElasticsearchIndexUtils.getBaseIndexName(bucket, secondaryBuffer);
-			final long lower_bound = new Date().getTime() - deletion_bound.get();
+			// Step 0: get the lifecycle times
+			
+			// (the index date is the start of its period, so warm bound is moved back by the length of the period to only get finished periods)
+			final long period_ms = TimeUtils.getTimePeriod(Optionals.of(() -> bucket.data_schema().temporal_schema().grouping_time_period()).orElse(""))
+										.validation(fail -> 0L, period -> period.getDuration().toMillis());
+			
+			final Optional<Long> warm_bound = getLifecycleBound(Optionals.of(() -> bucket.data_schema().temporal_schema().hot_age_max()), now).map(t -> t - period_ms);
+			final Optional<Long> cold_bound = getLifecycleBound(Optionals.of(() -> bucket.data_schema().temporal_schema().warm_age_max()), now);
+			final Optional<Long> age_out_bound = Java8.Stream_JavaStream(getAgeOutLowerBound(bucket, now, "handleIndexLifecycleRequest").toStream()).findFirst();
+			
+			if (!warm_bound.isPresent() && !cold_bound.isPresent()) {
+				return CompletableFuture.completedFuture(ErrorUtils.buildSuccessMessage("ElasticsearchDataService", "handleIndexLifecycleRequest", "No lifecycle periods specified"));
+			}
+			
+			final Map<String, Object> temporal_override = Optional.ofNullable(ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket, _config, _mapper).temporal_technology_override())
+																.map(t -> t.technology_override_schema())
+																.orElse(Collections.emptyMap());
+			final Validation<BasicMessageBean, Integer> max_replicas = getIntOverride(temporal_override, WARM_NUMBER_OF_REPLICAS, WARM_DEFAULT_NUMBER_OF_REPLICAS, 0);
+			final Validation<BasicMessageBean, Integer> max_num_segments = getIntOverride(temporal_override, WARM_MAX_NUM_SEGMENTS, WARM_DEFAULT_MAX_NUM_SEGMENTS, 1);
+			if (max_replicas.isFail()) {
+				return CompletableFuture.completedFuture(max_replicas.fail());
+			}
+			if (max_num_segments.isFail()) {
+				return CompletableFuture.completedFuture(max_num_segments.fail());
+			}
+			
+			// Step 1: grab the settings of all the open indexes
+			
+			final String base_index = ElasticsearchIndexUtils.getBaseIndexName(bucket, secondary_buffer);
 			
-			//(we'll use the stats since a) the alias code didn't seem to work for some reason b) i'm calling that from other places so might be more likely to be cached somewhere?!)
 			return ElasticsearchFutureUtils.wrap(
-					_crud_factory.getClient().admin().indices().prepareStats()
-	                    .clear()
-	                    .setIndices(base_index + "*")
-	                    .setStore(true)
-	                    .execute()								
+					_crud_factory.getClient().admin().indices().prepareGetSettings(base_index + "_*")
+						.setIndicesOptions(IndicesOptions.lenientExpandOpen()) // (closed indexes are already done)
+						.execute()
 					,
-					stats -> {						
-						// Step 2: delete any indexes that are two far off:
+					gsr -> StreamSupport.stream(gsr.getIndexToSettings().spliterator(), false).collect(Collectors.toMap(kv -> kv.key, kv -> kv.value)))
+					.thenCompose(index_settings -> {
 						
-						// (format is <base-index-signature>_<date>[_<fragment>])						
-						final long num_deleted = stats.getIndices().keySet().stream()
-								.map(s -> s.substring(1 + base_index.length())) //(+1 for _)
-								.map(s -> {
-									final int index = s.lastIndexOf('_');
-									return (index < 0)
-											? s
-											: s.substring(0, index);
-								})
-								.flatMap(s -> {
-									final Validation<String, Date> v = TimeUtils.getDateFromSuffix(s);
-									return Java8.Stream_JavaStream(v.toStream())
-												.filter(d -> d.getTime() <= lower_bound)
-												.map(__ -> s) //(get back to the index)
-												;
-								}) 
-								.collect(Collectors.toSet()) // (collapse fragments)
-								.stream()
-								.map(date_str -> {
-									_crud_factory.getClient().admin().indices()
-													.prepareDelete(base_index + "_" + date_str +"*").execute();
-									return 1;
-								})
-								.count()
-								;
+						// Step 2: work out which indexes to close and which to warm
+						
+						final Function<Optional<Long>, Predicate<String>> isOlderThan = bound -> index -> bound.map(b -> getExpiredDateSuffix(base_index, index, b).isPresent()).orElse(false);
+						
+						final List<String> to_close = index_settings.keySet().stream()
+															.filter(isOlderThan.apply(cold_bound))
+															.filter(isOlderThan.apply(age_out_bound).negate())
+															.sorted()
+															.collect(Collectors.toList());
 						
-						final BasicMessageBean message = ErrorUtils.buildSuccessMessage("ElasticsearchDataService", "handleAgeOutRequest", "Deleted {0} indexes", num_deleted);
+						final ConcurrentLinkedQueue<String> to_warm = index_settings.entrySet().stream()
+															.filter(kv -> !kv.getValue().getAsBoolean(IndexMetaData.SETTING_BLOCKS_WRITE, false))
+															.map(kv -> kv.getKey())
+															.filter(isOlderThan.apply(warm_bound))
+															.filter(isOlderThan.apply(cold_bound).negate())
+															.filter(isOlderThan.apply(age_out_bound).negate())
+															.sorted()
+															.collect(Collectors.toCollection(ConcurrentLinkedQueue::new));
 						
-						return (num_deleted > 0)
-								? BeanTemplateUtils.clone(message).with(BasicMessageBean::details, 
-										ImmutableMap.builder().put("loggable", true).build()
-										).done()
-								: message
-								;
+						final int num_to_warm = to_warm.size();
+						final Map<String, String> errors = new ConcurrentHashMap<>();
 						
+						// Step 3: close the cold indexes in one go, and warm the others one at a time
+						// (the cold indexes are removed from the bucket's read alias first, since reading through an alias that includes a closed index fails)
+						
+						final CompletableFuture<Void> closed = to_close.isEmpty()
+								? CompletableFuture.completedFuture(null)
+								: ElasticsearchFutureUtils.wrap(
+										_crud_factory.getClient().admin().indices().prepareAliases()
+											.removeAlias(to_close.stream().toArray(String[]::new), ElasticsearchContext.READ_PREFIX + ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.empty()))
+											.execute()
+										,
+										__ -> (Void) null)
+									.handle((__, t) -> {
+										if ((null != t) && !(t instanceof AliasesMissingException)) { // (none of them being in the alias is fine, eg a secondary buffer) 
+											throw new CompletionException(t);
+										}
+										return (Void) null;
+									})
+									.thenCompose(__ -> ElasticsearchFutureUtils.wrap(
+										_crud_factory.getClient().admin().indices().prepareClose(to_close.stream().toArray(String[]::new))
+											.setIndicesOptions(IndicesOptions.lenientExpandOpen()) // (in case some have been deleted in the meantime)
+											.execute()
+										,
+										___ -> (Void) null))
+									.exceptionally(t -> {
+										to_close.stream().forEach(index -> errors.put(index, ErrorUtils.getLongForm("{0}", t)));
+										return null;
+									});
+						
+						return closed
+								.thenCompose(__ -> warmIndexes(to_warm, index_settings, max_replicas.success(), max_num_segments.success(), errors))
+								.thenApply(__ -> {
+									final BasicMessageBean message = errors.isEmpty()
+											? ErrorUtils.buildSuccessMessage("ElasticsearchDataService", "handleIndexLifecycleRequest", "Warmed {0} indexes, closed {1} indexes", num_to_warm, to_close.size())
+											: ErrorUtils.buildErrorMessage("ElasticsearchDataService", "handleIndexLifecycleRequest", "Warmed {0} indexes, closed {1} indexes, errors: {2}", num_to_warm - errors.size(), to_close.size(), errors);
+									
+									return (num_to_warm + to_close.size() > 0)
+											? BeanTemplateUtils.clone(message).with(BasicMessageBean::details, 
+													ImmutableMap.builder().put("loggable", true).build()
+													).done()
+											: message
+											;
+								});
 					})
 					.exceptionally(t -> {
-						return ErrorUtils.buildErrorMessage("ElasticsearchDataService", "handleAgeOutRequest", ErrorUtils.getLongForm("handleAgeOutRequest error = {0}", t));												
+						return ErrorUtils.buildErrorMessage("ElasticsearchDataService", "handleIndexLifecycleRequest", ErrorUtils.getLongForm("handleIndexLifecycleRequest error = {0}", t));												
 					})
-					;			
+					;
 		}
-
+		
+		/** Warms indexes until there are none left: reduces their replicas, force merges them, and then write-blocks them 
+		 *  (the write block is last so that a failed index is retried the next time round)
+		 * @param to_warm - the remaining indexes to warm
+		 * @param index_settings - the current settings of the indexes
+		 * @param max_replicas - the max number of replicas a warm index has
+		 * @param max_num_segments - the number of segments to merge down to
+		 * @param errors - per index errors are added to this
+		 * @return a future that completes when there are no more indexes
+		 */
+		protected CompletableFuture<Void> warmIndexes(final ConcurrentLinkedQueue<String> to_warm, final Map<String, Settings> index_settings, 
+														final int max_replicas, final int max_num_segments, final Map<String, String> errors)
+		{
+			final String index = to_warm.poll();
+			if (null == index) {
+				return CompletableFuture.completedFuture(null);
+			}
+			final int num_replicas = index_settings.get(index).getAsInt(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0);
+			
+			final CompletableFuture<Void> replicas_reduced = (num_replicas <= max_replicas)
+					? CompletableFuture.completedFuture(null)
+					: ElasticsearchFutureUtils.wrap(
+							_crud_factory.getClient().admin().indices().prepareUpdateSettings(index)
+								.setSettings(ImmutableSettings.settingsBuilder().put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, max_replicas).build())
+								.execute()
+							,
+							__ -> (Void) null);
+			
+			return replicas_reduced
+					.thenCompose(__ -> ElasticsearchFutureUtils.wrap(
+							_crud_factory.getClient().admin().indices().prepareOptimize(index).setMaxNumSegments(max_num_segments).setFlush(true).execute()
+							,
+							___ -> (Void) null))
+					.thenCompose(__ -> ElasticsearchFutureUtils.wrap(
+							_crud_factory.getClient().admin().indices().prepareUpdateSettings(index)
+								.setSettings(ImmutableSettings.settingsBuilder().put(IndexMetaData.SETTING_BLOCKS_WRITE, true).build())
+								.execute()
+							,
+							___ -> (Void) null))
+					.exceptionally(t -> {
+						errors.put(index, ErrorUtils.getLongForm("{0}", t));
+						return null;
+					})
+					.thenCompose(__ -> warmIndexes(to_warm, index_settings, max_replicas, max_num_segments, errors));
+		}
+		
+		/** Low level utility - reads an integer setting from the temporal technology override
+		 * @param temporal_override - the temporal technology override schema
+		 * @param key - the setting
+		 * @param default_value - the value if the setting isn't present
+		 * @param min_value - the smallest valid value
+		 * @return the value, or an error message if it isn't an integer >= min_value
+		 */
+		protected Validation<BasicMessageBean, Integer> getIntOverride(final Map<String, Object> temporal_override, final String key, final int default_value, final int min_value) {
+			final Object o = temporal_override.get(key);
+			if (null == o) {
+				return Validation.success(default_value);
+			}
+			try {
+				final int value = (o instanceof Number) ? ((Number) o).intValue() : Integer.parseInt(o.toString().trim());
+				if (value >= min_value) {
+					return Validation.success(value);
+				}
+			}
+			catch (NumberFormatException e) {} // (drop through to the error)
+			
+			return Validation.fail(ErrorUtils.buildErrorMessage("ElasticsearchDataService", "handleIndexLifecycleRequest", SearchIndexErrorUtils.INVALID_TEMPORAL_OVERRIDE, key, min_value, o));
+		}
+		
+		/** Low level utility - converts an age (eg "30 days") into the time before which indexes are that old 
+		 * @param age_str - the (optional) age, as a human readable string
+		 * @param now
+		 * @return the bound, if the age is present and valid
+		 */
+		protected Optional<Long> getLifecycleBound(final Optional<String> age_str, final Date now) {
+			return age_str
+					.map(s -> TimeUtils.getDuration(s, Optional.of(now)))
+					.filter(Validation::isSuccess)
+					.map(v -> now.getTime() - 1000L*v.success().getSeconds())
+					;
+		}
+		
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService#handleBucketDeletionRequest(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, boolean)
 		 */
@@ -614,10 +1330,11 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 				final CompletableFuture<BasicMessageBean> combined_future = Lambdas.get(() -> {				
 					// delete the template if fully deleting the bucket (vs purging)
 					if (bucket_or_buffer_getting_deleted) {
-						final CompletableFuture<DeleteIndexTemplateResponse> cf = ElasticsearchFutureUtils.
+						// (after any template update still in progress, else it could re-create the template)
+						final CompletableFuture<DeleteIndexTemplateResponse> cf = getTemplateUpdates(bucket).thenCompose(__ -> ElasticsearchFutureUtils.
 								<DeleteIndexTemplateResponse, DeleteIndexTemplateResponse>
 									wrap(_crud_factory.getClient().admin().indices().prepareDeleteTemplate(ElasticsearchIndexUtils.getBaseIndexName(bucket, secondary_buffer)).execute(),								
-											x -> x);
+											x -> x));
 						
 						return data_deletion_future.thenCombine(cf, (Boolean b, DeleteIndexTemplateResponse ditr) -> {
 							return null; // don't care what the return value is, just care about catching exceptions
@@ -729,9 +1446,9 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 												? "_default_"
 												: type.orElse(ElasticsearchIndexServiceConfigBean.DEFAULT_FIXED_TYPE_NAME);
 				
-				final XContentBuilder mapping = ElasticsearchIndexUtils.createIndexMapping(bucket, Optional.empty(), true, schema_config, _mapper, index_type);
+				final String mapping = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket, Optional.empty(), true, schema_config, _mapper, index_type)._1();
 				if (is_verbose) {
-					errors.add(ErrorUtils.buildSuccessMessage(bucket.full_name(), "validateSchema", mapping.bytes().toUtf8()));
+					errors.add(ErrorUtils.buildSuccessMessage(bucket.full_name(), "validateSchema", mapping));
 				}
 			}
 			catch (Throwable e) {
@@ -752,6 +1469,19 @@ public class ElasticsearchIndexService implements ISearchIndexService, ITemporal
 					errors.add(ErrorUtils.buildSuccessMessage(bucket.full_name(), "validateSchema", "Max index size = {0} MB", max));				
 				}
 			}		
+			
+			// 3) Check the max age parses
+			
+			final Optional<String> index_max_age = Optional.ofNullable(schema_config.search_technology_override().target_index_age());
+			if (index_max_age.isPresent()) {
+				if (!getTargetIndexAge(schema_config).isPresent()) {
+					errors.add(ErrorUtils.buildErrorMessage(bucket.full_name(), "validateSchema", SearchIndexErrorUtils.INVALID_MAX_INDEX_AGE, index_max_age.get()));
+					error = true;
+				}
+				else if (is_verbose) {
+					errors.add(ErrorUtils.buildSuccessMessage(bucket.full_name(), "validateSchema", "Max index age = {0}", index_max_age.get()));				
+				}
+			}
 			return Tuples._2T(error ? "" : index_name, errors);
 		}
 		catch (Exception e) { // Very early error has occurred, just report that:
@@ -98,6 +98,10 @@ public class ElasticsearchIndexConfigUtils {
 				BeanTemplateUtils.clone(search_index_bits_tmp)
 					//(target index size is a special case)
 					.with(SearchIndexSchemaDefaultBean::target_index_size_mb, Optionals.of(() -> bucket.data_schema().search_index_schema().target_index_size_mb()).orElse(backup.search_technology_override().target_index_size_mb()))
+					.with(SearchIndexSchemaDefaultBean::target_index_docs, Optional.ofNullable(search_index_bits_tmp.target_index_docs()).orElse(backup.search_technology_override().target_index_docs()))
+					.with(SearchIndexSchemaDefaultBean::target_index_age, Optional.ofNullable(search_index_bits_tmp.target_index_age()).orElse(backup.search_technology_override().target_index_age()))
+					.with(SearchIndexSchemaDefaultBean::bulk_load_secondary_buffers, Optional.ofNullable(search_index_bits_tmp.bulk_load_secondary_buffers()).orElse(backup.search_technology_override().bulk_load_secondary_buffers()))
+					.with(SearchIndexSchemaDefaultBean::bulk_load_max_num_segments, Optional.ofNullable(search_index_bits_tmp.bulk_load_max_num_segments()).orElse(backup.search_technology_override().bulk_load_max_num_segments()))
 					.with(SearchIndexSchemaDefaultBean::collide_policy, Optional.ofNullable(search_index_bits_tmp.collide_policy()).orElse(backup.search_technology_override().collide_policy()))
 					.with(SearchIndexSchemaDefaultBean::type_name_or_prefix, Optional.ofNullable(search_index_bits_tmp.type_name_or_prefix()).orElse(backup.search_technology_override().type_name_or_prefix()))
 					.with(SearchIndexSchemaDefaultBean::verbose, Optional.ofNullable(search_index_bits_tmp.verbose()).orElse(backup.search_technology_override().verbose()))
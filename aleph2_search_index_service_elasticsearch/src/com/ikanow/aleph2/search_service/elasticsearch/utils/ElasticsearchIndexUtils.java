@@ -16,6 +16,7 @@
 package com.ikanow.aleph2.search_service.elasticsearch.utils;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -23,6 +24,8 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -38,6 +41,9 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
@@ -57,11 +63,21 @@ import fj.data.Either;
  */
 public class ElasticsearchIndexUtils {
 
+	/** Mappings keyed on the bucket version they are built from (see getCompiledIndexMapping) */
+	protected static final Cache<Object, Tuple2<String, JsonNode>> _compiled_mapping_cache = CacheBuilder.newBuilder().maximumSize(10000L).expireAfterAccess(2, TimeUnit.HOURS).build();
+	/** The fixed fields of a mapping, keyed on the content of the mapping JSON (JsonNode equals/hashCode compare content, so copies of a mapping share an entry - see getAllFixedFields) */
+	protected static final Cache<JsonNode, Set<String>> _fixed_fields_cache = CacheBuilder.newBuilder().maximumSize(10000L).expireAfterAccess(2, TimeUnit.HOURS).build();
+	
 	public static final String CUSTOM_META = "_meta";
 	public static final String CUSTOM_META_SECONDARY = "secondary_buffer";
 	public static final String CUSTOM_META_BUCKET = "bucket_path";
 	public static final String CUSTOM_META_IS_PRIMARY = "is_primary"; //"true" or "false" 
 	
+	public static final String BULK_LOAD_REFRESH_INTERVAL = "-1"; // (ie disabled)
+	public static final String BULK_LOAD_NUMBER_OF_REPLICAS = "0";
+	public static final String DEFAULT_REFRESH_INTERVAL = "1s"; // (the ES default)
+	public static final String DEFAULT_NUMBER_OF_REPLICAS = "1"; // (the ES default)
+	
 	/////////////////////////////////////////////////////////////////////
 	
 	// INDEX NAMES
@@ -82,6 +98,49 @@ public class ElasticsearchIndexUtils {
 		});
 	}
 	
+	/** Returns true if the indexes of this buffer are created in "bulk load" mode, ie with refresh and replicas disabled until it becomes the primary
+	 * @param secondary_buffer
+	 * @param is_primary
+	 * @param schema_config
+	 * @return
+	 */
+	public static boolean isBulkLoadBuffer(final Optional<String> secondary_buffer, final boolean is_primary, final ElasticsearchIndexServiceConfigBean schema_config) {
+		return secondary_buffer.isPresent() && !is_primary 
+				&& Optionals.of(() -> schema_config.search_technology_override().bulk_load_secondary_buffers()).orElse(false);
+	}
+	
+	/** Looks up an index level setting in the user settings, which can be specified as "index.<key>", "<key>", or nested inside "index"
+	 * @param settings - the user settings JSON
+	 * @param key - the setting without the "index." prefix, eg "refresh_interval"
+	 * @return the setting as a string, if present
+	 */
+	public static Optional<String> getIndexSetting(final JsonNode settings, final String key) {
+		return Stream.of(settings.get("index." + key), settings.get(key), Optional.ofNullable(settings.get("index")).map(j -> j.get(key)).orElse(null))
+					.filter(j -> (null != j) && j.isValueNode())
+					.map(j -> j.asText())
+					.findFirst();
+	}
+	
+	/** Returns a copy of the user settings with refresh and replicas disabled, for bulk loading
+	 * @param settings - the user settings JSON (or null if there are none)
+	 * @param mapper
+	 * @return
+	 */
+	public static JsonNode getBulkLoadSettings(final JsonNode settings, final ObjectMapper mapper) {
+		final ObjectNode bulk_settings = (null == settings) ? mapper.createObjectNode() : (ObjectNode) settings.deepCopy();
+		
+		// (remove any of the other forms the user might have used first)
+		Stream.of("refresh_interval", "number_of_replicas").forEach(key -> {
+			bulk_settings.remove(key);
+			Optional.ofNullable(bulk_settings.get("index")).filter(j -> j.isObject()).ifPresent(j -> ((ObjectNode) j).remove(key));
+		});
+		// (strings since that's how they are returned from the template settings, see mappingsAreEquivalent)
+		return bulk_settings
+				.put("index.refresh_interval", BULK_LOAD_REFRESH_INTERVAL)
+				.put("index.number_of_replicas", BULK_LOAD_NUMBER_OF_REPLICAS)
+				;
+	}
+	
 	/** Returns either a specifc type name, or "_default_" if auto types are used
 	 * @param bucket
 	 * @return
@@ -165,14 +224,22 @@ public class ElasticsearchIndexUtils {
 	 * @return
 	 */
 	public static Set<String> getAllFixedFields(final JsonNode mapping) {
-		return Optional.ofNullable(mapping.get("mappings"))
+		// (normally only calculated once per mapping from getCompiledIndexMapping)
+		final Set<String> cached = _fixed_fields_cache.getIfPresent(mapping);
+		if (null != cached) {
+			return cached;
+		}
+		final Set<String> fixed_fields = Optional.ofNullable(mapping.get("mappings"))
 					.filter(p -> !p.isNull())
 					.filter(p -> p.isObject())
 					.flatMap(p -> Optional.ofNullable(p.get("_default_")))
 					.filter(p -> !p.isNull())
 					.filter(p -> p.isObject())
-					.map(p -> getAllFixedFields_internal(p).collect(Collectors.toSet()))
-				.orElse(Collections.emptySet());		
+					.map(p -> Collections.unmodifiableSet(getAllFixedFields_internal(p).collect(Collectors.toSet())))
+				.orElse(Collections.emptySet());
+		
+		_fixed_fields_cache.put(mapping, fixed_fields);
+		return fixed_fields;
 	}
 	
 	/** Get a set of field mappings from the "properties" section of a mapping
@@ -627,11 +694,16 @@ public class ElasticsearchIndexUtils {
 			final ElasticsearchIndexServiceConfigBean.SearchIndexSchemaDefaultBean search_schema = schema_config.search_technology_override();
 			
 			//(very briefly Nullable)
-			final JsonNode settings = Optional.ofNullable(search_schema)
+			final JsonNode user_settings = Optional.ofNullable(search_schema)
 											.map(s -> s.settings())
 											.map(o -> mapper.convertValue(o, JsonNode.class))
 											.orElse(null);
 			
+			//(very briefly Nullable)
+			final JsonNode settings = isBulkLoadBuffer(secondary_buffer, is_primary, schema_config)
+											? getBulkLoadSettings(user_settings, mapper)
+											: user_settings;
+			
 			//(very briefly Nullable)
 			final JsonNode aliases = Optional.ofNullable(search_schema)
 											.map(s -> s.aliases())
@@ -740,6 +812,49 @@ public class ElasticsearchIndexUtils {
 			.apply(null);
 	}
 	
+	/** Returns the mapping for a bucket/buffer (see createIndexMapping), as a string and as JSON, only building it if the bucket has changed
+	 *  (The mapping is cached against the bucket's _id and modified time - or, if either is missing, the content of the bucket schema and the config bean. 
+	 *   The JSON is a copy, so callers can modify it)
+	 * @param bucket
+	 * @param secondary_buffer
+	 * @param is_primary
+	 * @param schema_config
+	 * @param mapper
+	 * @param index_type
+	 * @return
+	 */
+	public static Tuple2<String, JsonNode> getCompiledIndexMapping(final DataBucketBean bucket, 
+			final Optional<String> secondary_buffer, final boolean is_primary,
+			final ElasticsearchIndexServiceConfigBean schema_config, final ObjectMapper mapper, final String index_type
+			) throws IOException
+	{
+		final Object key = ((null != bucket._id()) && (null != bucket.modified()))
+				? Arrays.asList(bucket._id(), bucket.modified(), bucket.full_name(), secondary_buffer, is_primary, index_type)
+				: Lambdas.get(() -> { // (everything from the bucket that the mapping depends on)
+					final ObjectNode content_key = mapper.createObjectNode()
+												.put("full_name", bucket.full_name())
+												.put("secondary_buffer", secondary_buffer.orElse(null))
+												.put("is_primary", is_primary)
+												.put("index_type", index_type);
+					content_key.set("data_schema", mapper.valueToTree(bucket.data_schema()));
+					content_key.set("schema_config", mapper.valueToTree(schema_config));
+					return content_key;
+				});
+		
+		try {
+			final Tuple2<String, JsonNode> mapping = _compiled_mapping_cache.get(key, () -> {
+				final String mapping_str = createIndexMapping(bucket, secondary_buffer, is_primary, schema_config, mapper, index_type).bytes().toUtf8();
+				return Tuples._2T(mapping_str, mapper.readTree(mapping_str));
+			});
+			return Tuples._2T(mapping._1(), mapping._2().deepCopy()); // (so the cached version can't be changed)
+		}
+		catch (ExecutionException | UncheckedExecutionException e) { // (pass back the errors from invalid schemas unwrapped)
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
 	/** Utility function to create a mapping out of all the different system components (see also ElasticsearchUtils)
 	 * @param bucket
 	 * @param config
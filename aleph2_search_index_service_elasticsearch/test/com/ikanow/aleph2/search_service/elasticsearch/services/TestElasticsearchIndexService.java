@@ -18,6 +18,7 @@ package com.ikanow.aleph2.search_service.elasticsearch.services;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
@@ -26,16 +27,20 @@ import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesRequest;
 import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesResponse;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.collect.ImmutableSet;
 import org.junit.Before;
@@ -61,6 +66,7 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.SearchInd
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.TemporalSchemaBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
@@ -367,6 +373,7 @@ public class TestElasticsearchIndexService {
 			assertTrue("No templates to start with", gtr.getIndexTemplates().isEmpty());
 			
 			_index_service.handlePotentiallyNewIndex(bucket, Optional.empty(), true, ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket, _config_bean, _mapper), "_default_");
+			_index_service.getTemplateUpdates(bucket).join();
 			
 			final GetIndexTemplatesRequest gt2 = new GetIndexTemplatesRequest().names(template_name);
 			final GetIndexTemplatesResponse gtr2 = _crud_factory.getClient().admin().indices().getTemplates(gt2).actionGet();
@@ -380,6 +387,7 @@ public class TestElasticsearchIndexService {
 		{
 			
 			_index_service.handlePotentiallyNewIndex(bucket, Optional.empty(), true, ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket, _config_bean, _mapper), "_default_");
+			_index_service.getTemplateUpdates(bucket).join();
 			
 			final GetIndexTemplatesRequest gt2 = new GetIndexTemplatesRequest().names(template_name);
 			final GetIndexTemplatesResponse gtr2 = _crud_factory.getClient().admin().indices().getTemplates(gt2).actionGet();
@@ -394,6 +402,7 @@ public class TestElasticsearchIndexService {
 			final DataBucketBean bucket2 = BeanTemplateUtils.clone(bucket).with("modified", next_time).done();
 			
 			_index_service.handlePotentiallyNewIndex(bucket2, Optional.empty(), true, ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket2, _config_bean, _mapper), "_default_");
+			_index_service.getTemplateUpdates(bucket2).join();
 
 			final GetIndexTemplatesRequest gt2 = new GetIndexTemplatesRequest().names(template_name);
 			final GetIndexTemplatesResponse gtr2 = _crud_factory.getClient().admin().indices().getTemplates(gt2).actionGet();
@@ -409,6 +418,7 @@ public class TestElasticsearchIndexService {
 			final DataBucketBean bucket2 = BeanTemplateUtils.build(bucket_str2, DataBucketBean.class).with("modified", time_setter.getTime()).done().get();
 			
 			_index_service.handlePotentiallyNewIndex(bucket2, Optional.empty(), true, ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket2, _config_bean, _mapper), "_default_");
+			_index_service.getTemplateUpdates(bucket2).join();
 			
 			final GetIndexTemplatesRequest gt2 = new GetIndexTemplatesRequest().names(template_name);
 			final GetIndexTemplatesResponse gtr2 = _crud_factory.getClient().admin().indices().getTemplates(gt2).actionGet();
@@ -432,6 +442,7 @@ public class TestElasticsearchIndexService {
 			
 			{
 				_index_service.handlePotentiallyNewIndex(bucket, Optional.empty(), true, ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket, _config_bean, _mapper), "_default_");
+				_index_service.getTemplateUpdates(bucket).join();
 				
 				final GetIndexTemplatesRequest gt2 = new GetIndexTemplatesRequest().names(template_name);
 				final GetIndexTemplatesResponse gtr2 = _crud_factory.getClient().admin().indices().getTemplates(gt2).actionGet();
@@ -446,6 +457,7 @@ public class TestElasticsearchIndexService {
 				final DataBucketBean bucket2 = BeanTemplateUtils.clone(bucket).with("modified", next_time).done();				
 				
 				_index_service.handlePotentiallyNewIndex(bucket2, Optional.empty(), true, ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket2, _config_bean, _mapper), "_default_");
+				_index_service.getTemplateUpdates(bucket2).join();
 				
 				final GetIndexTemplatesRequest gt2 = new GetIndexTemplatesRequest().names(template_name);
 				final GetIndexTemplatesResponse gtr2 = _crud_factory.getClient().admin().indices().getTemplates(gt2).actionGet();
@@ -457,6 +469,55 @@ public class TestElasticsearchIndexService {
 		}
 	}
 	
+	@Test
+	public void test_indexCreation_singleFlight() throws IOException {
+		
+		final Calendar time_setter = GregorianCalendar.getInstance();
+		time_setter.set(2015, 1, 1, 13, 0, 0);
+		
+		final String bucket_str = Resources.toString(Resources.getResource("com/ikanow/aleph2/search_service/elasticsearch/services/test_bucket_validate_success.json"), Charsets.UTF_8);
+		final DataBucketBean bucket = BeanTemplateUtils.build(bucket_str, DataBucketBean.class)
+											.with("_id", "test_validate_success_single_flight")
+											.with("full_name", "/test/validate/success/single/flight")
+											.with("modified", time_setter.getTime())
+										.done().get();
+		
+		final String template_name = ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.empty()); 
+		
+		try {
+			_crud_factory.getClient().admin().indices().prepareDeleteTemplate(template_name).execute().actionGet();
+		}
+		catch (Exception e) {} // (This is fine, just means it doesn't exist)
+		
+		final ElasticsearchIndexServiceConfigBean schema_config = ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket, _config_bean, _mapper);
+		
+		// Concurrent callers share the mapping and the template update - which they all wait for, since it's the first time the bucket is seen
+		
+		final List<Optional<JsonNode>> mappings = Arrays.asList(1, 2, 3, 4, 5).parallelStream()
+				.map(__ -> _index_service.handlePotentiallyNewIndex(bucket, Optional.empty(), true, schema_config, "_default_"))
+				.collect(Collectors.toList());
+		
+		assertTrue("All mappings built", mappings.stream().allMatch(Optional::isPresent));
+		assertTrue("Mapping is the same", mappings.stream().allMatch(m -> m.get().equals(mappings.get(0).get())));
+		assertEquals(0, _index_service._template_updates.get(bucket._id()).size());
+		assertEquals(1, _index_service._bucket_template_cache.size());
+		assertEquals(time_setter.getTime(), _index_service._bucket_template_cache.getIfPresent(bucket._id() + ":true"));
+		
+		final GetIndexTemplatesRequest gt = new GetIndexTemplatesRequest().names(template_name);
+		final GetIndexTemplatesResponse gtr = _crud_factory.getClient().admin().indices().getTemplates(gt).actionGet();
+		assertEquals(1, gtr.getIndexTemplates().size());
+		
+		// A new version of the bucket with the same schema shares the mapping, but still checks the template
+		
+		time_setter.set(2015, 1, 1, 14, 0, 0);
+		final DataBucketBean bucket2 = BeanTemplateUtils.clone(bucket).with("modified", time_setter.getTime()).done();
+		final Optional<JsonNode> mapping2 = _index_service.handlePotentiallyNewIndex(bucket2, Optional.empty(), true, schema_config, "_default_");
+		_index_service.getTemplateUpdates(bucket2).join();
+		
+		assertEquals(mappings.get(0).get(), mapping2.get());
+		assertEquals(time_setter.getTime(), _index_service._bucket_template_cache.getIfPresent(bucket._id() + ":true"));
+	}
+	
 	////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
 	// END-TO-END
@@ -478,6 +539,66 @@ public class TestElasticsearchIndexService {
 		}
 	}
 	
+	@Test
+	public void test_multiBucketRead() throws IOException, InterruptedException, ExecutionException {
+		final String bucket_str = Resources.toString(Resources.getResource("com/ikanow/aleph2/search_service/elasticsearch/services/test_end_2_end_bucket2.json"), Charsets.UTF_8);
+		final List<DataBucketBean> buckets = Arrays.asList("1", "2", "3").stream()
+				.map(i -> BeanTemplateUtils.build(bucket_str, DataBucketBean.class)
+											.with("_id", "test_multi_bucket_read_" + i)
+											.with("full_name", "/test/multi/bucket/read/" + i)
+										.done().get())
+				.collect(Collectors.toList());
+		
+		buckets.stream().forEach(bucket -> {
+			try {
+				_crud_factory.getClient().admin().indices().prepareDelete(ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.empty()) + "*").execute().actionGet();
+			}
+			catch (Exception e) {} // (This is fine, just means it doesn't exist)		
+		});
+		
+		// Write into the first 2 buckets, leave the 3rd empty
+		
+		buckets.stream().limit(2).forEach(Lambdas.wrap_consumer_u(bucket -> {
+			final ICrudService<JsonNode> write_crud = 
+					_index_service.getDataService()
+						.flatMap(s -> s.getWritableDataService(JsonNode.class, bucket, Optional.empty(), Optional.empty()))
+						.flatMap(IDataWriteService::getCrudService)
+						.get();
+			
+			write_crud.storeObjects(Arrays.asList(1, 2, 3).stream()
+					.map(i -> (JsonNode) _mapper.createObjectNode().put("bucket", bucket.full_name()).put("val1", i))
+					.collect(Collectors.toList()))
+				.get();
+		}));
+		
+		final ICrudService<JsonNode> read_crud = 
+				_index_service.getDataService()
+					.flatMap(s -> s.getReadableCrudService(JsonNode.class, buckets, Optional.empty()))
+					.get();
+		
+		// (the read aliases are created a couple of seconds after the indexes)
+		for (int i = 0; i < 10; ++i) {
+			Thread.sleep(1000L);
+			if (read_crud.countObjects().get() >= 6) {
+				break;
+			}
+		}
+		
+		final ElasticsearchContext es_context = (ElasticsearchContext) read_crud.getUnderlyingPlatformDriver(ElasticsearchContext.class, Optional.empty()).get();
+		assertTrue("Read only index", es_context instanceof ElasticsearchContext.ReadOnlyContext);
+		assertEquals(3, es_context.indexContext().getReadableIndexList(Optional.empty()).size());
+		assertTrue("Auto type", es_context.typeContext() instanceof ElasticsearchContext.TypeContext.ReadOnlyTypeContext.AutoRoTypeContext);
+		assertEquals(Arrays.asList("data_object"), es_context.typeContext().getReadableTypeList());
+		
+		assertEquals(6L, read_crud.countObjects().get().longValue());
+		assertEquals(2L, read_crud.countObjectsBySpec(CrudUtils.allOf().when("val1", 2)).get().longValue());
+		
+		// Buckets without a search index are ignored
+		
+		final DataBucketBean no_index = BeanTemplateUtils.build(DataBucketBean.class).with("_id", "test_multi_bucket_read_none").with("full_name", "/test/multi/bucket/read/none").done().get();
+		assertEquals(Optional.empty(), _index_service.getDataService().flatMap(s -> s.getReadableCrudService(JsonNode.class, Arrays.asList(no_index), Optional.empty())));
+	}
+	
 	// (including getCrudService)
 	
 	@Test
@@ -519,6 +640,9 @@ public class TestElasticsearchIndexService {
 					.flatMap(IDataWriteService::getCrudService)
 					.get();
 		
+		// (template updates are asynchronous)
+		_index_service.getTemplateUpdates(bucket).join();
+		
 		// Check template added:
 
 		{
@@ -639,6 +763,9 @@ public class TestElasticsearchIndexService {
 					.flatMap(IDataWriteService::getCrudService)
 					.get();
 		
+		// (template updates are asynchronous)
+		_index_service.getTemplateUpdates(bucket).join();
+		
 		// Check template added:
 
 		{
@@ -715,6 +842,154 @@ public class TestElasticsearchIndexService {
 
 	// TEST AGE OUT
 	
+	@Test
+	public void test_ageOutSweep() throws InterruptedException, ExecutionException {
+		
+		final Function<String, DataBucketBean> buildBucket = name -> BeanTemplateUtils.build(DataBucketBean.class)
+				.with("full_name", "/test/age/out/sweep/" + name)
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::temporal_schema,
+								BeanTemplateUtils.build(TemporalSchemaBean.class)
+									.with(TemporalSchemaBean::exist_age_max, "30 days")
+								.done().get()
+							)
+						.done().get()
+						)
+				.done().get();
+		
+		final DataBucketBean bucket1 = buildBucket.apply("one");
+		final DataBucketBean bucket2 = buildBucket.apply("two");
+		final DataBucketBean bucket3 = BeanTemplateUtils.build(DataBucketBean.class).with("full_name", "/test/age/out/sweep/three").done().get(); // (no age out)
+		
+		final String base1 = ElasticsearchIndexUtils.getBaseIndexName(bucket1, Optional.empty());
+		final String base1_sec = ElasticsearchIndexUtils.getBaseIndexName(bucket1, Optional.of("sec"));
+		final String base2 = ElasticsearchIndexUtils.getBaseIndexName(bucket2, Optional.empty());
+		final String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+		
+		Arrays.asList(base1, base1_sec, base2).stream().forEach(base -> {
+			try {
+				_crud_factory.getClient().admin().indices().prepareDelete(base + "*").execute().actionGet();
+			}
+			catch (Exception e) {} // (This is fine, just means it doesn't exist)					
+		});
+		
+		Arrays.asList(base1 + "_2015-01-01", base1 + "_2015-02-01", base1 + "_2015-02-01_1", base1 + "_" + today,
+						base1_sec + "_2015-01-01", base1_sec + "_" + today,
+						base2 + "_" + today)
+			.stream()
+			.forEach(index -> _crud_factory.getClient().admin().indices().prepareCreate(index).execute().actionGet());
+		
+		final ElasticsearchIndexService.ElasticsearchDataService data_service = (ElasticsearchIndexService.ElasticsearchDataService) _index_service.getDataService().get();
+		final Map<String, BasicMessageBean> results = data_service.handleAgeOutRequests(Arrays.asList(bucket1, bucket2, bucket3)).get();
+		
+		assertEquals(3, results.size());
+		assertTrue("bucket1 success: " + results.get(bucket1.full_name()).message(), results.get(bucket1.full_name()).success());
+		assertTrue("sensible message: " + results.get(bucket1.full_name()).message(), results.get(bucket1.full_name()).message().contains(" 3 "));
+		assertTrue("Message marked as loggable", Optional.ofNullable(results.get(bucket1.full_name()).details()).filter(m -> m.containsKey("loggable")).isPresent());
+		assertTrue("sensible message: " + results.get(bucket2.full_name()).message(), results.get(bucket2.full_name()).message().contains(" 0 "));
+		assertTrue("bucket3 success: " + results.get(bucket3.full_name()).message(), results.get(bucket3.full_name()).success());
+		
+		final Set<String> remaining = Arrays.asList(base1, base1_sec, base2).stream()
+				.flatMap(base -> StreamSupport.stream(_crud_factory.getClient().admin().indices().prepareGetMappings(base + "*").execute().actionGet().getMappings().keys().spliterator(), false))
+				.map(kv -> kv.value)
+				.collect(Collectors.toSet());
+		
+		assertEquals(new HashSet<String>(Arrays.asList(base1 + "_" + today, base1_sec + "_" + today, base2 + "_" + today)), remaining);
+	}
+	
+	@Test
+	public void test_indexLifecycle() throws InterruptedException, ExecutionException {
+		
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with("full_name", "/test/index/lifecycle")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::search_index_schema, BeanTemplateUtils.build(SearchIndexSchemaBean.class).done().get())
+							.with(DataSchemaBean::temporal_schema,
+								BeanTemplateUtils.build(TemporalSchemaBean.class)
+									.with(TemporalSchemaBean::grouping_time_period, "1d")
+									.with(TemporalSchemaBean::hot_age_max, "10 days")
+									.with(TemporalSchemaBean::warm_age_max, "100 days")
+								.done().get()
+							)
+						.done().get()
+						)
+				.done().get();
+		
+		final String base = ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.empty());
+		final SimpleDateFormat day_format = new SimpleDateFormat("yyyy-MM-dd");
+		final String today = day_format.format(new Date());
+		final String last_month = day_format.format(new Date(new Date().getTime() - 30L*24L*3600L*1000L));
+		
+		try {
+			_crud_factory.getClient().admin().indices().prepareDelete(base + "*").execute().actionGet();
+		}
+		catch (Exception e) {} // (This is fine, just means it doesn't exist)					
+		
+		Arrays.asList(base + "_2015-01-01", base + "_" + last_month, base + "_" + last_month + "_1", base + "_" + today)
+			.stream()
+			.forEach(index -> _crud_factory.getClient().admin().indices().prepareCreate(index).execute().actionGet());
+		
+		// (all the indexes are in the read alias, as if they'd been written to)
+		_crud_factory.getClient().admin().indices().prepareAliases().addAlias(base + "_*", ElasticsearchContext.READ_PREFIX + base).execute().actionGet();
+		_crud_factory.getClient().prepareIndex(base + "_" + today, "test").setSource("{\"test\":\"today\"}").setRefresh(true).execute().actionGet();
+		
+		final ElasticsearchIndexService.ElasticsearchDataService data_service = (ElasticsearchIndexService.ElasticsearchDataService) _index_service.getDataService().get();
+		final BasicMessageBean res = data_service.handleIndexLifecycleRequest(bucket, Optional.empty()).get();
+		
+		assertTrue("success: " + res.message(), res.success());
+		assertTrue("sensible message: " + res.message(), res.message().contains("Warmed 2 indexes, closed 1 indexes"));
+		assertTrue("Message marked as loggable", Optional.ofNullable(res.details()).filter(m -> m.containsKey("loggable")).isPresent());
+		
+		final ClusterState state = _crud_factory.getClient().admin().cluster().prepareState().execute().actionGet().getState();
+		assertEquals(IndexMetaData.State.CLOSE, state.getMetaData().index(base + "_2015-01-01").getState());
+		assertEquals(IndexMetaData.State.OPEN, state.getMetaData().index(base + "_" + today).getState());
+		assertTrue("Warm index write-blocked", state.getMetaData().index(base + "_" + last_month).getSettings().getAsBoolean(IndexMetaData.SETTING_BLOCKS_WRITE, false));
+		assertTrue("Warm index write-blocked", state.getMetaData().index(base + "_" + last_month + "_1").getSettings().getAsBoolean(IndexMetaData.SETTING_BLOCKS_WRITE, false));
+		assertFalse("Hot index not write-blocked", state.getMetaData().index(base + "_" + today).getSettings().getAsBoolean(IndexMetaData.SETTING_BLOCKS_WRITE, false));
+		
+		// The closed index has been taken out of the read alias, so reads through the alias still work
+		
+		assertFalse("Closed index not in read alias", state.getMetaData().index(base + "_2015-01-01").getAliases().containsKey(ElasticsearchContext.READ_PREFIX + base));
+		assertTrue("Open indexes still in read alias", state.getMetaData().index(base + "_" + today).getAliases().containsKey(ElasticsearchContext.READ_PREFIX + base));
+		final ICrudService<JsonNode> reader = data_service.getReadableCrudService(JsonNode.class, Arrays.asList(bucket), Optional.empty()).get();
+		assertEquals(1L, reader.countObjects().get().longValue());
+		
+		// Run it again, nothing to do so returns success but not loggable:
+		
+		final BasicMessageBean res2 = data_service.handleIndexLifecycleRequest(bucket, Optional.empty()).get();
+		assertTrue("success: " + res2.message(), res2.success());
+		assertTrue("sensible message: " + res2.message(), res2.message().contains("Warmed 0 indexes, closed 0 indexes"));
+		assertFalse("Message not marked as loggable", Optional.ofNullable(res2.details()).filter(m -> m.containsKey("loggable")).isPresent());
+		
+		// No lifecycle periods, nothing to do
+		
+		final BasicMessageBean res3 = data_service.handleIndexLifecycleRequest(BeanTemplateUtils.build(DataBucketBean.class).with("full_name", "/test/index/lifecycle").done().get(), Optional.empty()).get();
+		assertTrue("success: " + res3.message(), res3.success());
+		assertFalse("Message not marked as loggable", Optional.ofNullable(res3.details()).filter(m -> m.containsKey("loggable")).isPresent());
+		
+		// Invalid warm override, returns an error
+		
+		final DataBucketBean bad_override_bucket = BeanTemplateUtils.clone(bucket)
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.clone(bucket.data_schema())
+							.with(DataSchemaBean::temporal_schema,
+								BeanTemplateUtils.clone(bucket.data_schema().temporal_schema())
+									.with(TemporalSchemaBean::technology_override_schema, ImmutableMap.<String, Object>builder().put(ElasticsearchIndexService.WARM_NUMBER_OF_REPLICAS, "bananas").build())
+								.done()
+							)
+						.done()
+						)
+				.done();
+		
+		final BasicMessageBean res4 = data_service.handleIndexLifecycleRequest(bad_override_bucket, Optional.empty()).get();
+		assertFalse("error: " + res4.message(), res4.success());
+		assertTrue("sensible message: " + res4.message(), res4.message().contains(ElasticsearchIndexService.WARM_NUMBER_OF_REPLICAS));
+		
+		_crud_factory.getClient().admin().indices().prepareDelete(base + "*").execute().actionGet();
+	}
+	
 	@Test
 	public void test_ageOut() throws IOException, InterruptedException, ExecutionException {
 		
@@ -776,6 +1051,27 @@ public class TestElasticsearchIndexService {
 		assertTrue("sensible message: " + res2.message(), res2.message().contains(" 0 "));
 		assertTrue("Message _not_ marked as loggable: " + res2.details(), !Optional.ofNullable(res2.details()).map(m -> m.get("loggable")).isPresent());
 				
+		// 1b) Closed indexes get aged out too (both via the sweep and per buffer)
+		
+		_index_service._crud_factory.getClient().admin().indices().prepareCreate(template_name + "_2015-03-01_2").execute().actionGet();
+		_index_service._crud_factory.getClient().admin().indices().prepareClose(template_name + "_2015-03-01_2").execute().actionGet();
+		
+		BasicMessageBean res2b = _index_service.getDataService().get().handleAgeOutRequest(bucket).get();
+		assertEquals(true, res2b.success());
+		assertTrue("sensible message: " + res2b.message(), res2b.message().contains(" 1 "));
+		
+		_index_service._crud_factory.getClient().admin().indices().prepareCreate(template_name + "_2015-03-01_3").execute().actionGet();
+		_index_service._crud_factory.getClient().admin().indices().prepareClose(template_name + "_2015-03-01_3").execute().actionGet();
+		
+		final ElasticsearchIndexService.ElasticsearchDataService data_service = (ElasticsearchIndexService.ElasticsearchDataService) _index_service.getDataService().get();
+		BasicMessageBean res2c = data_service.handleAgeOutRequest(bucket, Optional.empty()).get();
+		assertEquals(true, res2c.success());
+		assertTrue("sensible message: " + res2c.message(), res2c.message().contains(" 1 "));
+		
+		final ClusterState closed_state = _index_service._crud_factory.getClient().admin().cluster().prepareState().execute().actionGet().getState();
+		assertEquals(null, closed_state.getMetaData().index(template_name + "_2015-03-01_2"));
+		assertEquals(null, closed_state.getMetaData().index(template_name + "_2015-03-01_3"));
+		
 		// 2) No temporal settings
 		
 		final DataBucketBean bucket3 = BeanTemplateUtils.build(DataBucketBean.class)
@@ -1005,6 +1301,56 @@ public class TestElasticsearchIndexService {
 		//TODO (IKANOW/Aleph2#28):  will need a test where the outgoing aliases don't existing but the incoming ones do, to check that even though you'll prob get an IndexMissingException it will still apply the other tests
 	}
 
+	@Test
+	public void test_bulkLoadBuffer() throws InterruptedException {
+		
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with("full_name", "/test/buffer/bulk_load")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::search_index_schema,
+								BeanTemplateUtils.build(SearchIndexSchemaBean.class)
+									.with(SearchIndexSchemaBean::technology_override_schema, 
+											ImmutableMap.builder().put("bulk_load_secondary_buffers", true).put("bulk_load_max_num_segments", 1).build())
+								.done().get()
+							)
+						.done().get()
+						)
+				.done().get();
+		
+		final String buffer_base = ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.of("bulk"));
+		try {
+			_crud_factory.getClient().admin().indices().prepareDelete(ElasticsearchIndexUtils.getBaseIndexName(bucket, Optional.empty()) + "*", buffer_base + "*").execute().actionGet();
+		}
+		catch (Exception e) {} // (This is fine, just means it doesn't exist)					
+		
+		final IGenericDataService index_data_service = _index_service.getDataService().get();				
+		
+		// 1) Write to the secondary buffer, check it's in bulk load mode
+		
+		addRecordToSecondaryBuffer(bucket, Optional.of("bulk"));
+		System.out.println("Waiting for indices to be generated....");
+		Thread.sleep(4000L); // wait for the indexes to generate themselves
+		
+		final Function<String, Map<String, String>> getSettings = setting -> 
+			StreamSupport.stream(_crud_factory.getClient().admin().indices().prepareGetSettings(buffer_base + "*").execute().actionGet().getIndexToSettings().spliterator(), false)
+				.collect(Collectors.toMap(kv -> kv.key, kv -> kv.value.get(setting)));
+		
+		assertFalse(getSettings.apply("index.refresh_interval").isEmpty());
+		assertTrue("Bulk load refresh: " + getSettings.apply("index.refresh_interval"), getSettings.apply("index.refresh_interval").values().stream().allMatch(s -> "-1".equals(s)));
+		assertTrue("Bulk load replicas: " + getSettings.apply("index.number_of_replicas"), getSettings.apply("index.number_of_replicas").values().stream().allMatch(s -> "0".equals(s)));
+		
+		// 2) Switch it to the primary, check the settings are restored (refresh interval comes from the default settings)
+		
+		final BasicMessageBean res = index_data_service.switchCrudServiceToPrimaryBuffer(bucket, Optional.of("bulk"), Optional.empty()).join();
+		assertTrue("Switch worked: " + res.message(), res.success());
+		
+		assertTrue("Restored refresh: " + getSettings.apply("index.refresh_interval"), getSettings.apply("index.refresh_interval").values().stream().allMatch(s -> "5s".equals(s)));
+		
+		// (and the data is visible straight away)
+		assertEquals(1L, _crud_factory.getClient().prepareCount(buffer_base + "*").execute().actionGet().getCount());
+	}
+	
 	///////////////////////////////////
 	
 	// UTILITIES
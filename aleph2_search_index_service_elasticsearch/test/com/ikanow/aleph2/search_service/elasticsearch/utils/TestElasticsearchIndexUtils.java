@@ -20,6 +20,7 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -914,4 +915,71 @@ public class TestElasticsearchIndexUtils {
 		
 	}
 	
+	@Test
+	public void test_compiledMappingCache() throws IOException {
+		
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/compiled/cache")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::search_index_schema, 
+									BeanTemplateUtils.build(DataSchemaBean.SearchIndexSchemaBean.class)
+										//(empty)
+									.done().get())
+						.done().get()
+						)
+			.done().get();
+		
+		final ElasticsearchIndexServiceConfigBean schema_config = ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket, _config, _mapper);
+		
+		final Tuple2<String, JsonNode> mapping1 = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket, Optional.empty(), true, schema_config, _mapper, "_default_");
+		
+		// Same as the uncached version
+		assertEquals(ElasticsearchIndexUtils.createIndexMapping(bucket, Optional.empty(), true, schema_config, _mapper, "_default_").bytes().toUtf8(), mapping1._1());
+		assertEquals(_mapper.readTree(mapping1._1()), mapping1._2());
+		
+		// Same content (even from new objects) - shared
+		final DataBucketBean bucket_copy = BeanTemplateUtils.clone(bucket).done();
+		final Tuple2<String, JsonNode> mapping2 = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket_copy, Optional.empty(), true, 
+				ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket_copy, _config, _mapper), _mapper, "_default_");
+		assertTrue("Mapping shared", mapping1._1() == mapping2._1());
+		assertTrue("JSON copied", mapping1._2() != mapping2._2());
+		assertEquals(mapping1._2(), mapping2._2());
+		assertTrue("Fixed fields shared", ElasticsearchIndexUtils.getAllFixedFields(mapping1._2()) == ElasticsearchIndexUtils.getAllFixedFields(mapping2._2()));
+		
+		// Changing the returned JSON doesn't change the cached version
+		((ObjectNode) mapping1._2()).put("test_change", true);
+		final Tuple2<String, JsonNode> mapping1b = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket, Optional.empty(), true, schema_config, _mapper, "_default_");
+		assertFalse("Cached JSON unchanged", mapping1b._2().has("test_change"));
+		
+		// Different inputs - rebuilt
+		final Tuple2<String, JsonNode> mapping3 = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket, Optional.of("sec"), false, schema_config, _mapper, "_default_");
+		assertNotEquals(mapping1._1(), mapping3._1());
+		
+		final DataBucketBean bucket_changed = BeanTemplateUtils.clone(bucket)
+				.with(DataBucketBean::data_schema, 
+						BeanTemplateUtils.clone(bucket.data_schema())
+							.with(DataSchemaBean::temporal_schema, 
+									BeanTemplateUtils.build(DataSchemaBean.TemporalSchemaBean.class).with(DataSchemaBean.TemporalSchemaBean::time_field, "test_time").done().get()
+									)
+							.done()
+						).done();
+		final Tuple2<String, JsonNode> mapping4 = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket_changed, Optional.empty(), true, 
+				ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket_changed, _config, _mapper), _mapper, "_default_");
+		assertTrue("Mapping rebuilt", mapping4._1().contains("test_time"));
+		assertFalse("Mapping rebuilt", mapping1._1().contains("test_time"));
+		
+		// With an _id and modified time, keyed on those
+		final DataBucketBean bucket_versioned = BeanTemplateUtils.clone(bucket).with(DataBucketBean::_id, "test_compiled_cache").with(DataBucketBean::modified, new Date()).done();
+		final Tuple2<String, JsonNode> mapping5 = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket_versioned, Optional.empty(), true, schema_config, _mapper, "_default_");
+		final Tuple2<String, JsonNode> mapping6 = ElasticsearchIndexUtils.getCompiledIndexMapping(BeanTemplateUtils.clone(bucket_versioned).done(), Optional.empty(), true, schema_config, _mapper, "_default_");
+		assertEquals(mapping1._1(), mapping5._1());
+		assertTrue("Mapping shared", mapping5._1() == mapping6._1());
+		
+		final DataBucketBean bucket_versioned_changed = BeanTemplateUtils.clone(bucket_changed).with(DataBucketBean::_id, "test_compiled_cache").with(DataBucketBean::modified, new Date(bucket_versioned.modified().getTime() + 1000L)).done();
+		final Tuple2<String, JsonNode> mapping7 = ElasticsearchIndexUtils.getCompiledIndexMapping(bucket_versioned_changed, Optional.empty(), true, 
+				ElasticsearchIndexConfigUtils.buildConfigBeanFromSchema(bucket_versioned_changed, _config, _mapper), _mapper, "_default_");
+		assertTrue("Mapping rebuilt", mapping7._1().contains("test_time"));
+	}
+	
 }
@@ -51,6 +51,7 @@ import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.storage_service_hdfs.utils.HdfsErrorUtils;
+import com.ikanow.aleph2.storage_service_hdfs.utils.HdfsParquetUtils;
 
 import fj.data.Validation;
 
@@ -140,6 +141,9 @@ public class HdfsStorageService implements IStorageService {
 				else if(driver_class.isAssignableFrom(RawLocalFileSystem.class)){
 					return Optional.of(driver_class.newInstance());
 				}
+				else if(driver_class.isAssignableFrom(Configuration.class)){ // (eg for writers that go via FileSystem not FileContext)
+					return (Optional<T>) Optional.of(config);
+				}
 			} // !=null
 		} 
 		catch (Exception e) {
@@ -202,6 +206,15 @@ public class HdfsStorageService implements IStorageService {
 				Optionals.of(() -> schema.processed())
 				)
 				.forEach(sub_schema -> validateCodec(sub_schema).ifPresent(error -> errors.add(error)));
+		
+		// Parquet is only supported for the processed stage (raw and json are written as is)
+		Arrays.asList(
+				Tuples._2T(StorageStage.raw, Optionals.of(() -> schema.raw())),
+				Tuples._2T(StorageStage.json, Optionals.of(() -> schema.json()))
+				)
+				.stream()
+				.filter(stage_schema -> stage_schema._2().map(v -> v.codec()).filter(codec -> HdfsParquetUtils.getParquetCompression(codec).isPresent()).isPresent())
+				.forEach(stage_schema -> errors.add(ErrorUtils.buildErrorMessage("HDFSStorageService", "validateSchema", HdfsErrorUtils.PARQUET_NOT_SUPPORTED, stage_schema._1())));
 
 		return errors.isEmpty()
 				? Tuples._2T(this.getBucketRootPath() + bucket.full_name() + IStorageService.BUCKET_SUFFIX,  Collections.emptyList())
@@ -222,6 +235,9 @@ public class HdfsStorageService implements IStorageService {
 			.filter(codec -> !codec.equalsIgnoreCase("sz"))
 			.filter(codec -> !codec.equalsIgnoreCase("snappy_framed"))
 			.filter(codec -> !codec.equalsIgnoreCase("fr.sz"))
+			.filter(codec -> !codec.equalsIgnoreCase("bzip2"))
+			.filter(codec -> !codec.equalsIgnoreCase("bz2"))
+			.filter(codec -> !HdfsParquetUtils.getParquetCompression(codec).isPresent()) // ("parquet" or "parquet.<compression>")
 			.map(codec -> ErrorUtils.buildErrorMessage("HDFSStorageService", "validateCodec", HdfsErrorUtils.CODEC_NOT_SUPPORTED, codec));
 	}
 	
@@ -15,31 +15,59 @@
 ******************************************************************************/
 package com.ikanow.aleph2.storage_service_hdfs.services;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.http.impl.cookie.DateUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.io.CountingOutputStream;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService;
@@ -58,6 +86,7 @@ import com.ikanow.aleph2.data_model.utils.TimeUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.UuidUtils;
 import com.ikanow.aleph2.storage_service_hdfs.utils.HdfsErrorUtils;
+import com.ikanow.aleph2.storage_service_hdfs.utils.HdfsParquetUtils;
 
 import fj.Unit;
 
@@ -86,6 +115,31 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 	
 	protected final static String _process_id = UuidUtils.get().getRandomUuid().substring(14);
 	
+	/** What the batch writer does when a producer tries to write while the queue's budget is exhausted
+	 *  BLOCK - the producer waits until the workers have taken enough objects off the queue
+	 *  REJECT - the write fails immediately with a RejectedExecutionException
+	 */
+	public enum BackpressurePolicy { BLOCK, REJECT };
+	
+	/** By default the queue can hold this many full segments per write thread before producers are blocked/rejected */
+	public static final int DEFAULT_BACKPRESSURE_SEGMENTS = 4;
+	
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	protected static final BZip2Codec _bzip2_codec = ReflectionUtils.newInstance(BZip2Codec.class, new Configuration(false));
+	// (don't flush after each object, that would force the codec to emit a block per object)
+	protected static final ObjectWriter _json_writer = _mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+	/** The format used to parse string event times, as for elasticsearch's default date format (an ISO date with an optional time and offset, UTC if not specified) */
+	protected static final DateTimeFormatter _event_time_format = new DateTimeFormatterBuilder()
+																		.append(DateTimeFormatter.ISO_LOCAL_DATE)
+																		.optionalStart()
+																			.appendLiteral('T').append(DateTimeFormatter.ISO_LOCAL_TIME)
+																			.optionalStart().appendOffsetId().optionalEnd()
+																		.optionalEnd()
+																		.parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+																		.parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+																		.parseDefaulting(ChronoField.OFFSET_SECONDS, 0)
+																		.toFormatter();
+	
 	/** User constructor
 	 * @param bucket
 	 */
@@ -113,7 +167,12 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 	@Override
 	public CompletableFuture<Supplier<Object>> storeObject(T new_object) {
 		setup();
-		_writer.get().storeObject(new_object);
+		try {
+			_writer.get().storeObject(new_object);
+		}
+		catch (RejectedExecutionException e) { // (queue is full and the backpressure policy is REJECT)
+			return FutureUtils.returnError(e);
+		}
 		return CompletableFuture.completedFuture(() -> { return null; });
 	}
 
@@ -124,7 +183,12 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 	public CompletableFuture<Tuple2<Supplier<List<Object>>, Supplier<Long>>> storeObjects(
 			List<T> new_objects) {
 		setup();
-		_writer.get().storeObjects(new_objects);
+		try {
+			_writer.get().storeObjects(new_objects);
+		}
+		catch (RejectedExecutionException e) { // (queue is full and the backpressure policy is REJECT)
+			return FutureUtils.returnError(e);
+		}
 		return CompletableFuture.completedFuture(Tuples._2T(() -> Collections.emptyList(), () -> (long)new_objects.size()));
 	}
 
@@ -187,7 +251,7 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 	 * @author alex
 	 */
 	public class BatchHdfsWriteService implements IBatchSubservice<T> {
-		final protected LinkedBlockingQueue<Object> _shared_queue = new LinkedBlockingQueue<>();
+		final protected LinkedBlockingQueue<QueueEntry> _shared_queue = new LinkedBlockingQueue<>();
 		public class MutableState {
 			int max_objects = 5000; // (5K objects)
 			long size_kb = 20L*1024L; // (20MB)
@@ -275,7 +339,10 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		@Override
 		public void storeObjects(List<T> new_objects) {
 			setup();
-			_shared_queue.add(new_objects);
+			final QueueEntry entry = new QueueEntry(new_objects, new_objects.size(), 
+										new_objects.stream().mapToLong(o -> estimateSize(o)).sum());
+			acquireBudget(entry);
+			_shared_queue.add(entry);
 		}
 
 		/* (non-Javadoc)
@@ -284,11 +351,187 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		@Override
 		public void storeObject(T new_object) {
 			setup();
-			_shared_queue.add(new_object);
+			final QueueEntry entry = new QueueEntry(new_object, 1L, estimateSize(new_object));
+			acquireBudget(entry);
+			_shared_queue.add(entry);
 		}
 
 		////////////////////////////////////////
 		
+		// BACKPRESSURE
+		
+		/** Sets the limits on how much data can be sitting in the queue waiting for the workers, and what happens to writes that would exceed them. 
+		 *  By default the limits are DEFAULT_BACKPRESSURE_SEGMENTS full segments per write thread
+		 * @param max_queued_objects - the maximum number of objects in the queue (defaults to a multiple of the segment size)
+		 * @param max_queued_kb - the maximum (estimated) size in KB of the objects in the queue (defaults to a multiple of the segment size)
+		 * @param policy - whether to block or reject writes that exceed the budget (defaults to BLOCK)
+		 */
+		public void setBackpressure(final Optional<Long> max_queued_objects, final Optional<Long> max_queued_kb, final Optional<BackpressurePolicy> policy) {
+			_max_queued_objects_override = max_queued_objects;
+			_max_queued_bytes_override = max_queued_kb.map(kb -> 1024L*kb);
+			_backpressure_policy = policy.orElse(BackpressurePolicy.BLOCK);
+			signalBudgetChange();
+		}
+		
+		/** The number of objects waiting in the queue for the workers
+		 * @return
+		 */
+		public long getQueuedObjects() {
+			_budget_lock.lock();
+			try {
+				return _queued_objects;
+			}
+			finally {
+				_budget_lock.unlock();
+			}
+		}
+		
+		/** The (estimated) size of the objects waiting in the queue for the workers
+		 * @return
+		 */
+		public long getQueuedBytes() {
+			_budget_lock.lock();
+			try {
+				return _queued_bytes;
+			}
+			finally {
+				_budget_lock.unlock();
+			}
+		}
+		
+		/** A snapshot of the queue metrics: 
+		 *  queued_objects, queued_bytes, queued_entries (queue depth), producer_waits, producer_wait_ms, max_producer_wait_ms, rejected_writes, max_queue_wait_ms (oldest entry),
+		 *  failed_writes (objects the workers discarded because writing them to HDFS failed), abandoned_segments (segments that couldn't be completed after a failure)
+		 * @return a map of metric name to value
+		 */
+		public Map<String, Long> getMetrics() {
+			final LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+			metrics.put("queued_objects", getQueuedObjects());
+			metrics.put("queued_bytes", getQueuedBytes());
+			metrics.put("queued_entries", (long) _shared_queue.size());
+			metrics.put("producer_waits", _producer_waits.get());
+			metrics.put("producer_wait_ms", TimeUnit.NANOSECONDS.toMillis(_producer_wait_ns.get()));
+			metrics.put("max_producer_wait_ms", TimeUnit.NANOSECONDS.toMillis(_max_producer_wait_ns.get()));
+			metrics.put("rejected_writes", _rejected_writes.get());
+			metrics.put("max_queue_wait_ms", Optional.ofNullable(_shared_queue.peek())
+												.map(entry -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.enqueued_ns))
+												.orElse(0L));
+			metrics.put("failed_writes", _failed_writes.get());
+			metrics.put("abandoned_segments", _abandoned_segments.get());
+			return metrics;
+		}
+		
+		/** Reserves room in the queue for an entry, blocking or rejecting (depending on the backpressure policy) if there isn't any
+		 *  (A single entry larger than the entire budget is allowed through when the queue is empty)
+		 * @param entry - the entry about to be added to the queue
+		 */
+		protected void acquireBudget(final QueueEntry entry) {
+			long wait_start_ns = 0L;
+			_budget_lock.lock();
+			try {
+				for (;;) {
+					final long max_objects = _max_queued_objects_override.orElseGet(() -> getDefaultMaxQueued(_state.max_objects));
+					final long max_bytes = _max_queued_bytes_override.orElseGet(() -> getDefaultMaxQueued(_state.size_kb*1024L));
+					if ((0 == _queued_objects) || ((_queued_objects + entry.num_objects <= max_objects) && (_queued_bytes + entry.est_bytes <= max_bytes))) {
+						break;
+					}
+					if (BackpressurePolicy.REJECT == _backpressure_policy) {
+						_rejected_writes.incrementAndGet();
+						throw new RejectedExecutionException(ErrorUtils.get(HdfsErrorUtils.BATCH_WRITE_QUEUE_FULL, _queued_objects, _queued_bytes, max_objects, max_bytes));
+					}
+					if (0L == wait_start_ns) {
+						wait_start_ns = System.nanoTime();
+						_producer_waits.incrementAndGet();
+					}
+					try {
+						_budget_released.await(100L, TimeUnit.MILLISECONDS);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException(e);
+					}
+				}
+				_queued_objects += entry.num_objects;
+				_queued_bytes += entry.est_bytes;
+			}
+			finally {
+				_budget_lock.unlock();
+				if (0L != wait_start_ns) {
+					final long waited_ns = System.nanoTime() - wait_start_ns;
+					_producer_wait_ns.addAndGet(waited_ns);
+					_max_producer_wait_ns.accumulateAndGet(waited_ns, Math::max);
+				}
+			}
+		}
+		
+		/** Returns the space reserved for an entry once a worker has taken it off the queue (and written it out)
+		 * @param entry - the entry
+		 * @param written_bytes - the number of bytes actually written, used to improve the size estimate of subsequent objects 
+		 */
+		protected void releaseBudget(final QueueEntry entry, final long written_bytes) {
+			if ((written_bytes > 0) && (entry.num_objects > 0)) {
+				_avg_object_bytes = 0.9*_avg_object_bytes + 0.1*((double)written_bytes/entry.num_objects);
+			}
+			_budget_lock.lock();
+			try {
+				_queued_objects = Math.max(0L, _queued_objects - entry.num_objects);
+				_queued_bytes = Math.max(0L, _queued_bytes - entry.est_bytes);
+				_budget_released.signalAll();
+			}
+			finally {
+				_budget_lock.unlock();
+			}
+		}
+		
+		/** Wakes up any blocked producers so they re-check the budget
+		 */
+		protected void signalBudgetChange() {
+			_budget_lock.lock();
+			try {
+				_budget_released.signalAll();
+			}
+			finally {
+				_budget_lock.unlock();
+			}
+		}
+		
+		/** Returns the default budget, DEFAULT_BACKPRESSURE_SEGMENTS full segments per write thread
+		 * @param segment_limit - the per segment limit (objects or bytes)
+		 * @return
+		 */
+		protected long getDefaultMaxQueued(final long segment_limit) {
+			return DEFAULT_BACKPRESSURE_SEGMENTS*Math.max(1, _state.write_threads)*segment_limit;
+		}
+		
+		/** Returns the (approximate) number of bytes that an object will be serialized into, without serializing it
+		 *  (exact for strings, otherwise a running average of the size of the objects written so far)
+		 * @param o - the object
+		 * @return
+		 */
+		protected long estimateSize(final Object o) {
+			return (o instanceof String)
+					? ((String) o).length() + 1
+					: (long) _avg_object_bytes;
+		}
+		
+		protected final ReentrantLock _budget_lock = new ReentrantLock();
+		protected final Condition _budget_released = _budget_lock.newCondition();
+		protected long _queued_objects = 0L; // (guarded by _budget_lock)
+		protected long _queued_bytes = 0L; // (guarded by _budget_lock)
+		protected volatile double _avg_object_bytes = 1024.0; // (updated by the workers)
+		protected volatile Optional<Long> _max_queued_objects_override = Optional.empty();
+		protected volatile Optional<Long> _max_queued_bytes_override = Optional.empty();
+		protected volatile BackpressurePolicy _backpressure_policy = BackpressurePolicy.BLOCK;
+		
+		protected final AtomicLong _producer_waits = new AtomicLong();
+		protected final AtomicLong _producer_wait_ns = new AtomicLong();
+		protected final AtomicLong _max_producer_wait_ns = new AtomicLong();
+		protected final AtomicLong _rejected_writes = new AtomicLong();
+		protected final AtomicLong _failed_writes = new AtomicLong(); // (updated by the workers)
+		protected final AtomicLong _abandoned_segments = new AtomicLong(); // (updated by the workers)
+		
+		////////////////////////////////////////
+		
 		// UTILITY
 		
 		/** Fills up queue
@@ -302,6 +545,22 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		}
 	}
 
+	/** An object or list of objects in the batch writer's queue, together with its share of the queue's budget
+	 * @author alex
+	 */
+	protected static class QueueEntry {
+		protected QueueEntry(final Object object, final long num_objects, final long est_bytes) {
+			this.object = object;
+			this.num_objects = num_objects;
+			this.est_bytes = est_bytes;
+			this.enqueued_ns = System.nanoTime();
+		}
+		final Object object;
+		final long num_objects;
+		final long est_bytes;
+		final long enqueued_ns;
+	}
+	
 	/////////////////////////////////////////////////////////////
 	
 	// BATCH SUB SERVICE - WORKER THREAD
@@ -313,6 +572,34 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		
 		protected static final String SPOOL_DIR = "/.spooldir/";
 		
+		/** The max number of event time periods a worker keeps a segment open for at once (the least recently written is completed to make room) */
+		protected static final int MAX_OPEN_EVENT_TIME_SEGMENTS = 8;
+		/** How often (at most) a worker checks its event time segments for ones that have hit the flush interval */
+		protected static final long EVENT_TIME_SWEEP_INTERVAL_MS = 1000L;
+		/** The number of objects a parquet segment's schema is inferred from (they're held back until the schema is known) */
+		protected static final int PARQUET_SCHEMA_SAMPLE_SIZE = 1000;
+		
+		/** User constructor - segments are completed into the time period in which they are completed, unless the bucket has a temporal time field,
+		 *  in which case objects are routed to one open segment per event time period (see getEventTimeField)
+		 */
+		public WriterWorker() {
+			this(Optional.empty());
+		}
+		
+		/** Creates a worker whose segments are always completed into the given time period (used by the event time partitioning)
+		 * @param event_time_suffix - the time period suffix, see getSuffix
+		 */
+		protected WriterWorker(final Optional<String> event_time_suffix) {
+			_event_time_suffix = event_time_suffix;
+			_event_time_field = event_time_suffix.isPresent() ? Optional.empty() : getEventTimeField(_bucket, _stage);
+		}
+		final protected Optional<String> _event_time_suffix;
+		final protected Optional<String> _event_time_field;
+		final protected LinkedHashMap<String, WriterWorker> _event_time_segments = new LinkedHashMap<>(16, 0.75f, true); // (access order, ie LRU first)
+		protected long _last_event_time_sweep = 0L;
+		final protected ByteArrayOutputStream _write_buffer = new ByteArrayOutputStream(); // (each object is serialized here first, so a failed object never reaches the segment)
+		protected JsonGenerator _write_generator; // (wraps _write_buffer, reused for every object - recreated after a failure, since its state is then unknown)
+		
 		public class MutableState {
 			boolean terminate = false;
 			Optional<String> codec = Optional.empty();
@@ -322,6 +609,12 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 			long last_segmented;
 			Path curr_path;
 			OutputStream out;
+			CountingOutputStream counted_out; // (wraps out, counts the uncompressed bytes)
+			ParquetWriter<GenericRecord> parquet_writer; // (instead of out - created once there are enough objects to infer the schema from, see write_parquet)
+			final List<JsonNode> parquet_sample = new ArrayList<>();
+			Schema parquet_schema;
+			List<String> parquet_fields;
+			int parquet_rejected; // (objects that couldn't be stored as columns, logged when the segment is completed)
 		}
 		final protected MutableState _state = new MutableState();
 		
@@ -336,7 +629,7 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 			
 			Runtime.getRuntime().addShutdownHook(new Thread(Lambdas.wrap_runnable_i(() -> {
 				_state.terminate = true;
-				complete_segment();
+				complete_all_segments();
 			})));
 			
 			// (Some internal mutable state - these values are _always_ overwritten)
@@ -358,60 +651,324 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 							timeout_ms = timeout_ns*1000L;
 						}
 					}
-					Object o = _writer.get()._shared_queue.poll(timeout_ns, TimeUnit.NANOSECONDS);
-					if (null == o) {
-						complete_segment();
+					final QueueEntry entry = _writer.get()._shared_queue.poll(timeout_ns, TimeUnit.NANOSECONDS);
+					if (null == entry) {
+						complete_all_segments();
 						more_objects = false;
 						continue;
 					}
-					if (null == _state.out) {
-						new_segment();
+					// (write failures, eg while the namenode fails over, only lose the entry - if they ended the worker then nothing would be left draining the queue)
+					long written_b = 0L;
+					try {
+						written_b = _event_time_field.isPresent()
+								? writeByEventTime(entry.object, max_objects, size_b, timeout_ms)
+								: writeToSegment(entry.object);
 					}
-					write(o);
-					if (check_segment(max_objects, size_b, timeout_ms)) {
-						complete_segment();
-						more_objects = false;
+					catch (Exception e) {
+						_writer.get()._failed_writes.addAndGet(entry.num_objects);
+						_logger.error(ErrorUtils.getLongForm(HdfsErrorUtils.BATCH_WRITE_FAILED, e, entry.num_objects));
+						recover_all_segments();
+					}
+					finally { // (always give back the queue space, even if the write failed)
+						_writer.get().releaseBudget(entry, written_b);
+					}
+					try {
+						if (check_segment(max_objects, size_b, timeout_ms)) {
+							complete_segment();
+							more_objects = false;
+						}
+						else {
+							more_objects = null != _writer.get()._shared_queue.peek();
+						}
 					}
-					else {
-						more_objects = null != _writer.get()._shared_queue.peek();
+					catch (IOException e) {
+						_logger.error(ErrorUtils.getLongForm(HdfsErrorUtils.SEGMENT_COMPLETE_FAILED, e, _state.curr_path));
+						recover_all_segments();
+						more_objects = false;
 					}
 				}
 			}
 			catch (Exception e) { // assume this is an interrupted error and fall through to....
 			}
 			try { // always try to complete current segment before exiting
-				complete_segment();
+				complete_all_segments();
 			}
 			catch (Exception ee) {}
 			
 			_logger.info("Terminating HDFS worker thread: " + getFilename());			
 		}
+		/** Writes the object(s) into this worker's current segment, creating one if needed
+		 * @param o - the object or list of objects
+		 * @return the number of bytes written
+		 * @throws Exception
+		 */
+		protected long writeToSegment(final Object o) throws Exception {
+			if (!is_segment_open()) {
+				new_segment();
+			}
+			final long size_before_b = _state.curr_size_b;
+			write(o);
+			return _state.curr_size_b - size_before_b;
+		}
+		
+		/** Writes each object into the open segment for its event time period (objects without an event time go into this worker's segment)
+		 * @param o - the object or list of objects
+		 * @param max_objects - the segmentation criteria, see check_segment
+		 * @param max_size_b - the segmentation criteria, see check_segment
+		 * @param max_duration_ms - the segmentation criteria, see check_segment
+		 * @return the number of bytes written
+		 * @throws Exception
+		 */
+		protected long writeByEventTime(final Object o, final int max_objects, final long max_size_b, final long max_duration_ms) throws Exception {
+			long written_b = 0L;
+			if (o instanceof List) {
+				for (Object ol: (List<?>) o) written_b += writeByEventTime(ol, max_objects, max_size_b, max_duration_ms);
+				return written_b;
+			}
+			// (beans are converted once, and the JSON is used both to get the time and to write)
+			final Object json = ((o instanceof JsonNode) || (o instanceof String)) ? o : BeanTemplateUtils.toJson(o);
+			final Optional<String> suffix = getEventTime(json).map(d -> getSuffix(d, _bucket, _stage));
+			if (!suffix.isPresent()) {
+				written_b = writeToSegment(json);
+			}
+			else {
+				final WriterWorker event_time_segment = getEventTimeSegment(suffix.get());
+				written_b = event_time_segment.writeToSegment(json);
+				if (event_time_segment.check_segment(max_objects, max_size_b, max_duration_ms)) {
+					event_time_segment.complete_segment();
+				}
+			}
+			// Periodically complete any other event time segments that have been open too long (eg late data for an old period)
+			final long now = System.currentTimeMillis();
+			if ((now - _last_event_time_sweep) > EVENT_TIME_SWEEP_INTERVAL_MS) {
+				_last_event_time_sweep = now;
+				synchronized (this) {
+					for (WriterWorker event_time_segment: _event_time_segments.values()) {
+						if (event_time_segment.is_segment_open() && event_time_segment.check_segment(max_objects, max_size_b, max_duration_ms)) {
+							event_time_segment.complete_segment();
+						}
+					}
+				}
+			}
+			return written_b;
+		}
+		
+		/** Returns the event time of an object from the bucket's temporal time field (which is parsed as for the search index, ie either
+		 *  a number of ms since the epoch or a string in elasticsearch's default date format - see parseEventTime)
+		 * @param o - the object, as JSON or a JSON string (see writeByEventTime)
+		 * @return the event time, if present
+		 */
+		protected Optional<Date> getEventTime(final Object o) {
+			if (!_event_time_field.isPresent()) {
+				return Optional.empty();
+			}
+			else if (o instanceof JsonNode) {
+				return Optional.ofNullable(((JsonNode) o).get(_event_time_field.get()))
+							.flatMap(j -> j.isNumber() 
+											? Optional.of(new Date(j.asLong())) 
+											: j.isTextual() ? parseEventTime(j.asText()) : Optional.empty());
+			}
+			else if (o instanceof String) { // (just scans the top level fields, rather than building the whole object)
+				try (JsonParser parser = _mapper.getFactory().createParser((String) o)) {
+					if (JsonToken.START_OBJECT == parser.nextToken()) {
+						while (JsonToken.FIELD_NAME == parser.nextToken()) {
+							final String field = parser.getCurrentName();
+							final JsonToken value = parser.nextToken();
+							if (_event_time_field.get().equals(field)) {
+								return ((JsonToken.VALUE_NUMBER_INT == value) || (JsonToken.VALUE_NUMBER_FLOAT == value)) 
+										? Optional.of(new Date(parser.getLongValue())) 
+										: (JsonToken.VALUE_STRING == value) ? parseEventTime(parser.getText()) : Optional.empty();
+							}
+							parser.skipChildren();
+						}
+					}
+				}
+				catch (Exception e) { // (not JSON, eg a raw string, so no time)
+				}
+				return Optional.empty();
+			}
+			else return Optional.empty();
+		}
+		
+		/** Returns the worker holding the open segment for an event time period, creating it (and completing the least recently used one if
+		 *  there are too many) if needed
+		 * @param suffix - the time period suffix, see getSuffix
+		 * @return
+		 * @throws IOException
+		 */
+		protected synchronized WriterWorker getEventTimeSegment(final String suffix) throws IOException {
+			final WriterWorker existing = _event_time_segments.get(suffix);
+			if (null != existing) {
+				return existing;
+			}
+			if (_event_time_segments.size() >= MAX_OPEN_EVENT_TIME_SEGMENTS) {
+				final Iterator<WriterWorker> it = _event_time_segments.values().iterator();
+				final WriterWorker lru = it.next();
+				it.remove();
+				lru.complete_segment();
+			}
+			final WriterWorker created = new WriterWorker(Optional.of(suffix));
+			_event_time_segments.put(suffix, created);
+			return created;
+		}
+		
+		/** Completes this worker's segment and all its event time segments
+		 * @throws IOException
+		 */
+		protected synchronized void complete_all_segments() throws IOException {
+			complete_segment();
+			for (WriterWorker event_time_segment: _event_time_segments.values()) {
+				event_time_segment.complete_segment();
+			}
+			_event_time_segments.clear();
+		}
+		
+		/** After a failed write, completes this worker's segment and all its event time segments if possible (keeping the objects already written),
+		 *  otherwise abandons them - either way the next write starts a new segment
+		 */
+		protected synchronized void recover_all_segments() {
+			recover_segment();
+			for (WriterWorker event_time_segment: _event_time_segments.values()) {
+				event_time_segment.recover_segment();
+			}
+			_event_time_segments.clear();
+		}
+		
+		/** After a failed write, completes this worker's segment if possible, otherwise closes it (ignoring errors) and leaves it in the spool directory
+		 */
+		protected synchronized void recover_segment() {
+			try {
+				complete_segment();
+			}
+			catch (Exception e) {
+				_logger.error(ErrorUtils.getLongForm(HdfsErrorUtils.SEGMENT_COMPLETE_FAILED, e, _state.curr_path));
+			}
+			if (is_segment_open()) { // (couldn't be completed, or was empty - its stream may be broken, so don't reuse it)
+				if (_state.curr_objects > 0) {
+					if (_writer.isSet()) _writer.get()._abandoned_segments.incrementAndGet();
+					_logger.warn(ErrorUtils.get(HdfsErrorUtils.SEGMENT_ABANDONED, _state.curr_path));
+					_state.segment++; // (so the next segment doesn't overwrite it)
+				}
+				try { if (null != _state.out) _state.out.close(); } catch (Exception e) {}
+				try { if (null != _state.parquet_writer) _state.parquet_writer.close(); } catch (Exception e) {}
+				_state.out = null;
+				_state.counted_out = null;
+				_state.parquet_writer = null;
+				_state.parquet_sample.clear();
+			}
+		}
+		
 		/** Write the object(s) out to the stream
 		 * @param o
 		 * @return
 		 * @throws IOException 
 		 */
 		protected void write(final Object o) throws IOException {
-			String s = null;
 			if (o instanceof List) {
 				@SuppressWarnings({ "rawtypes", "unchecked" })
 				List<Object> l = (List)o;
-				l.stream().forEach(Lambdas.wrap_consumer_u(ol -> write(ol)));
+				for (Object ol: l) write(ol);
 				return;
 			}
-			else if (o instanceof String) {
-				s = ((String) o);
-				if (!s.endsWith("\n")) s += "\n"; //(i think it will a fair bit)
+			else if (isParquet(_state.codec)) {
+				write_parquet(o);
+				return;
 			}
-			else if (o instanceof JsonNode) {
-				s = ((JsonNode) o).toString() + "\n";
+			if (null == _write_generator) {
+				_write_generator = _json_writer.getFactory().createGenerator(_write_buffer)
+										.setRootValueSeparator(null); // (records are newline separated below)
 			}
-			else {
-				s = BeanTemplateUtils.toJson(o).toString() + "\n";
+			_write_buffer.reset();
+			try {
+				if (o instanceof String) {
+					final String s = (String) o;
+					_write_generator.writeRaw(s);
+					if (!s.endsWith("\n")) _write_generator.writeRaw('\n');
+				}
+				else { // (JsonNode or bean)
+					_json_writer.writeValue(_write_generator, o);
+					_write_generator.writeRaw('\n');
+				}
+				_write_generator.flush(); // (empties the generator's buffer into _write_buffer)
+			}
+			catch (IOException | RuntimeException e) { // (nothing has been written to the segment, so it's still valid)
+				_write_generator = null;
+				_write_buffer.reset();
+				throw e;
+			}
+			_write_buffer.writeTo(_state.counted_out);
+			_state.curr_objects++;
+			_state.curr_size_b = _state.counted_out.getCount();
+		}
+		
+		/** Writes a single object to the current parquet segment - the first PARQUET_SCHEMA_SAMPLE_SIZE objects are held back, and then used to infer
+		 *  the segment's schema and create its file (see start_parquet_writer)
+		 *  (While they're held back the segment size isn't tracked, so only the object count and flush interval complete the segment)
+		 * @param o - the object (JSON, a bean, or a JSON string - anything that isn't a JSON object is discarded, and counted)
+		 * @throws IOException
+		 */
+		protected void write_parquet(final Object o) throws IOException {
+			final JsonNode json = Lambdas.get(() -> {
+				try {
+					if (o instanceof JsonNode) return (JsonNode) o;
+					else if (o instanceof String) return _mapper.readTree((String) o);
+					else return BeanTemplateUtils.toJson(o);
+				}
+				catch (Exception e) { // (not JSON, so can't be stored as columns)
+					return null;
+				}
+			});
+			if ((null == json) || !json.isObject()) {
+				_state.parquet_rejected++;
+				return;
 			}
-			_state.out.write(s.getBytes());
 			_state.curr_objects++;
-			_state.curr_size_b += s.getBytes().length;
+			if (null == _state.parquet_writer) {
+				_state.parquet_sample.add(json);
+				if (_state.parquet_sample.size() >= PARQUET_SCHEMA_SAMPLE_SIZE) {
+					start_parquet_writer();
+				}
+				return;
+			}
+			_state.parquet_writer.write(HdfsParquetUtils.toRecord(_state.parquet_schema, _state.parquet_fields, json));
+			_state.curr_size_b = _state.parquet_writer.getDataSize(); // (written + buffered)
+		}
+		
+		/** Infers the current parquet segment's schema from the objects held back so far, creates its file (compressed as per the storage schema's 
+		 *  codec, see HdfsParquetUtils.getParquetCompression), and writes the objects into it
+		 * @throws IOException
+		 */
+		protected void start_parquet_writer() throws IOException {
+			_state.parquet_schema = HdfsParquetUtils.getSchema(_bucket, _state.parquet_sample);
+			_state.parquet_fields = HdfsParquetUtils.getFieldNames(_state.parquet_schema);
+			_state.parquet_writer = AvroParquetWriter.<GenericRecord>builder(_state.curr_path)
+										.withSchema(_state.parquet_schema)
+										.withCompressionCodec(_state.codec.flatMap(HdfsParquetUtils::getParquetCompression).orElse(HdfsParquetUtils.DEFAULT_PARQUET_COMPRESSION))
+										.withRowGroupSize(getRowGroupSize())
+										.withPageSize(ParquetWriter.DEFAULT_PAGE_SIZE)
+										.withValidation(true)
+										.withConf(_storage_service.getUnderlyingPlatformDriver(Configuration.class, Optional.empty()).get())
+										.build();
+			for (JsonNode json: _state.parquet_sample) {
+				_state.parquet_writer.write(HdfsParquetUtils.toRecord(_state.parquet_schema, _state.parquet_fields, json));
+			}
+			_state.parquet_sample.clear();
+			_state.curr_size_b = _state.parquet_writer.getDataSize();
+		}
+		
+		/** The parquet row group size - the same as the max segment size, ie normally one row group per segment
+		 * @return
+		 */
+		protected int getRowGroupSize() {
+			final long size_b = _writer.isSet() ? _writer.get()._state.size_kb*1024L : ParquetWriter.DEFAULT_BLOCK_SIZE;
+			return (int) Math.min(size_b, Integer.MAX_VALUE);
+		}
+		
+		/** Whether a segment is currently open (parquet segments have no output stream, see new_segment)
+		 * @return
+		 */
+		protected boolean is_segment_open() {
+			return (null != _state.out) || (null != _state.parquet_writer) || !_state.parquet_sample.isEmpty();
 		}
 		
 		/** Utility to check the file vs time and siz
@@ -440,7 +997,7 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		 * @throws Exception
 		 */
 		protected void new_segment() throws Exception {
-			if (null == _state.out) { // (otherwise we already have a segment)
+			if (!is_segment_open()) { // (otherwise we already have a segment)
 				_state.last_segmented = System.currentTimeMillis();
 				_state.curr_size_b = 0L;
 				_state.curr_objects = 0;
@@ -449,7 +1006,11 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 				_state.curr_path = new Path(getBasePath(_storage_service.getBucketRootPath(), _bucket, _stage, _job_name, _buffer_name) + "/" + SPOOL_DIR + "/" + getFilename());
 				try { _dfs.mkdir(_state.curr_path.getParent(), FsPermission.getDefault(), true); } catch (Exception e) {}
 				
+				if (isParquet(_state.codec)) { // (the parquet writer creates the file itself, see write_parquet)
+					return;
+				}
 				_state.out = wrapOutputInCodec(_state.codec, _dfs.create(_state.curr_path, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE)));
+				_state.counted_out = new CountingOutputStream(_state.out);
 			}
 		}
 		
@@ -457,13 +1018,28 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		 * @throws IOException 
 		 */
 		protected synchronized void complete_segment() throws IOException {
-			if ((null != _state.out) && (_state.curr_objects > 0)) {
-				_state.out.close();
-				_state.out = null;
+			if (_state.parquet_rejected > 0) {
+				_logger.warn(ErrorUtils.get("Discarded {0} objects that weren't JSON objects from parquet segment {1}", _state.parquet_rejected, _state.curr_path));
+				_state.parquet_rejected = 0;
+			}
+			if (is_segment_open() && (_state.curr_objects > 0)) {
+				if ((null != _state.parquet_writer) || !_state.parquet_sample.isEmpty()) {
+					if (null == _state.parquet_writer) { // (fewer objects than the sample size)
+						start_parquet_writer();
+					}
+					_state.parquet_writer.close(); // (writes the footer)
+					_state.parquet_writer = null;
+				}
+				else {
+					_state.out.close();
+					_state.out = null;
+					_state.counted_out = null;
+				}
 				_state.segment++;
 				
 				final Date now = new Date();
-				final Path path =  new Path(getBasePath(_storage_service.getBucketRootPath(), _bucket, _stage, _job_name, _buffer_name) + "/" + getSuffix(now, _bucket, _stage) + "/" + _state.curr_path.getName());
+				final String suffix = _event_time_suffix.orElseGet(() -> getSuffix(now, _bucket, _stage));
+				final Path path =  new Path(getBasePath(_storage_service.getBucketRootPath(), _bucket, _stage, _job_name, _buffer_name) + "/" + suffix + "/" + _state.curr_path.getName());
 				try { _dfs.mkdir(path.getParent(), FsPermission.getDefault(), true); } catch (Exception e) {} // (fails if already exists?)
 				_dfs.rename(_state.curr_path, path);
 				try { _dfs.rename(getCrc(_state.curr_path), getCrc(path)); } catch (Exception e) {} // (don't care what the error is)				
@@ -482,7 +1058,9 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 		 * @return
 		 */
 		protected String getFilename() {
-			final String suffix = getExtension(_stage) + _state.codec.map(s -> "." + s).orElse("");
+			final String suffix = isParquet(_state.codec)
+									? HdfsParquetUtils.PARQUET_EXTENSION
+									: getExtension(_stage) + _state.codec.map(s -> "." + s).orElse("");
 			return _process_id + "_" + _thread_id + "_" + _state.segment + suffix;
 		}
 		
@@ -510,12 +1088,24 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 							if (codec.equalsIgnoreCase("snappy_framed")) {
 								return "fr.sz";
 							}
+							if (codec.equalsIgnoreCase("bzip2")) {
+								return "bz2";
+							}
 							else return codec;
 						})
 						.map(String::toLowerCase)
+						.filter(codec -> (IStorageService.StorageStage.processed == stage) || !isParquet(Optional.of(codec))) // (columnar output only makes sense for processed data)
 						;
 	}
 	
+	/** Whether the (canonical) codec means the segments are written as parquet rather than JSON
+	 * @param codec - see getCanonicalCodec
+	 * @return
+	 */
+	public static boolean isParquet(final Optional<String> codec) {
+		return codec.flatMap(HdfsParquetUtils::getParquetCompression).isPresent();
+	}
+	
 	/** Wraps an output stream in one of the supported codecs
 	 * @param codec
 	 * @param original_output
@@ -532,6 +1122,9 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 					else if (c.equals("fr.sz")) {
 						return new org.xerial.snappy.SnappyFramedOutputStream(original_output);
 					}
+					else if (c.equals("bz2")) { // (block compressed, so hadoop can split the segment between mappers)
+						return _bzip2_codec.createOutputStream(original_output);
+					}
 					else return null; // (fallback to no codec)
 					
 				}))
@@ -586,6 +1179,32 @@ public class HfdsDataWriteService<T> implements IDataWriteService<T> {
 				;
 	}
 	
+	/** Parses a string event time in elasticsearch's default date format (an ISO date with an optional time and offset, UTC if not specified)
+	 *  so that objects are stored in the same time period as they are indexed in
+	 * @param time - the string time, eg "2015-01-01" or "2015-01-01T12:00:00.000+01:00"
+	 * @return the time, or Optional.empty() if not a valid time
+	 */
+	public static Optional<Date> parseEventTime(final String time) {
+		try {
+			return Optional.of(Date.from(OffsetDateTime.from(_event_time_format.parse(time)).toInstant()));
+		}
+		catch (Exception e) { // (not a date)
+			return Optional.empty();
+		}
+	}
+	
+	/** Returns the field that segments are partitioned on by event time - the bucket's temporal time field, if there is one and the
+	 *  storage stage has a grouping time period (raw data isn't parsed, so is always partitioned by processing time)
+	 * @param bucket
+	 * @param stage
+	 * @return the time field, or Optional.empty() to partition by processing time
+	 */
+	public static Optional<String> getEventTimeField(final DataBucketBean bucket, final IStorageService.StorageStage stage) {
+		return Optionals.of(() -> bucket.data_schema().temporal_schema().time_field())
+				.filter(__ -> IStorageService.StorageStage.raw != stage)
+				.filter(__ -> !IStorageService.NO_TIME_SUFFIX.equals(getSuffix(new Date(), bucket, stage)));
+	}
+	
 	/** Super low level utility to pick out the right storage sub-schema
 	 * @param store
 	 * @param stage
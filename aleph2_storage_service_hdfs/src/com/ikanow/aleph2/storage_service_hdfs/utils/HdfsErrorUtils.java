@@ -24,4 +24,9 @@ public class HdfsErrorUtils {
 	final public static String AGE_OUT_SETTING_NOT_PARSED = "{0}: No age out period specified: {1}";
 	final public static String OPERATION_NOT_SUPPORTED = "The HDFS implementation of the storage service does not support this operation: {0}";
 	final public static String CODEC_NOT_SUPPORTED = "This codec is not supported: {0}";
+	final public static String PARQUET_NOT_SUPPORTED = "The parquet codec is only supported for the processed stage, not: {0}";
+	final public static String BATCH_WRITE_QUEUE_FULL = "Batch write rejected: {0} objects / {1} bytes already queued (limits {2} objects / {3} bytes)";
+	final public static String BATCH_WRITE_FAILED = "Failed to write {1} objects to HDFS, discarding them: {0}";
+	final public static String SEGMENT_COMPLETE_FAILED = "Failed to complete segment {1}: {0}";
+	final public static String SEGMENT_ABANDONED = "Abandoned segment {0} after a failed write, the objects already written are left in the spool directory";
 }
@@ -0,0 +1,192 @@
+/*******************************************************************************
+* Copyright 2015, The IKANOW Open Source Project.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*   http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+******************************************************************************/
+package com.ikanow.aleph2.storage_service_hdfs.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.Lists;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.utils.Optionals;
+
+/** Utilities for writing the processed stage as Parquet: infers the (Avro) schema of a segment from the bucket's columnar schema
+ *  and the first objects in the segment, and converts objects into records of that schema
+ * @author alex
+ */
+public class HdfsParquetUtils {
+
+	public static final String PARQUET_CODEC = "parquet";
+	public static final String PARQUET_EXTENSION = ".parquet";
+	public static final CompressionCodecName DEFAULT_PARQUET_COMPRESSION = CompressionCodecName.SNAPPY;
+
+	protected static final String RECORD_NAME = "aleph2_processed";
+
+	/** Builds the schema for a segment - the columns are the bucket's columnar field_include_list (or the top level fields of the sample objects,
+	 *  in the order they're first seen, if that's empty), minus its field_exclude_list. Each column is nullable, its type is inferred from the
+	 *  sample objects (long/double/boolean, otherwise string - nested objects and arrays are stored as JSON strings), widening if they
+	 *  conflict (see widenColumnType)
+	 * @param bucket - the bucket whose columnar schema selects the fields
+	 * @param sample_objects - the first objects in the segment
+	 * @return the Avro schema
+	 */
+	public static Schema getSchema(final DataBucketBean bucket, final List<JsonNode> sample_objects) {
+		final List<String> include_list = Optionals.of(() -> bucket.data_schema().columnar_schema().field_include_list()).orElse(Collections.emptyList());
+		final List<String> exclude_list = Optionals.of(() -> bucket.data_schema().columnar_schema().field_exclude_list()).orElse(Collections.emptyList());
+
+		final Set<String> fields = new LinkedHashSet<>(include_list);
+		if (include_list.isEmpty()) {
+			sample_objects.stream().forEach(object -> fields.addAll(Lists.newArrayList(object.fieldNames())));
+		}
+		fields.removeAll(exclude_list);
+
+		final Set<String> columns = new HashSet<>();
+		SchemaBuilder.FieldAssembler<Schema> schema = SchemaBuilder.record(RECORD_NAME).fields();
+		for (String field: fields) {
+			final String column = getColumnName(field);
+			if (columns.add(column)) { // (if 2 fields sanitize to the same column name then only the first is kept)
+				schema = schema.name(column)
+							.prop(FIELD_NAME_PROP, field) // (the column name may have been sanitized)
+							.type(Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.NULL), Schema.create(getColumnType(field, sample_objects)))))
+							.noDefault();
+			}
+		}
+		return schema.endRecord();
+	}
+
+	/** Converts an object into a record of the segment's schema (fields not in the schema are dropped, values that don't match the column type are
+	 *  stored as null, other than string columns which store the JSON)
+	 * @param schema - the segment schema, see getSchema
+	 * @param fields - the original field names, in the same order as the schema
+	 * @param object - the object to convert
+	 * @return the record
+	 */
+	public static GenericRecord toRecord(final Schema schema, final List<String> fields, final JsonNode object) {
+		final GenericRecord record = new GenericData.Record(schema);
+		final List<Schema.Field> columns = schema.getFields();
+		for (int i = 0; i < columns.size(); ++i) {
+			final JsonNode value = object.get(fields.get(i));
+			if ((null != value) && !value.isNull()) {
+				record.put(i, getColumnValue(columns.get(i).schema().getTypes().get(1).getType(), value));
+			}
+		}
+		return record;
+	}
+
+	/** Returns the compression for a parquet codec: "parquet" (DEFAULT_PARQUET_COMPRESSION), or "parquet.<compression>" where the compression is
+	 *  gz/gzip, sz/snappy, or none/uncompressed
+	 * @param codec - the codec from the storage schema
+	 * @return the compression, or empty if the codec isn't a (valid) parquet codec
+	 */
+	public static Optional<CompressionCodecName> getParquetCompression(final String codec) {
+		final String lower_codec = codec.toLowerCase();
+		if (lower_codec.equals(PARQUET_CODEC)) return Optional.of(DEFAULT_PARQUET_COMPRESSION);
+		else if (!lower_codec.startsWith(PARQUET_CODEC + ".")) return Optional.empty();
+		
+		switch (lower_codec.substring(PARQUET_CODEC.length() + 1)) {
+			case "gz": case "gzip": return Optional.of(CompressionCodecName.GZIP);
+			case "sz": case "snappy": return Optional.of(CompressionCodecName.SNAPPY);
+			case "none": case "uncompressed": return Optional.of(CompressionCodecName.UNCOMPRESSED);
+			default: return Optional.empty();
+		}
+	}
+
+	/** Returns the original field names of a segment schema, in column order
+	 * @param schema - the segment schema, see getSchema
+	 * @return
+	 */
+	public static List<String> getFieldNames(final Schema schema) {
+		return schema.getFields().stream().map(f -> Optional.ofNullable(f.getProp(FIELD_NAME_PROP)).orElse(f.name())).collect(Collectors.toList());
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// LOW LEVEL UTILS
+
+	protected static final String FIELD_NAME_PROP = "aleph2_field";
+
+	/** Avro names are restricted to [A-Za-z_][A-Za-z0-9_]*, so other characters are replaced by _
+	 * @param field
+	 * @return
+	 */
+	protected static String getColumnName(final String field) {
+		final String name = field.replaceAll("[^A-Za-z0-9_]", "_");
+		return name.isEmpty() || Character.isDigit(name.charAt(0)) ? "_" + name : name;
+	}
+
+	/** Infers the column type of a field from its (non null) values in the sample objects, string if it has none
+	 * @param field - the original field name
+	 * @param sample_objects - the first objects in the segment
+	 * @return
+	 */
+	protected static Schema.Type getColumnType(final String field, final List<JsonNode> sample_objects) {
+		return sample_objects.stream()
+					.map(object -> object.get(field))
+					.filter(value -> (null != value) && !value.isNull())
+					.map(value -> getColumnType(value))
+					.reduce(HdfsParquetUtils::widenColumnType)
+					.orElse(Schema.Type.STRING);
+	}
+
+	/** Returns a column type that can hold values of both types: long and double widen to double, any other mismatch to string
+	 * @param type1
+	 * @param type2
+	 * @return
+	 */
+	protected static Schema.Type widenColumnType(final Schema.Type type1, final Schema.Type type2) {
+		if (type1 == type2) return type1;
+		else if (((Schema.Type.LONG == type1) && (Schema.Type.DOUBLE == type2)) || ((Schema.Type.DOUBLE == type1) && (Schema.Type.LONG == type2))) return Schema.Type.DOUBLE;
+		else return Schema.Type.STRING;
+	}
+
+	/** Infers the column type from a JSON value
+	 * @param value - the value, or null if the field isn't present
+	 * @return
+	 */
+	protected static Schema.Type getColumnType(final JsonNode value) {
+		if (null == value) return Schema.Type.STRING;
+		else if (value.isIntegralNumber()) return Schema.Type.LONG;
+		else if (value.isNumber()) return Schema.Type.DOUBLE;
+		else if (value.isBoolean()) return Schema.Type.BOOLEAN;
+		else return Schema.Type.STRING;
+	}
+
+	/** Converts a JSON value into the column type
+	 * @param type - the column type, see getColumnType
+	 * @param value - the (non null) JSON value
+	 * @return the value, or null if it isn't compatible with the column type
+	 */
+	protected static Object getColumnValue(final Schema.Type type, final JsonNode value) {
+		switch (type) {
+			case LONG: return value.isIntegralNumber() ? value.asLong() : null;
+			case DOUBLE: return value.isNumber() ? value.asDouble() : null;
+			case BOOLEAN: return value.isBoolean() ? value.asBoolean() : null;
+			default: return value.isValueNode() ? value.asText() : value.toString();
+		}
+	}
+}
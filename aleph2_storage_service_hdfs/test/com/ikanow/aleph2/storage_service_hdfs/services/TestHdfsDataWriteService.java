@@ -17,8 +17,10 @@ package com.ikanow.aleph2.storage_service_hdfs.services;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.time.Duration;
 import java.util.Arrays;
@@ -28,16 +30,35 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 import org.junit.Test;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataWriteService.IBatchSubservice;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
@@ -45,6 +66,8 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.StorageSchemaBean;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
+import com.ikanow.aleph2.storage_service_hdfs.utils.HdfsParquetUtils;
 
 public class TestHdfsDataWriteService {
 
@@ -163,7 +186,7 @@ public class TestHdfsDataWriteService {
 	 * 		HfdsDataWriteService.wrapOutputInCodec
 	 */
 	@Test
-	public void test_utilityMethods_codecs() {
+	public void test_utilityMethods_codecs() throws IOException {
 		
 		// No codec
 		{
@@ -365,8 +388,39 @@ public class TestHdfsDataWriteService {
 			final OutputStream out_out = HfdsDataWriteService.wrapOutputInCodec(test, out_in);
 			assertTrue("Stream is snappy: " + out_out.getClass().getSimpleName(), out_out instanceof org.xerial.snappy.SnappyOutputStream);
 		}		
+		//bzip2
+		{
+			final DataBucketBean test_bucket = BeanTemplateUtils.build(DataBucketBean.class)
+					.with(DataBucketBean::full_name, "/test/static")
+					.with(DataBucketBean::data_schema,
+							BeanTemplateUtils.build(DataSchemaBean.class)
+								.with(DataSchemaBean::storage_schema,
+									BeanTemplateUtils.build(StorageSchemaBean.class)
+										.with(StorageSchemaBean::json, 
+												BeanTemplateUtils.build(StorageSchemaBean.StorageSubSchemaBean.class)
+													.with(StorageSchemaBean.StorageSubSchemaBean::codec, "bzip2")
+												.done().get())
+									.done().get()
+								)
+							.done().get())
+					.done().get();
 		
-		
+			ByteArrayOutputStream out_in = new ByteArrayOutputStream();
+			
+			Optional<String> test = HfdsDataWriteService.getCanonicalCodec(test_bucket.data_schema().storage_schema(), IStorageService.StorageStage.json);
+			assertEquals(Optional.of("bz2"), test);
+			
+			final OutputStream out_out = HfdsDataWriteService.wrapOutputInCodec(test, out_in);
+			assertTrue("Stream is bzip2: " + out_out.getClass().getSimpleName(), out_out instanceof CompressionOutputStream);
+			
+			// Check the output can be read back, and that hadoop will split the resulting segments
+			out_out.write("{\"test\":\"bzip2\"}\n".getBytes());
+			out_out.close();
+			assertEquals("{\"test\":\"bzip2\"}\n", IOUtils.toString(HfdsDataWriteService._bzip2_codec.createInputStream(new ByteArrayInputStream(out_in.toByteArray()))));
+			
+			final CompressionCodec codec = new CompressionCodecFactory(new Configuration(false)).getCodec(new Path("segment" + HfdsDataWriteService.getExtension(IStorageService.StorageStage.json) + "." + test.get()));
+			assertTrue("Splittable: " + codec, codec instanceof SplittableCompressionCodec);
+		}		
 	}	
 	
 	public static class TestBean {
@@ -495,9 +549,33 @@ public class TestHdfsDataWriteService {
 			
 			worker.write("TEST1");
 			worker.write("TEST2\n");
+			
+			// (an object that fails part way through serializing doesn't leave anything in the segment)
+			final ObjectNode bad = BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode().put("partial", "partial");
+			bad.putPOJO("fails", new JsonSerializable() {
+				@Override
+				public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+					gen.writeString("partial");
+					throw new IOException("test");
+				}
+				@Override
+				public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+					serialize(gen, serializers);
+				}
+			});
+			try {
+				worker.write(bad);
+				fail("Should have thrown");
+			}
+			catch (Exception e) {}
+			
 			worker.write(t1);
 			worker.write(BeanTemplateUtils.toJson(t2));
 			
+			// (bytes are counted as they're streamed out)
+			assertEquals(4, worker._state.curr_objects);
+			assertEquals("TEST1\nTEST2\n{\"_id\":\"t1\",\"value\":\"v1\"}\n{\"_id\":\"t2\",\"value\":\"v2\"}\n".length(), worker._state.curr_size_b);
+			
 			worker.complete_segment();
 			
 			assertTrue("File should have moved: " + f, !f.exists());
@@ -545,6 +623,314 @@ public class TestHdfsDataWriteService {
 		}
 	}		
 
+	@Test
+	public void test_writerService_eventTime() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;		
+		
+		final HfdsDataWriteService<TestBean> default_service = getWriter("/test/writer/event_time");
+		
+		// No temporal schema, so partition by processing time
+		assertEquals(Optional.empty(), HfdsDataWriteService.getEventTimeField(default_service._bucket, IStorageService.StorageStage.processed));
+		
+		final DataBucketBean test_bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, default_service._bucket.full_name())
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::temporal_schema, 
+									BeanTemplateUtils.build(DataSchemaBean.TemporalSchemaBean.class).with(DataSchemaBean.TemporalSchemaBean::time_field, "ts").done().get())
+							.with(DataSchemaBean::storage_schema,
+								BeanTemplateUtils.build(StorageSchemaBean.class)
+									.with(StorageSchemaBean::processed, 
+											BeanTemplateUtils.build(StorageSchemaBean.StorageSubSchemaBean.class)
+												.with(StorageSchemaBean.StorageSubSchemaBean::grouping_time_period, "1d")
+											.done().get())
+								.done().get()
+							)
+						.done().get())
+				.done().get();
+		
+		assertEquals(Optional.of("ts"), HfdsDataWriteService.getEventTimeField(test_bucket, IStorageService.StorageStage.processed));
+		assertEquals(Optional.empty(), HfdsDataWriteService.getEventTimeField(test_bucket, IStorageService.StorageStage.raw));
+		
+		final HfdsDataWriteService<TestBean> write_service = new HfdsDataWriteService<TestBean>(test_bucket, default_service._parent, 
+				IStorageService.StorageStage.processed, Optional.empty(), default_service._storage_service, Optional.empty());
+		
+		//(Tidy up)
+		try { FileUtils.deleteDirectory(new File(temp_dir + "/data/" + write_service._bucket.full_name())); } catch (Exception e) {}
+		
+		final HfdsDataWriteService<TestBean>.WriterWorker worker = write_service.new WriterWorker();
+		
+		final long day1 = 1441311160000L; // Thu, 03 Sep 2015 20:12:40 GMT
+		final long day2 = day1 + 2L*24L*3600L*1000L;
+		final ObjectNode o1 = ((ObjectNode) BeanTemplateUtils.toJson(new TestBean("t1", "v1"))).put("ts", day1);
+		final ObjectNode o2 = ((ObjectNode) BeanTemplateUtils.toJson(new TestBean("t2", "v2"))).put("ts", day2);
+		final ObjectNode o3 = ((ObjectNode) BeanTemplateUtils.toJson(new TestBean("t3", "v3"))).put("ts", "2015-09-03T20:12:41.000Z"); // (string times are parsed as for the search index)
+		final TestBean t4 = new TestBean("t4", "v4"); // (no event time)
+		final String s5 = "{\"_id\":\"t5\",\"nested\":{\"ts\":1},\"ts\":" + day2 + "}"; // (JSON string, time read from the top level)
+		final String s6 = "{\"_id\":\"t6\",\"ts\":\"2015-09-05\"}";
+		
+		assertEquals(Optional.of(new Date(day1 + 1000L)), HfdsDataWriteService.parseEventTime("2015-09-03T20:12:41.000Z"));
+		assertEquals(Optional.of(new Date(day1 + 1000L)), HfdsDataWriteService.parseEventTime("2015-09-03T21:12:41+01:00"));
+		assertEquals(Optional.of(new Date(day1 + 1000L)), HfdsDataWriteService.parseEventTime("2015-09-03T20:12:41"));
+		assertEquals(Optional.of(new Date(1441411200000L)), HfdsDataWriteService.parseEventTime("2015-09-05"));
+		assertEquals(Optional.empty(), HfdsDataWriteService.parseEventTime("not a date"));
+		
+		final long written_b = worker.writeByEventTime(Arrays.asList(o1, o2, t4), 100, 1024L*1024L, 60000L)
+								+ worker.writeByEventTime(o3, 100, 1024L*1024L, 60000L)
+								+ worker.writeByEventTime(s5, 100, 1024L*1024L, 60000L)
+								+ worker.writeByEventTime(s6, 100, 1024L*1024L, 60000L);
+		
+		// 2 event time segments plus this worker's own for the object with no time
+		assertEquals(2, worker._event_time_segments.size());
+		assertEquals(1, worker._state.curr_objects);
+		
+		worker.complete_all_segments();
+		assertEquals(0, worker._event_time_segments.size());
+		
+		final String base_dir = temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/";
+		final Function<String, String> read_partition = Lambdas.wrap_u(suffix -> {
+			final File[] files = new File((base_dir + suffix).replace("/", File.separator)).listFiles((dir, name) -> name.endsWith(".json"));
+			assertEquals("One segment in " + suffix, 1, files.length);
+			return FileUtils.readFileToString(files[0]);
+		});
+		
+		final String day1_contents = read_partition.apply(HfdsDataWriteService.getSuffix(new Date(day1), test_bucket, IStorageService.StorageStage.processed));
+		assertEquals(o1.toString() + "\n" + o3.toString() + "\n", day1_contents);
+		
+		final String day2_contents = read_partition.apply(HfdsDataWriteService.getSuffix(new Date(day2), test_bucket, IStorageService.StorageStage.processed));
+		assertEquals(o2.toString() + "\n" + s5 + "\n" + s6 + "\n", day2_contents);
+		
+		final String now_contents = read_partition.apply(HfdsDataWriteService.getSuffix(new Date(), test_bucket, IStorageService.StorageStage.processed));
+		assertEquals("{\"_id\":\"t4\",\"value\":\"v4\"}\n", now_contents);
+		
+		assertEquals((day1_contents + day2_contents + now_contents).length(), written_b);
+	}
+	
+	@Test
+	public void test_writerService_parquet() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;		
+		
+		final HfdsDataWriteService<TestBean> default_service = getWriter("/test/writer/parquet");
+		
+		final DataBucketBean test_bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, default_service._bucket.full_name())
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+							.with(DataSchemaBean::columnar_schema, 
+									BeanTemplateUtils.build(DataSchemaBean.ColumnarSchemaBean.class).with(DataSchemaBean.ColumnarSchemaBean::field_exclude_list, Arrays.asList("excluded")).done().get())
+							.with(DataSchemaBean::storage_schema,
+								BeanTemplateUtils.build(StorageSchemaBean.class)
+									.with(StorageSchemaBean::processed, 
+											BeanTemplateUtils.build(StorageSchemaBean.StorageSubSchemaBean.class)
+												.with(StorageSchemaBean.StorageSubSchemaBean::codec, "Parquet")
+											.done().get())
+								.done().get()
+							)
+						.done().get())
+				.done().get();
+		
+		assertEquals(Optional.of("parquet"), HfdsDataWriteService.getCanonicalCodec(test_bucket.data_schema().storage_schema(), IStorageService.StorageStage.processed));
+		
+		// Compression
+		
+		assertEquals(Optional.of(CompressionCodecName.SNAPPY), HdfsParquetUtils.getParquetCompression("parquet"));
+		assertEquals(Optional.of(CompressionCodecName.GZIP), HdfsParquetUtils.getParquetCompression("Parquet.gzip"));
+		assertEquals(Optional.of(CompressionCodecName.UNCOMPRESSED), HdfsParquetUtils.getParquetCompression("parquet.none"));
+		assertEquals(Optional.empty(), HdfsParquetUtils.getParquetCompression("parquet.banana"));
+		assertEquals(Optional.empty(), HdfsParquetUtils.getParquetCompression("gz"));
+		assertTrue(HfdsDataWriteService.isParquet(Optional.of("parquet.gz")));
+		
+		// Schema inference
+		
+		final JsonNode o1 = HfdsDataWriteService._mapper.readTree("{\"_id\":\"t1\",\"num\":1,\"dbl\":1.5,\"bool\":true,\"nested.field\":\"x\",\"obj\":{\"a\":1},\"excluded\":\"x\"}");
+		final Schema schema = HdfsParquetUtils.getSchema(test_bucket, Arrays.asList(o1));
+		assertEquals(Arrays.asList("_id", "num", "dbl", "bool", "nested.field", "obj"), HdfsParquetUtils.getFieldNames(schema));
+		assertEquals("nested_field", schema.getFields().get(4).name());
+		
+		// (conflicting types are widened, fields from any of the objects are included)
+		final JsonNode o1b = HfdsDataWriteService._mapper.readTree("{\"num\":2.5,\"dbl\":2,\"bool\":\"yes\",\"extra\":null}");
+		final Schema schema_b = HdfsParquetUtils.getSchema(test_bucket, Arrays.asList(o1, o1b));
+		assertEquals(Arrays.asList("_id", "num", "dbl", "bool", "nested.field", "obj", "extra"), HdfsParquetUtils.getFieldNames(schema_b));
+		assertEquals(Schema.Type.DOUBLE, schema_b.getField("num").schema().getTypes().get(1).getType());
+		assertEquals(Schema.Type.DOUBLE, schema_b.getField("dbl").schema().getTypes().get(1).getType());
+		assertEquals(Schema.Type.STRING, schema_b.getField("bool").schema().getTypes().get(1).getType());
+		assertEquals(Schema.Type.STRING, schema_b.getField("extra").schema().getTypes().get(1).getType());
+		
+		// (the include list is used if there is one)
+		final DataBucketBean include_bucket = BeanTemplateUtils.clone(test_bucket)
+				.with(DataBucketBean::data_schema, 
+						BeanTemplateUtils.clone(test_bucket.data_schema())
+							.with(DataSchemaBean::columnar_schema, 
+									BeanTemplateUtils.build(DataSchemaBean.ColumnarSchemaBean.class).with(DataSchemaBean.ColumnarSchemaBean::field_include_list, Arrays.asList("num", "missing")).done().get())
+						.done())
+				.done();
+		assertEquals(Arrays.asList("num", "missing"), HdfsParquetUtils.getFieldNames(HdfsParquetUtils.getSchema(include_bucket, Arrays.asList(o1))));
+		
+		// Write a segment
+		
+		final HfdsDataWriteService<TestBean> write_service = new HfdsDataWriteService<TestBean>(test_bucket, default_service._parent, 
+				IStorageService.StorageStage.processed, Optional.empty(), default_service._storage_service, Optional.empty());
+		
+		//(Tidy up)
+		try { FileUtils.deleteDirectory(new File(temp_dir + "/data/" + write_service._bucket.full_name())); } catch (Exception e) {}
+		
+		final HfdsDataWriteService<TestBean>.WriterWorker worker = write_service.new WriterWorker();
+		worker.new_segment();
+		
+		final File f = new File(
+				(temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/.spooldir/" + worker.getFilename())
+				.replace("/", File.separator)
+				);
+		assertTrue("Expected segment: ", f.toString().endsWith("_1.parquet"));
+		
+		worker.write(o1);
+		worker.write("{\"_id\":\"t2\",\"num\":\"not a number\",\"extra\":1}");
+		worker.write("not json"); // (discarded)
+		worker.write("[1,2]"); // (discarded)
+		assertEquals(2, worker._state.curr_objects);
+		assertEquals(2, worker._state.parquet_rejected);
+		assertEquals("Held back to infer the schema", 2, worker._state.parquet_sample.size());
+		assertTrue("Segment open", worker.is_segment_open());
+		
+		worker.complete_segment();
+		assertTrue("File should have moved: " + f, !f.exists());
+		
+		final File f2 = new File(
+				(temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/all_time/" + f.getName())
+				.replace("/", File.separator)
+				);
+		assertTrue("File should exist: " + f2, f2.exists());
+		
+		try (ParquetReader<GenericRecord> reader = AvroParquetReader.<GenericRecord>builder(new Path(f2.toString())).build()) {
+			final GenericRecord r1 = reader.read();
+			assertEquals("t1", r1.get("_id").toString());
+			assertEquals("1", r1.get("num").toString()); // (widened to string by the 2nd object)
+			assertEquals(1.5, r1.get("dbl"));
+			assertEquals(true, r1.get("bool"));
+			assertEquals("x", r1.get("nested_field").toString());
+			assertEquals("{\"a\":1}", r1.get("obj").toString());
+			
+			final GenericRecord r2 = reader.read();
+			assertEquals("t2", r2.get("_id").toString());
+			assertEquals("not a number", r2.get("num").toString());
+			assertEquals(null, r2.get("bool"));
+			assertEquals(1L, r2.get("extra"));
+			
+			assertEquals(null, reader.read());
+		}
+	}
+	
+	@Test
+	public void test_writerService_backpressure() throws Exception {
+		HfdsDataWriteService<TestBean> write_service = getWriter("/test/writer/backpressure");
+		
+		// (not initialized, so there are no workers draining the queue)
+		final HfdsDataWriteService<TestBean>.BatchHdfsWriteService batch = write_service.new BatchHdfsWriteService();
+		
+		assertEquals(6L, batch.estimateSize("12345"));
+		
+		// Reject policy
+		
+		batch.setBackpressure(Optional.of(3L), Optional.empty(), Optional.of(HfdsDataWriteService.BackpressurePolicy.REJECT));
+		
+		final HfdsDataWriteService.QueueEntry e1 = new HfdsDataWriteService.QueueEntry("a", 2L, 100L);
+		final HfdsDataWriteService.QueueEntry e2 = new HfdsDataWriteService.QueueEntry("b", 1L, 100L);
+		batch.acquireBudget(e1);
+		batch.acquireBudget(e2);
+		assertEquals(3L, batch.getQueuedObjects());
+		assertEquals(200L, batch.getQueuedBytes());
+		try {
+			batch.acquireBudget(new HfdsDataWriteService.QueueEntry("c", 1L, 100L));
+			fail("Should have been rejected");
+		}
+		catch (RejectedExecutionException e) {}
+		assertEquals(1L, batch.getMetrics().get("rejected_writes").longValue());
+		
+		batch.releaseBudget(e2, 50L);
+		assertEquals(2L, batch.getQueuedObjects());
+		batch.acquireBudget(e2);
+		
+		// Byte budget
+		
+		batch.setBackpressure(Optional.empty(), Optional.of(1L), Optional.of(HfdsDataWriteService.BackpressurePolicy.REJECT));
+		try {
+			batch.acquireBudget(new HfdsDataWriteService.QueueEntry("d", 1L, 1000L));
+			fail("Should have been rejected");
+		}
+		catch (RejectedExecutionException e) {}
+		
+		// Block policy
+		
+		batch.setBackpressure(Optional.of(3L), Optional.empty(), Optional.empty());
+		final CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> batch.acquireBudget(new HfdsDataWriteService.QueueEntry("e", 1L, 100L)));
+		Thread.sleep(500L);
+		assertFalse("Producer should be blocked", blocked.isDone());
+		
+		batch.releaseBudget(e1, 0L);
+		blocked.get();
+		assertEquals(2L, batch.getQueuedObjects());
+		assertEquals(1L, batch.getMetrics().get("producer_waits").longValue());
+		assertTrue("Wait time recorded: " + batch.getMetrics(), batch.getMetrics().get("max_producer_wait_ms") >= 400L);
+	}	
+	
+	@Test
+	public void test_writerService_writeFailure() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;		
+		
+		HfdsDataWriteService<TestBean> write_service = getWriter("/test/writer/write_failure");
+		
+		//(Tidy up)
+		try { FileUtils.deleteDirectory(new File(temp_dir + "/data/" + write_service._bucket.full_name())); } catch (Exception e) {}
+		
+		write_service.getBatchWriteSubservice();
+		final HfdsDataWriteService<TestBean>.BatchHdfsWriteService batch = write_service._writer.get();
+		batch.setBatchProperties(Optional.empty(), Optional.empty(), Optional.of(Duration.ofSeconds(1L)), Optional.of(1));
+		
+		// An object that fails part way through being written, between 2 that don't
+		final ObjectNode bad = BeanTemplateUtils.configureMapper(Optional.empty()).createObjectNode().put("partial", "partial");
+		bad.putPOJO("fails", new JsonSerializable() {
+			@Override
+			public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+				throw new IOException("test");
+			}
+			@Override
+			public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+				serialize(gen, serializers);
+			}
+		});
+		final HfdsDataWriteService.QueueEntry bad_entry = new HfdsDataWriteService.QueueEntry(bad, 1L, 100L);
+		
+		batch.storeObject(new TestBean("t1", "v1"));
+		batch.acquireBudget(bad_entry);
+		batch._shared_queue.add(bad_entry);
+		batch.storeObject(new TestBean("t2", "v2"));
+		
+		for (int i = 0; (i < 50) && (0L != batch.getQueuedObjects()); ++i) {
+			Thread.sleep(100L);
+		}
+		// The failure is counted, and the worker is still draining the queue
+		assertEquals(0L, batch.getQueuedObjects());
+		assertEquals(1L, batch.getMetrics().get("failed_writes").longValue());
+		assertEquals(0L, batch.getMetrics().get("abandoned_segments").longValue());
+		assertEquals(1, batch._state._workers.getActiveCount());
+		
+		batch.storeObject(new TestBean("t3", "v3"));
+		Thread.sleep(3000L); // (segments are completed once the queue has been empty for the flush interval)
+		
+		final File final_dir = new File(
+				(temp_dir + "/data/" + write_service._bucket.full_name() + "/managed_bucket/import/stored/processed/current/all_time/")
+				.replace("/", File.separator)
+				);
+		final String contents = Arrays.stream(final_dir.listFiles())
+									.filter(f -> !f.getName().endsWith(".crc"))
+									.map(Lambdas.wrap_u(f -> FileUtils.readFileToString(f)))
+									.sorted()
+									.collect(Collectors.joining());
+		
+		assertTrue("Written objects kept: " + contents, contents.contains("\"t1\"") && contents.contains("\"t2\"") && contents.contains("\"t3\""));
+		assertFalse("Failed object not written: " + contents, contents.contains("partial"));
+	}	
+	
 	@Test
 	public void test_writerService_segmentationCriteria() throws Exception {
 		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;		
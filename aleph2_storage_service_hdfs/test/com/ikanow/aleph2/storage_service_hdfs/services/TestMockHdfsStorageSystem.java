@@ -114,7 +114,7 @@ public class TestMockHdfsStorageSystem {
 		}
 		// Works some more
 		
-		Arrays.asList("gz", "gzip", "sz", "snappy", "fr.sz", "snappy_framed")
+		Arrays.asList("gz", "gzip", "sz", "snappy", "fr.sz", "snappy_framed", "bz2", "bzip2")
 				.stream()
 				.map(s -> buildBucketWithCodec(s))
 				.forEach(bucket -> {
@@ -124,9 +124,9 @@ public class TestMockHdfsStorageSystem {
 							res._1().replace(File.separator, "/").replaceAll("//", "/"));
 				});
 		
-		// Fails
+		// Fails (parquet is only supported for the processed stage)
 		
-		Arrays.asList("banana")
+		Arrays.asList("banana", "parquet", "parquet.gz", "parquet.banana")
 				.stream()
 				.map(s -> buildBucketWithCodec(s))
 				.forEach(bucket -> {